@@ -4,6 +4,7 @@ import peer.messages.Header;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.io.*;
@@ -13,6 +14,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 /**
@@ -170,11 +172,8 @@ public class FileManager {
        AsynchronousFileChannel fileChannel =
                AsynchronousFileChannel.open(Paths.get(chunkPath), StandardOpenOption.WRITE);
 
-       ByteBuffer buffer = ByteBuffer.allocate(chunkContent.length);
-       buffer.put(chunkContent);
-       buffer.flip();
-       fileChannel.write(buffer, 0);
-       buffer.clear();
+       ByteBuffer buffer = ByteBuffer.wrap(chunkContent);
+       fileChannel.write(buffer, 0, fileChannel, closeWhenDone);
 
        return true;
     }
@@ -191,9 +190,45 @@ public class FileManager {
         AsynchronousFileChannel fileChannel =
                 AsynchronousFileChannel.open(Paths.get(chunkPath), StandardOpenOption.READ);
 
-        return fileChannel.read(buf, 0);
+        // the channel is closed once the read is done
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        fileChannel.read(buf, 0, fileChannel, new CompletionHandler<Integer, AsynchronousFileChannel>() {
+            @Override
+            public void completed(Integer result, AsynchronousFileChannel channel) {
+                closeWhenDone.completed(result, channel);
+                future.complete(result);
+            }
+
+            @Override
+            public void failed(Throwable exc, AsynchronousFileChannel channel) {
+                closeWhenDone.failed(exc, channel);
+                future.completeExceptionally(exc);
+            }
+        });
+        return future;
     }
 
+    /**
+     * Completion handler that closes the channel of a chunk once its read or write is done.
+     */
+    private static final CompletionHandler<Integer, AsynchronousFileChannel> closeWhenDone = new CompletionHandler<Integer, AsynchronousFileChannel>() {
+        @Override
+        public void completed(Integer result, AsynchronousFileChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, AsynchronousFileChannel channel) {
+            System.err.println("Error in chunk read/write");
+            exc.printStackTrace();
+            this.completed(-1, channel);
+        }
+    };
+
 
     /**
      * Checks if the current peer is the owner of a specific file, that is, if it ordered its backup.
@@ -16,6 +16,7 @@ import java.rmi.RemoteException;
 import java.text.SimpleDateFormat;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -76,6 +77,19 @@ public class Peer implements RemoteInterface {
     }
 
 
+    /**
+     * Closes the channel of a file that was being backed up.
+     * @param fileChannel the channel
+     */
+    private static void closeChannel(AsynchronousFileChannel fileChannel) {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing the file");
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Implementation of the backup request.
      * @param filepath filepath of the file we want to backup
@@ -114,6 +128,11 @@ public class Peer implements RemoteInterface {
             if (fileSize % CHUNK_SIZE != 0)
                 numChunks++;
 
+            // the channel is closed after the last chunk is read
+            AtomicInteger readsLeft = new AtomicInteger(numChunks);
+            if (numChunks == 0)
+                closeChannel(fileChannel);
+
             for (int chunkNo = 0; chunkNo < numChunks; chunkNo++) {
                 ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
                 long position = chunkNo * CHUNK_SIZE;
@@ -132,11 +151,15 @@ public class Peer implements RemoteInterface {
                                 replicationDegree);
 
                         attachment.clear();
+                        if (readsLeft.decrementAndGet() == 0)
+                            closeChannel(fileChannel);
                     }
 
                     @Override
                     public void failed(Throwable exc, ByteBuffer attachment) {
-
+                        System.err.println("Error while trying to read chunk " + chunkNoFinal + " from file");
+                        if (readsLeft.decrementAndGet() == 0)
+                            closeChannel(fileChannel);
                     }
                 });
             }
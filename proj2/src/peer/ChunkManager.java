@@ -1,11 +1,17 @@
 package peer;
 
+import peer.chord.ChordId;
 import peer.messages.Message;
 
+import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -16,14 +22,22 @@ import java.util.concurrent.ConcurrentSkipListSet;
 public class ChunkManager {
     private final static String perceivedReplicationInfo = "perceived_replication_info.data";   /** name of the file containing the perceived replication of backed up chunks */
     private final static String fileDeletionInfo = "file_deletion_info.data";                   /** name of the file containing information about the file deletions (for delete enhancement) */
+    private final static String metadataLogInfo = "chunk_manager.log";                         /** name of the file containing the changes made after the tables were saved */
     private final String directory;                                                             /** directory assigned to the peer */
 
+    // types of the records of the metadata log
+    private final static byte ADD_REPLICATION = 1;
+    private final static byte REDUCE_REPLICATION = 2;
+    private final static byte DELETE_REPLICATION = 3;
+    private final static byte ADD_TO_FILE_DELETER = 4;
+    private final static byte REMOVE_FROM_FILE_DELETER = 5;
+
     /**
      * Stores the perceived replication of each of the chunks it has asked to backup.
      * key = fileId + _ + chunkNo
      * value = set with ids of the senders
      */
-    private ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> perceivedReplicationTable;
+    private ConcurrentHashMap<String, ConcurrentSkipListSet<ChordId>> perceivedReplicationTable;
 
     /**
      * Temporarily stores the chunks of a file this peer is trying to restore.
@@ -37,16 +51,23 @@ public class ChunkManager {
      * key = peer id
      * value = object that contains information/data about the files/chunks to be deleted
      */
-    private ConcurrentHashMap<Integer, FileDeleter> fileDeletionList;
+    private ConcurrentHashMap<ChordId, FileDeleter> fileDeletionList;
+
+    /**
+     * Log of the changes made to the tables since they were last saved.
+     */
+    private final MetadataLog log;
 
 
     /**
      * Fills the ChunkManager class with the items that exist in the directory given.
      * @param peerId peer identifier
      */
-    public ChunkManager(int peerId) {
+    public ChunkManager(ChordId peerId) {
         this.directory = System.getProperty("user.dir") + "/src/storage/chunks/" + peerId + "/";
         this.loadFromDirectory();
+        this.log = new MetadataLog(this.directory, metadataLogInfo, this::saveToDirectory);
+        this.log.replay(this::replayRecord);
     }
 
 
@@ -56,13 +77,11 @@ public class ChunkManager {
      * @param chunkNo The number of the chunk
      * @param senderId The ID of the peer storing it
      */
-    public void reduceChunkReplication(String fileId, int chunkNo, int senderId) {
+    public void reduceChunkReplication(String fileId, int chunkNo, ChordId senderId) {
         String key = fileId + "_" + chunkNo;
-        ConcurrentSkipListSet<Integer> senders = this.perceivedReplicationTable.computeIfAbsent(key, value -> new ConcurrentSkipListSet<>());
+        ConcurrentSkipListSet<ChordId> senders = this.perceivedReplicationTable.computeIfAbsent(key, value -> new ConcurrentSkipListSet<>());
 
-        if (senders.remove(senderId)) {
-            this.saveToDirectory();
-        }
+        this.log.update(() -> senders.remove(senderId) ? replicationRecord(REDUCE_REPLICATION, key, senderId) : null);
     }
 
     /**
@@ -71,20 +90,41 @@ public class ChunkManager {
      * @param chunkNo chunk number of the file that was stored
      * @param senderId sender id of STORED message received
      */
-    public void addChunkReplication(String fileId, int chunkNo, int senderId) {
+    public void addChunkReplication(String fileId, int chunkNo, ChordId senderId) {
         String key = fileId + "_" + chunkNo;
-        ConcurrentSkipListSet<Integer> senders = this.perceivedReplicationTable.computeIfAbsent(key, value -> new ConcurrentSkipListSet<>());
+        ConcurrentSkipListSet<ChordId> senders = this.perceivedReplicationTable.computeIfAbsent(key, value -> new ConcurrentSkipListSet<>());
 
-        if (senders.add(senderId)) {
-            this.saveToDirectory();
-        }
+        this.log.update(() -> senders.add(senderId) ? replicationRecord(ADD_REPLICATION, key, senderId) : null);
+    }
+
+    /**
+     * Record of the metadata log for a change of the perceived replication of a chunk.
+     * @param type ADD_REPLICATION or REDUCE_REPLICATION
+     * @param key fileId + _ + chunkNo
+     * @param senderId id of the peer storing the chunk
+     * @return the record
+     */
+    private static MetadataLog.Record replicationRecord(byte type, String key, ChordId senderId) {
+        return out -> {
+            out.writeByte(type);
+            out.writeUTF(key);
+            out.writeUTF(senderId.toString());
+        };
+    }
+
+    /**
+     * Get method for the log of the changes made to the tables.
+     * @return the metadata log
+     */
+    public MetadataLog getMetadataLog() {
+        return log;
     }
 
     /**
      * Returns information of the backed up files.
      * @return a set of entries with that information
      */
-    public ConcurrentSkipListSet<Integer> getPerceivedReplicationForChunk(String fileId, int chunkNo) {
+    public ConcurrentSkipListSet<ChordId> getPerceivedReplicationForChunk(String fileId, int chunkNo) {
         return this.perceivedReplicationTable.getOrDefault(fileId + "_" + chunkNo, new ConcurrentSkipListSet<>());
     }
 
@@ -107,9 +147,14 @@ public class ChunkManager {
     public void deletePerceivedReplication(String fileId, int chunk) {
         String key = fileId + "_" + chunk;
 
-        if(this.perceivedReplicationTable.remove(key) != null){
-            this.saveToDirectory();
-        }
+        this.log.update(() -> {
+            if (this.perceivedReplicationTable.remove(key) == null)
+                return null;
+            return out -> {
+                out.writeByte(DELETE_REPLICATION);
+                out.writeUTF(key);
+            };
+        });
     }
 
     /**
@@ -197,15 +242,15 @@ public class ChunkManager {
      * @param peerId peer identifier
      * @return array with the ids of the file storers
      */
-    public ArrayList<Integer> getFileStorers(String fileId, int highestChunkNo, int peerId) {
-        ArrayList<Integer> holders = new ArrayList<>();
+    public ArrayList<ChordId> getFileStorers(String fileId, int highestChunkNo, ChordId peerId) {
+        ArrayList<ChordId> holders = new ArrayList<>();
 
         for(int i = 0; i <= highestChunkNo; i++) {
             String fileAndChunk = fileId + "_" + i;
-            ConcurrentSkipListSet<Integer> senders = this.perceivedReplicationTable.getOrDefault(fileAndChunk, new ConcurrentSkipListSet<>());
+            ConcurrentSkipListSet<ChordId> senders = this.perceivedReplicationTable.getOrDefault(fileAndChunk, new ConcurrentSkipListSet<>());
 
-            for(Integer sender : senders) {
-                if(!holders.contains(sender) && sender != peerId)
+            for(ChordId sender : senders) {
+                if(!holders.contains(sender) && !sender.equals(peerId))
                     holders.add(sender);
             }
         }
@@ -213,16 +258,30 @@ public class ChunkManager {
         return holders;
     }
 
-    public int getFileStorer(String fileId, int chunkNo, int index){
-        Set<Integer> storers = this.perceivedReplicationTable.getOrDefault(fileId + "_" + chunkNo, new ConcurrentSkipListSet<>());
+    public ChordId getFileStorer(String fileId, int chunkNo, int index){
+        Set<ChordId> storers = this.perceivedReplicationTable.getOrDefault(fileId + "_" + chunkNo, new ConcurrentSkipListSet<>());
 
-        Iterator<Integer> it = storers.iterator();
+        Iterator<ChordId> it = storers.iterator();
         for (int i = 0; it.hasNext(); i++, it.next()) {
             if(i == index)
                 return it.next();
         }
 
-        return -1;
+        return null;
+    }
+
+    /**
+     * Returns one of the storers of a chunk, with the storers in a given order.
+     * @param fileId file identifier
+     * @param chunkNo chunk number
+     * @param index index of the storer
+     * @param order order of the storers (e.g. the closest first)
+     * @return the id of the storer, or null if there are not that many
+     */
+    public ChordId getFileStorer(String fileId, int chunkNo, int index, Comparator<ChordId> order) {
+        List<ChordId> storers = new ArrayList<>(this.perceivedReplicationTable.getOrDefault(fileId + "_" + chunkNo, new ConcurrentSkipListSet<>()));
+        storers.sort(order);
+        return index < storers.size() ? storers.get(index) : null;
     }
 
     /**
@@ -230,9 +289,25 @@ public class ChunkManager {
      * @param peerId peer identifier
      * @param msg message to be added (and later sent to the peer)
      */
-    public void addToFileDeleter(Integer peerId, Message msg) {
-        fileDeletionList.computeIfAbsent(peerId, key -> new FileDeleter(peerId)).addMessage(msg);
-        this.saveToDirectory();
+    public void addToFileDeleter(ChordId peerId, Message msg) {
+        byte[] message;
+        try {
+            message = msg.convertToBytes();
+        } catch (IOException e) {
+            System.err.println("Error saving the delete message for " + peerId);
+            e.printStackTrace();
+            return;
+        }
+
+        this.log.update(() -> {
+            fileDeletionList.computeIfAbsent(peerId, key -> new FileDeleter(peerId)).addMessage(msg);
+            return out -> {
+                out.writeByte(ADD_TO_FILE_DELETER);
+                out.writeUTF(peerId.toString());
+                out.writeInt(message.length);
+                out.write(message);
+            };
+        });
     }
 
     /**
@@ -240,11 +315,26 @@ public class ChunkManager {
      * @param peerId peer identifier
      * @param fileId file identifier
      */
-    public void removeFromFileDeleter(Integer peerId, String fileId) {
+    public void removeFromFileDeleter(ChordId peerId, String fileId) {
+        this.log.update(() -> {
+            this.removeMessages(peerId, fileId);
+            return out -> {
+                out.writeByte(REMOVE_FROM_FILE_DELETER);
+                out.writeUTF(peerId.toString());
+                out.writeUTF(fileId);
+            };
+        });
+    }
+
+    /**
+     * Removes the delete message of a file from the file deleter of a peer, and the file deleter if it is empty.
+     * @param peerId peer identifier
+     * @param fileId file identifier
+     */
+    private void removeMessages(ChordId peerId, String fileId) {
         if (this.getFileDeleter(peerId).removeMessages(fileId) ) {
             this.fileDeletionList.remove(peerId);
         }
-        this.saveToDirectory();
     }
 
     /**
@@ -252,7 +342,7 @@ public class ChunkManager {
      * @param peerId peer identifier
      * @return the file deleter
      */
-    public FileDeleter getFileDeleter(Integer peerId) {
+    public FileDeleter getFileDeleter(ChordId peerId) {
         return fileDeletionList.getOrDefault(peerId, new FileDeleter());
     }
 
@@ -261,9 +351,9 @@ public class ChunkManager {
      * @param fileId file identifier
      */
     public void removeFileDeletion(String fileId) {
-        Set<Map.Entry<Integer, FileDeleter>> entrySet = this.fileDeletionList.entrySet();
+        Set<Map.Entry<ChordId, FileDeleter>> entrySet = this.fileDeletionList.entrySet();
 
-        for (Map.Entry<Integer, FileDeleter> entry : entrySet) {
+        for (Map.Entry<ChordId, FileDeleter> entry : entrySet) {
             this.removeFromFileDeleter(entry.getKey(), fileId);
         }
     }
@@ -280,7 +370,7 @@ public class ChunkManager {
         try {
             FileInputStream percRepFileIn = new FileInputStream(this.directory + perceivedReplicationInfo);
             ObjectInputStream percRepObjIn = new ObjectInputStream(percRepFileIn);
-            this.perceivedReplicationTable = (ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>>)percRepObjIn.readObject();
+            this.perceivedReplicationTable = (ConcurrentHashMap<String, ConcurrentSkipListSet<ChordId>>)percRepObjIn.readObject();
             percRepFileIn.close();
             percRepObjIn.close();
         } catch (Exception e) {
@@ -291,7 +381,7 @@ public class ChunkManager {
         try {
             FileInputStream fileDelFileIn = new FileInputStream(this.directory + fileDeletionInfo);
             ObjectInputStream fileDelObjIn = new ObjectInputStream(fileDelFileIn);
-            this.fileDeletionList = (ConcurrentHashMap<Integer, FileDeleter>)fileDelObjIn.readObject();
+            this.fileDeletionList = (ConcurrentHashMap<ChordId, FileDeleter>)fileDelObjIn.readObject();
             fileDelFileIn.close();
             fileDelObjIn.close();
         } catch (Exception e) {
@@ -301,27 +391,66 @@ public class ChunkManager {
     }
 
     /**
-     * Writes to files in the directory to save the information present on the tables.
+     * Applies a record of the metadata log to the tables (when the peer starts).
+     * @param in Data of the record
+     * @throws IOException when the record cannot be read
      */
-    synchronized private void saveToDirectory() {
-        // Saving perceived replication table
-        try {
-            FileOutputStream percRepFileOut = new FileOutputStream(this.directory + perceivedReplicationInfo);
-            ObjectOutputStream percRepObjOut = new ObjectOutputStream(percRepFileOut);
-            percRepObjOut.writeObject(this.perceivedReplicationTable);
-            percRepObjOut.close();
-            percRepFileOut.close();
-        } catch (Exception ignore) {
+    private void replayRecord(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String key;
+        ChordId peerId;
+        switch (type) {
+            case ADD_REPLICATION:
+                key = in.readUTF();
+                this.perceivedReplicationTable.computeIfAbsent(key, value -> new ConcurrentSkipListSet<>()).add(ChordId.fromHex(in.readUTF()));
+                break;
+            case REDUCE_REPLICATION:
+                key = in.readUTF();
+                this.perceivedReplicationTable.computeIfAbsent(key, value -> new ConcurrentSkipListSet<>()).remove(ChordId.fromHex(in.readUTF()));
+                break;
+            case DELETE_REPLICATION:
+                this.perceivedReplicationTable.remove(in.readUTF());
+                break;
+            case ADD_TO_FILE_DELETER:
+                peerId = ChordId.fromHex(in.readUTF());
+                byte[] message = new byte[in.readInt()];
+                in.readFully(message);
+                ChordId deleterId = peerId;
+                this.fileDeletionList.computeIfAbsent(peerId, value -> new FileDeleter(deleterId)).addMessage(new Message(message));
+                break;
+            case REMOVE_FROM_FILE_DELETER:
+                peerId = ChordId.fromHex(in.readUTF());
+                this.removeMessages(peerId, in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
         }
+    }
 
-        // Saving file deletion list
-        try {
-            FileOutputStream fileDelFileOut = new FileOutputStream(this.directory + fileDeletionInfo);
-            ObjectOutputStream fileDelObjOut = new ObjectOutputStream(fileDelFileOut);
-            fileDelObjOut.writeObject(this.fileDeletionList);
-            fileDelObjOut.close();
-            fileDelFileOut.close();
-        } catch (Exception ignore) {
+    /**
+     * Writes to files in the directory to save the information present on the tables (snapshot of the metadata
+     * log). Each table is written to a temporary file first, which then replaces the old one.
+     * @throws IOException when a table cannot be saved
+     */
+    private void saveToDirectory() throws IOException {
+        this.saveTable(this.perceivedReplicationTable, perceivedReplicationInfo);
+        this.saveTable(this.fileDeletionList, fileDeletionInfo);
+    }
+
+    /**
+     * Writes a table to a file in the directory.
+     * @param table The table
+     * @param filename Name of the file
+     * @throws IOException when the table cannot be saved
+     */
+    private void saveTable(Object table, String filename) throws IOException {
+        String path = this.directory + filename;
+        try (FileOutputStream fileOut = new FileOutputStream(path + ".tmp");
+             ObjectOutputStream objOut = new ObjectOutputStream(fileOut)) {
+            objOut.writeObject(table);
+            objOut.flush();
+            fileOut.getFD().sync();
         }
+        Files.move(Paths.get(path + ".tmp"), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 }
@@ -0,0 +1,490 @@
+package peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Storage of the contents of the chunks in large segment files, instead of one file per chunk. The chunks are
+ * appended to the current segment (a new one is started when it reaches SEGMENT_SIZE), and read with positional
+ * reads. The index of where each chunk is (its Location) is kept by the FileManager, with its other tables.
+ *
+ * When chunks are removed, their space is only freed when the segment they are in is compacted: once less than
+ * COMPACTION_THRESHOLD of a segment is still in use, the Compactor copies its chunks to the current segment and
+ * the segment file is deleted.
+ *
+ * A chunk is only reported as stored once its content is on the disk: sync() forces the segments written since
+ * the last force, for all the chunks written meanwhile (group commit). The first thread to sync waits
+ * COMMIT_INTERVAL milliseconds before forcing, so that the chunks arriving at the same time share one force.
+ *
+ * The chunks that are sent to other peers are read through memory mappings of the segments, in windows of
+ * MAP_WINDOW bytes; the last MAX_MAPPINGS windows used are kept mapped.
+ */
+public class ChunkStore {
+    /**
+     * Where the content of a chunk is: segment, offset in the segment and length.
+     */
+    public static class Location implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int segment;
+        private final long offset;
+        private final int length;
+
+        public Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Location location = (Location) o;
+            return segment == location.segment && offset == location.offset && length == location.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(segment, offset, length);
+        }
+    }
+
+    /**
+     * Moves the chunks still in use out of a segment (with copy()) and then removes it (with removeSegment()).
+     */
+    public interface Compactor {
+        void compact(int segment);
+    }
+
+    /**
+     * Segment file.
+     */
+    private static class Segment {
+        final int id;
+        final FileChannel channel;
+        long size;          // bytes written or reserved
+        long live;          // bytes of the chunks in use
+        boolean compacting = false;
+
+        Segment(int id, FileChannel channel, long size) {
+            this.id = id;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private static final long SEGMENT_SIZE = Long.getLong("peer.segmentSize", 64L << 20);   /** size (in bytes) after which a new segment is started (-Dpeer.segmentSize) */
+    private static final double COMPACTION_THRESHOLD = 0.5;                                 /** fraction of a segment in use under which it is compacted */
+    private static final String SEGMENT_EXTENSION = ".segment";                             /** extension of the segment files */
+    private static final long MAP_WINDOW = Long.getLong("peer.store.mapWindow", 8L << 20);  /** size (in bytes) of the mapped windows of the segments (-Dpeer.store.mapWindow) */
+    private static final int MAX_MAPPINGS = Integer.getInteger("peer.store.mappings", 32);  /** number of mapped windows kept (-Dpeer.store.mappings) */
+    private static final long COMMIT_INTERVAL = Long.getLong("peer.store.commitInterval", 0);  /** time (in ms) a sync waits for other chunks before forcing; worth it on slow disks (-Dpeer.store.commitInterval) */
+    private static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("peer.store.fsync", "true"));  /** true if the chunks are forced to the disk (-Dpeer.store.fsync) */
+
+    private final String directory;                 /** directory of the segment files */
+    private final Compactor compactor;              /** moves the chunks out of the segments to compact */
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();  /** segments, by id */
+    private Segment active;                         /** segment the chunks are appended to */
+    private int nextId = 1;                         /** id of the next segment */
+
+    /**
+     * Mapped windows of the segments, the least recently used first.
+     * key = segment id (high 32 bits) and window number (low 32 bits)
+     * value = mapping of the window
+     */
+    private final Map<Long, MappedByteBuffer> mappings = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            return size() > MAX_MAPPINGS;
+        }
+    };
+    private long mapHits = 0;                       /** reads served by a window already mapped */
+    private long mapMisses = 0;                     /** reads that needed a window to be mapped */
+
+    private final Object dirtyLock = new Object();  /** lock of the segments written since the last force */
+    private final Object forceLock = new Object();  /** lock of the forces */
+    private Set<Segment> dirty = new HashSet<>();   /** segments written since the last force */
+    private long syncRequests = 0;                  /** number of syncs requested */
+    private long synced = 0;                        /** number of syncs covered by a force */
+    private long forces = 0;                        /** number of forces done */
+
+    /**
+     * Thread that compacts the segments.
+     */
+    private final ExecutorService compaction = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "segment-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor of the chunk store.
+     * @param directory directory of the segment files
+     * @param compactor moves the chunks out of the segments to compact
+     */
+    public ChunkStore(String directory, Compactor compactor) {
+        this.directory = directory;
+        this.compactor = compactor;
+    }
+
+    /**
+     * Opens the segment files in the directory (when the peer starts). Segments without chunks in use are deleted,
+     * and the ones mostly unused are compacted.
+     * @param locations locations of the chunks in use
+     */
+    public synchronized void open(Collection<Location> locations) {
+        File[] files = new File(directory).listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segments.put(id, new Segment(id, channel, channel.size()));
+                nextId = Math.max(nextId, id + 1);
+            } catch (NumberFormatException | IOException e) {
+                System.err.println("Error opening segment " + name);
+                e.printStackTrace();
+            }
+        }
+
+        for (Location location : locations) {
+            Segment segment = segments.get(location.segment);
+            if (segment != null)
+                segment.live += location.length;
+        }
+
+        for (Segment segment : segments.values())
+            this.checkCompaction(segment);
+    }
+
+    /**
+     * Appends the content of a chunk to the current segment.
+     * @param content buffer with the content, between its position and its limit
+     * @return where the chunk was written
+     * @throws IOException when the chunk cannot be written
+     */
+    public Location append(ByteBuffer content) throws IOException {
+        int length = content.remaining();
+        Segment segment;
+        long offset;
+        synchronized (this) {
+            if (active == null || (active.size > 0 && active.size + length > SEGMENT_SIZE))
+                active = this.createSegment();
+            segment = active;
+            offset = segment.size;
+            segment.size += length;
+            segment.live += length;
+        }
+
+        // the space is reserved, so the chunks can be written at the same time
+        Location location = new Location(segment.id, offset, length);
+        try {
+            long position = offset;
+            while (content.hasRemaining())
+                position += segment.channel.write(content, position);
+        } catch (IOException e) {
+            this.free(location);
+            throw e;
+        }
+
+        synchronized (dirtyLock) {
+            dirty.add(segment);
+        }
+        return location;
+    }
+
+    /**
+     * Waits until the chunks written so far (by any thread) are on the disk. The first thread to get here waits
+     * COMMIT_INTERVAL and then forces every segment written meanwhile; the others find their chunks already forced.
+     * @throws IOException when a segment cannot be forced
+     */
+    public void sync() throws IOException {
+        if (!FSYNC)
+            return;
+
+        long ticket;
+        synchronized (dirtyLock) {
+            ticket = ++syncRequests;
+        }
+
+        synchronized (forceLock) {
+            // a force that started after this request covers its chunk
+            if (synced >= ticket)
+                return;
+
+            if (COMMIT_INTERVAL > 0) {
+                try {
+                    Thread.sleep(COMMIT_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            Set<Segment> toForce;
+            long last;
+            synchronized (dirtyLock) {
+                toForce = dirty;
+                dirty = new HashSet<>();
+                last = syncRequests;
+            }
+
+            for (Segment segment : toForce) {
+                try {
+                    segment.channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // segment removed by a compaction; its chunks were copied (and forced) elsewhere
+                }
+            }
+            synced = last;
+            forces++;
+        }
+    }
+
+    /**
+     * Reads the content of a chunk into a buffer, from its position.
+     * @param location where the chunk is
+     * @param buffer buffer for the content
+     * @return number of bytes read, or -1 if the segment was removed (the chunk was moved by a compaction)
+     * @throws IOException when the chunk cannot be read
+     */
+    public int read(Location location, ByteBuffer buffer) throws IOException {
+        Segment segment = segments.get(location.segment);
+        if (segment == null)
+            return -1;
+
+        int start = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(Math.min(limit, start + location.length));
+        try {
+            long position = location.offset;
+            while (buffer.hasRemaining()) {
+                int read = segment.channel.read(buffer, position);
+                if (read < 0)
+                    break;
+                position += read;
+            }
+            return buffer.position() - start;
+        } catch (ClosedChannelException e) {
+            buffer.position(start);
+            return -1;
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    /**
+     * Retrieves the content of a chunk as a part of a mapped window of its segment, without copying it.
+     * The buffer stays valid after the chunk is removed or moved (segments are never overwritten).
+     * @param location where the chunk is
+     * @return read-only buffer with the content, or null if the segment was removed (the chunk was moved by a compaction)
+     * @throws IOException when the segment cannot be mapped
+     */
+    public ByteBuffer map(Location location) throws IOException {
+        long window = location.offset / MAP_WINDOW;
+        long start = window * MAP_WINDOW;
+        long end = location.offset + location.length;
+        Segment segment = segments.get(location.segment);
+
+        try {
+            // a chunk across two windows is mapped on its own
+            if (end > start + MAP_WINDOW) {
+                if (segment == null)
+                    return null;
+                return segment.channel.map(FileChannel.MapMode.READ_ONLY, location.offset, location.length).asReadOnlyBuffer();
+            }
+
+            long key = ((long) location.segment << 32) | window;
+            MappedByteBuffer mapping;
+            synchronized (mappings) {
+                mapping = mappings.get(key);
+                if (mapping != null && start + mapping.capacity() >= end) {
+                    mapHits++;
+                } else {
+                    // not mapped yet, or mapped before the segment grew past the chunk
+                    if (segment == null)
+                        return null;
+                    mapping = segment.channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW, segment.channel.size() - start));
+                    mappings.put(key, mapping);
+                    mapMisses++;
+                }
+            }
+
+            ByteBuffer slice = mapping.duplicate();
+            slice.limit((int) (end - start));
+            slice.position((int) (location.offset - start));
+            return slice.slice().asReadOnlyBuffer();
+        } catch (ClosedChannelException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Copies a chunk to the current segment (used by the compaction).
+     * @param location where the chunk is
+     * @return where the copy was written
+     * @throws IOException when the chunk cannot be copied
+     */
+    public Location copy(Location location) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate(location.length);
+        if (this.read(location, content) != location.length)
+            throw new IOException("Chunk in segment " + location.segment + " could not be read");
+        content.flip();
+        return this.append(content);
+    }
+
+    /**
+     * Marks the space of a chunk as unused (the chunk was removed or moved).
+     * @param location where the chunk was
+     */
+    public synchronized void free(Location location) {
+        Segment segment = segments.get(location.segment);
+        if (segment == null)
+            return;
+
+        segment.live -= location.length;
+        this.checkCompaction(segment);
+    }
+
+    /**
+     * Removes a segment whose chunks were all moved.
+     * @param id id of the segment
+     */
+    public void removeSegment(int id) {
+        Segment segment;
+        synchronized (this) {
+            segment = segments.get(id);
+            if (segment == null || segment == active)
+                return;
+            if (segment.live > 0) {
+                // a chunk could not be moved, or is being removed; compacted again on the next free()
+                segment.compacting = false;
+                return;
+            }
+            segments.remove(id);
+        }
+
+        // the buffers already given out keep their mapping until they are collected
+        synchronized (mappings) {
+            mappings.keySet().removeIf(key -> (key >>> 32) == id);
+        }
+
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(Paths.get(directory, id + SEGMENT_EXTENSION));
+        } catch (IOException e) {
+            System.err.println("Error removing segment " + id);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts the compaction of a segment if it is full and mostly unused.
+     * @param segment the segment
+     */
+    private void checkCompaction(Segment segment) {
+        if (segment == active || segment.compacting || segment.live >= segment.size * COMPACTION_THRESHOLD)
+            return;
+
+        segment.compacting = true;
+        compaction.execute(() -> {
+            try {
+                compactor.compact(segment.id);
+            } catch (RuntimeException e) {
+                System.err.println("Error compacting segment " + segment.id);
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Creates a new segment file.
+     * @return the segment
+     * @throws IOException when the file cannot be created
+     */
+    private Segment createSegment() throws IOException {
+        int id = nextId++;
+        FileChannel channel = FileChannel.open(Paths.get(directory, id + SEGMENT_EXTENSION),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, channel, channel.size());
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Closes the segment files (when the peer leaves).
+     */
+    public synchronized void close() {
+        compaction.shutdownNow();
+        synchronized (mappings) {
+            mappings.clear();
+        }
+        for (Segment segment : segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing segment " + segment.id);
+                e.printStackTrace();
+            }
+        }
+        segments.clear();
+        active = null;
+    }
+
+    /**
+     * Retrieves the metrics of the store.
+     * @return line with the metrics
+     */
+    public synchronized String state() {
+        long size = 0, live = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size;
+            live += segment.live;
+        }
+        long hits, misses, mapped;
+        synchronized (mappings) {
+            hits = mapHits;
+            misses = mapMisses;
+            mapped = mappings.size();
+        }
+        long requests, forced;
+        synchronized (forceLock) {
+            requests = synced;
+            forced = forces;
+        }
+        return "Chunk store: " + segments.size() + " segments, " + size / 1000 + " KB written, " + live / 1000 + " KB in use, "
+                + mapped + " windows mapped (" + hits + " hits, " + misses + " misses), " + requests + " syncs in " + forced + " forces\n";
+    }
+}
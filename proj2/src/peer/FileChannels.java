@@ -0,0 +1,235 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Cache of the asynchronous file channels opened by the peer, so that a file read or written by several tasks is
+ * only opened once, and the number of open files stays bounded. Channels are handed out inside a Handle, which
+ * must be closed when it is no longer used; at most MAX_OPEN channels that are not in use are kept open (the
+ * least recently used are closed first). All the channels run their completion handlers on the same pool of
+ * IO_THREADS threads, instead of each channel starting its own.
+ */
+public class FileChannels {
+    /**
+     * Reference to an open channel; closing it releases the reference (the channel may stay open in the cache).
+     */
+    public class Handle implements AutoCloseable {
+        private final Entry entry;
+        private boolean closed = false;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Retrieves the channel; must not be used after the handle is closed.
+         * @return the channel
+         */
+        public AsynchronousFileChannel getChannel() {
+            return entry.channel;
+        }
+
+        @Override
+        public void close() {
+            synchronized (FileChannels.this) {
+                if (closed)
+                    return;
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Channel in the cache.
+     */
+    private static class Entry {
+        final String key;
+        final AsynchronousFileChannel channel;
+        final Object fileKey;       // identity of the file (inode), to find out if the path now points to another file
+        int references = 0;
+        boolean removed = false;    // no longer in the cache; closed when its last reference is released
+
+        Entry(String key, AsynchronousFileChannel channel, Object fileKey) {
+            this.key = key;
+            this.channel = channel;
+            this.fileKey = fileKey;
+        }
+    }
+
+    private static final int MAX_OPEN = Integer.getInteger("peer.io.openFiles", 64);    /** channels not in use kept open (-Dpeer.io.openFiles) */
+    private static final int IO_THREADS = Integer.getInteger("peer.io.threads", 2);     /** threads of the channels; about one or two per disk (-Dpeer.io.threads) */
+
+    /**
+     * Cache shared by the whole peer.
+     */
+    private static final FileChannels shared = new FileChannels();
+
+    /**
+     * Threads that run the completion handlers of all the channels.
+     */
+    private final ExecutorService executor = Executors.newFixedThreadPool(IO_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "file-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Open channels, the least recently used first.
+     * key = path of the file and options it was opened with
+     * value = the channel
+     */
+    private final LinkedHashMap<String, Entry> channels = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits = 0;          /** handles given with a channel that was already open */
+    private long misses = 0;        /** handles that needed the file to be opened */
+    private long evictions = 0;     /** channels closed to keep the cache bounded */
+
+    /**
+     * Retrieves the cache shared by the whole peer.
+     * @return the cache
+     */
+    public static FileChannels getShared() {
+        return shared;
+    }
+
+    /**
+     * Gives a handle to a channel of a file, opening it if it is not open with the same options.
+     * @param path path of the file
+     * @param options options to open the file with
+     * @return the handle, to be closed when the channel is no longer used
+     * @throws IOException when the file cannot be opened
+     */
+    public synchronized Handle open(Path path, OpenOption... options) throws IOException {
+        String key = path.toAbsolutePath().normalize() + " " + Arrays.toString(options);
+        Entry entry = channels.get(key);
+
+        // the path may now be another file (replaced since it was opened)
+        if (entry != null && !Objects.equals(entry.fileKey, fileKey(path))) {
+            this.remove(entry);
+            entry = null;
+        }
+
+        if (entry == null) {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, new HashSet<>(Arrays.asList(options)), executor);
+            entry = new Entry(key, channel, fileKey(path));
+            channels.put(key, entry);
+            misses++;
+            this.evict();
+        } else {
+            hits++;
+        }
+
+        entry.references++;
+        return new Handle(entry);
+    }
+
+    /**
+     * Closes the channels of a file (for example, before it is deleted).
+     * @param path path of the file
+     */
+    public synchronized void invalidate(Path path) {
+        String prefix = path.toAbsolutePath().normalize() + " ";
+        for (Entry entry : channels.values().toArray(new Entry[0]))
+            if (entry.key.startsWith(prefix))
+                this.remove(entry);
+    }
+
+    /**
+     * Closes every channel (when the peer leaves); the ones in use are closed when they are released.
+     */
+    public synchronized void closeAll() {
+        for (Entry entry : channels.values().toArray(new Entry[0]))
+            this.remove(entry);
+    }
+
+    /**
+     * Releases a reference to a channel, closing it if it is no longer in the cache.
+     * @param entry the channel
+     */
+    private void release(Entry entry) {
+        entry.references--;
+        if (entry.references == 0) {
+            if (entry.removed)
+                close(entry);
+            else
+                this.evict();
+        }
+    }
+
+    /**
+     * Removes a channel from the cache; it is closed now, or when its last reference is released.
+     * @param entry the channel
+     */
+    private void remove(Entry entry) {
+        channels.remove(entry.key);
+        entry.removed = true;
+        if (entry.references == 0)
+            close(entry);
+    }
+
+    /**
+     * Closes the least recently used channels that are not in use, while there are more than MAX_OPEN.
+     */
+    private void evict() {
+        int idle = 0;
+        for (Entry entry : channels.values())
+            if (entry.references == 0)
+                idle++;
+
+        Iterator<Entry> iterator = channels.values().iterator();
+        while (idle > MAX_OPEN && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.references > 0)
+                continue;
+            iterator.remove();
+            entry.removed = true;
+            close(entry);
+            evictions++;
+            idle--;
+        }
+    }
+
+    private static void close(Entry entry) {
+        try {
+            entry.channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing " + entry.key);
+            e.printStackTrace();
+        }
+    }
+
+    private static Object fileKey(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the metrics of the cache.
+     * @return line with the metrics
+     */
+    public synchronized String state() {
+        int inUse = 0;
+        for (Entry entry : channels.values())
+            if (entry.references > 0)
+                inUse++;
+        return "File channels: " + channels.size() + " open (" + inUse + " in use), " + hits + " hits, " + misses
+                + " misses, " + evictions + " evictions\n";
+    }
+}
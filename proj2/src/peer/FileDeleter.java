@@ -1,5 +1,6 @@
 package peer;
 
+import peer.chord.ChordId;
 import peer.jsse.SenderThread;
 import peer.messages.Message;
 
@@ -20,7 +21,7 @@ public class FileDeleter implements Serializable {
     /**
      * id of the peer we want to send messages to
      */
-    private final int peerId;
+    private final ChordId peerId;
 
     /**
      * Stores the messages that are supposed to be sent to the peer, organized by file identifier.
@@ -33,7 +34,7 @@ public class FileDeleter implements Serializable {
      * Empty constructor of the file deleter.
      */
     public FileDeleter() {
-        this.peerId = -1;
+        this.peerId = null;
         this.fileToDeletes = new ConcurrentHashMap<>();
     }
 
@@ -41,7 +42,7 @@ public class FileDeleter implements Serializable {
      * Regular constructor of the file deleter.
      * @param peerId id of the peer we want to send the delete
      */
-    public FileDeleter(int peerId) {
+    public FileDeleter(ChordId peerId) {
         this.peerId = peerId;
         this.fileToDeletes = new ConcurrentHashMap<>();
     }
@@ -74,7 +75,7 @@ public class FileDeleter implements Serializable {
     /**
      * @return the id of the peer who still has files to delete
      */
-    public int getPeerId() {
+    public ChordId getPeerId() {
         return peerId;
     }
 }
@@ -1,9 +1,11 @@
 package peer;
 
+import peer.chord.ChordId;
 import peer.messages.Header;
 
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.io.*;
@@ -13,7 +15,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.concurrent.Future;
 
 /**
  * Class that manages the storage and lookup of local files.
@@ -23,10 +24,26 @@ public class FileManager {
     private final static String highestChunksInfo = "highest_chunks.data";               /** name of the file containing the highest chunks info */
     private final static String hashBackedUpFilesInfo = "hash_backed_up_files.data";     /** name of the file containing the hash of the backed up files */
     private final static String fileOwnerInfo = "file_owner_info.data";                  /** name of the file containing information about the owner of the files */
+    private final static String chunkLocationsInfo = "chunk_locations.data";             /** name of the file containing the location of the chunks in the segments */
+    private final static String metadataLogInfo = "file_manager.log";                   /** name of the file containing the changes made after the tables were saved */
+    public final static int DEFAULT_STORAGE_SPACE = 100000;                               /** default maximum storage space (100 MB), in KB */
+
+    // types of the records of the metadata log
+    private final static byte ADD_FILE_OWNER = 1;
+    private final static byte REMOVE_FILE_OWNER = 2;
+    private final static byte INSERT_HASH = 3;
+    private final static byte DELETE_HASH = 4;
+    private final static byte SET_MAX_CHUNK = 5;
+    private final static byte DELETE_MAX_CHUNK = 6;
+    private final static byte ADD_CHUNK = 7;
+    private final static byte REMOVE_CHUNK = 8;
+    private final static byte REMOVE_FILE = 9;
+    private final static byte ADD_CHUNK_AT = 10;
+    private final static byte MOVE_CHUNK = 11;
 
     private int availableStorageSpace;     /** Stores the available storage space, in KB */
     private int maximumStorageSpace;       /** Stores the maximum available storage space, in KB */
-    private final int peerId;              /** The ID of the peer of which files are being managed */
+    private final ChordId peerId;              /** The ID of the peer of which files are being managed */
 
 
     /**
@@ -67,17 +84,40 @@ public class FileManager {
      */
     private ConcurrentHashMap<String, AddressRecord> fileOwnerTable;
 
+    /**
+     * Stores where the content of each chunk is in the segment files.
+     * key = fileID_chunkNo (identifier of the chunk)
+     * value = segment, offset and length of the chunk
+     * Chunks stored before the segment files were used have no location, and are in a file of their own.
+     */
+    private ConcurrentHashMap<String, ChunkStore.Location> chunkLocations;
+
+    /**
+     * Segment files with the content of the chunks.
+     */
+    private final ChunkStore chunkStore;
+
+    /**
+     * Log of the changes made to the tables since they were last saved.
+     */
+    private final MetadataLog log;
+
     /**
      * Constructor of the file manager.
      * @param peerId The ID of the peer of which files are going to be managed
      */
-    public FileManager(int peerId) {
+    public FileManager(ChordId peerId) {
         this.peerId = peerId;
-        this.maximumStorageSpace = 100000; // 100 MB of storage for each peer
+        this.maximumStorageSpace = Integer.getInteger("peer.storage", DEFAULT_STORAGE_SPACE); // in KB (-Dpeer.storage)
         this.availableStorageSpace = this.maximumStorageSpace;
         this.createDirectory("chunks");
         this.createDirectory("files");
         this.loadFromDirectory();
+        this.log = new MetadataLog(this.getDirectoryPath("chunks"), metadataLogInfo, this::saveToDirectory);
+        this.log.replay(this::replayRecord);
+        this.chunkStore = new ChunkStore(this.getDirectoryPath("chunks"), this::compactSegment);
+        this.chunkStore.open(this.chunkLocations.values());
+        this.loadChunkSizes();
     }
 
     /**
@@ -96,8 +136,15 @@ public class FileManager {
      * @param port Port number
      */
     public void addFileOwner(String fileId, String ipAddress, int port) {
-        this.fileOwnerTable.put(fileId, new AddressRecord(ipAddress, port));
-        this.saveToDirectory();
+        this.log.update(() -> {
+            this.fileOwnerTable.put(fileId, new AddressRecord(ipAddress, port));
+            return out -> {
+                out.writeByte(ADD_FILE_OWNER);
+                out.writeUTF(fileId);
+                out.writeUTF(ipAddress);
+                out.writeInt(port);
+            };
+        });
     }
 
     /**
@@ -105,8 +152,14 @@ public class FileManager {
      * @param fileId id of the file
      */
     public void removeFileOwner(String fileId) {
-        this.fileOwnerTable.remove(fileId);
-        this.saveToDirectory();
+        this.log.update(() -> {
+            if (this.fileOwnerTable.remove(fileId) == null)
+                return null;
+            return out -> {
+                out.writeByte(REMOVE_FILE_OWNER);
+                out.writeUTF(fileId);
+            };
+        });
     }
 
     /**
@@ -144,6 +197,22 @@ public class FileManager {
         }
     }
 
+    /**
+     * Get method for the log of the changes made to the tables.
+     * @return the metadata log
+     */
+    public MetadataLog getMetadataLog() {
+        return log;
+    }
+
+    /**
+     * Get method for the segment files with the content of the chunks.
+     * @return the chunk store
+     */
+    public ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
     /**
      * Returns information of the backed up files.
      * @return a set of entries with that information
@@ -184,52 +253,85 @@ public class FileManager {
      * @return true if successful, false if otherwise
      */
     public boolean storeChunk(String fileId, int chunkNo, byte[] chunkContent) throws IOException {
+        return this.storeChunk(fileId, chunkNo, ByteBuffer.wrap(chunkContent));
+    }
+
+    /**
+     * Stores a chunk in the storage directory, appending the content straight from the buffer it is in to the
+     * current segment file.
+     * @param fileId The ID of the file
+     * @param chunkNo The number of the chunk
+     * @param chunkContent Buffer with the chunk's content, between its position and its limit
+     * @return true if successful, false if otherwise
+     */
+    public boolean storeChunk(String fileId, int chunkNo, ByteBuffer chunkContent) throws IOException {
+       int chunkSize = chunkContent.remaining() / 1000;
+       if (chunkSize == 0)
+           chunkSize = 1;
+
        synchronized (this) {
            if (this.isChunkStored(fileId, chunkNo)) {
                return true;
            }
-           int chunkSize = chunkContent.length / 1000;
-           if (chunkSize == 0)
-               chunkSize = 1;
 
            // log storage
            if (this.availableStorageSpace < chunkSize) {
                return false;
            }
+       }
 
-           this.availableStorageSpace -= chunkSize;
-           this.addChunkStored(fileId, chunkNo);
-           this.chunkSizes.put(fileId + "_" + chunkNo, chunkSize);
+       // positional write; done before returning, since the buffer may be reused afterwards
+       ChunkStore.Location location = this.chunkStore.append(chunkContent);
+
+       // the content is on the disk before the chunk is recorded (and STORED is sent)
+       try {
+           this.chunkStore.sync();
+       } catch (IOException e) {
+           this.chunkStore.free(location);
+           throw e;
        }
 
-       String chunkPath = getChunkPath(fileId, chunkNo);
-       File chunk = new File(chunkPath);
-       chunk.createNewFile();
-       AsynchronousFileChannel fileChannel =
-               AsynchronousFileChannel.open(Paths.get(chunkPath), StandardOpenOption.WRITE);
+       // the record of the chunk is written after its content
+       long sequence;
+       synchronized (this) {
+           if (this.isChunkStored(fileId, chunkNo) || this.availableStorageSpace < chunkSize) {
+               // stored (or space taken) by another thread meanwhile
+               this.chunkStore.free(location);
+               return this.isChunkStored(fileId, chunkNo);
+           }
 
-       ByteBuffer buffer = ByteBuffer.allocate(chunkContent.length);
-       buffer.put(chunkContent);
-       buffer.flip();
-       fileChannel.write(buffer, 0);
-       buffer.clear();
+           this.availableStorageSpace -= chunkSize;
+           sequence = this.addChunkStored(fileId, chunkNo, location);
+           this.chunkSizes.put(fileId + "_" + chunkNo, chunkSize);
+       }
 
+       this.log.commit(sequence);
        return true;
     }
 
     /**
-     * Returns the content of a file's chunk.
-     * @param buf Byte buffer that will have the chunk content
+     * Returns the content of a file's chunk, as a part of a memory mapping of the file it is in (not copied).
      * @param fileId The ID of the file
      * @param chunkNo The number of the chunk
-     * @return A string with the chunk's content
-     */
-    public Future<Integer> getChunk(ByteBuffer buf, String fileId, int chunkNo) throws IOException {
-        String chunkPath = getChunkPath(fileId, chunkNo);
-        AsynchronousFileChannel fileChannel =
-                AsynchronousFileChannel.open(Paths.get(chunkPath), StandardOpenOption.READ);
+     * @return A read-only buffer with the chunk's content
+     * @throws IOException when the chunk is not stored or cannot be read
+     */
+    public ByteBuffer getChunk(String fileId, int chunkNo) throws IOException {
+        // mapped from the segment; tried again if the chunk was moved by a compaction meanwhile
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ChunkStore.Location location = this.chunkLocations.get(fileId + "_" + chunkNo);
+            if (location == null)
+                break;
+            ByteBuffer content = this.chunkStore.map(location);
+            if (content != null)
+                return content;
+        }
 
-        return fileChannel.read(buf, 0);
+        // chunk stored in a file of its own; the mapping stays valid after the channel is closed
+        String chunkPath = getChunkPath(fileId, chunkNo);
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(chunkPath), StandardOpenOption.READ)) {
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size()).asReadOnlyBuffer();
+        }
     }
 
 
@@ -257,8 +359,14 @@ public class FileManager {
      */
     public String insertHashForFile(String filepath, String modificationDate) throws NoSuchAlgorithmException {
         String fileID = Header.encodeFileId(filepath + modificationDate);
-        this.hashBackedUpFiles.put(filepath, fileID);
-        this.saveToDirectory();
+        this.log.update(() -> {
+            this.hashBackedUpFiles.put(filepath, fileID);
+            return out -> {
+                out.writeByte(INSERT_HASH);
+                out.writeUTF(filepath);
+                out.writeUTF(fileID);
+            };
+        });
         return fileID;
     }
 
@@ -276,8 +384,7 @@ public class FileManager {
      * @param filepath The file path
      */
     public void deleteHashForFile(String filepath) {
-        this.hashBackedUpFiles.remove(filepath);
-        this.saveToDirectory();
+        this.log.update(() -> this.hashBackedUpFiles.remove(filepath) == null ? null : deleteHashRecord(filepath));
     }
 
     /**
@@ -288,11 +395,22 @@ public class FileManager {
         String filePath = this.hashBackedUpFiles.search(1, (key, value) -> value.equals(fileId) ? key : null);
 
         if(filePath != null) {
-            this.hashBackedUpFiles.remove(filePath);
-            this.saveToDirectory();
+            this.log.update(() -> this.hashBackedUpFiles.remove(filePath) == null ? null : deleteHashRecord(filePath));
         }
     }
 
+    /**
+     * Record of the metadata log for the removal of the file ID of a file path.
+     * @param filepath The file path
+     * @return The record
+     */
+    private static MetadataLog.Record deleteHashRecord(String filepath) {
+        return out -> {
+            out.writeByte(DELETE_HASH);
+            out.writeUTF(filepath);
+        };
+    }
+
     /**
      * Returns the path to the peer's storage directory.
      * @return A string containing the path
@@ -318,8 +436,17 @@ public class FileManager {
      * @param chunkNo The number of the chunk
      */
     public void setMaxChunkNo(String fileId, int chunkNo) {
-        this.highestChunks.compute(fileId, (key, value) -> (value == null || chunkNo > value) ? chunkNo : value);
-        saveToDirectory();
+        this.log.update(() -> {
+            Integer previous = this.highestChunks.get(fileId);
+            if (previous != null && previous >= chunkNo)
+                return null;
+            this.highestChunks.merge(fileId, chunkNo, Math::max);
+            return out -> {
+                out.writeByte(SET_MAX_CHUNK);
+                out.writeUTF(fileId);
+                out.writeInt(chunkNo);
+            };
+        });
     }
 
     /**
@@ -350,8 +477,14 @@ public class FileManager {
      * @param fileId The ID of the file
      */
     public void deleteMaxChunkNo(String fileId) {
-        this.highestChunks.remove(fileId);
-        saveToDirectory();
+        this.log.update(() -> {
+            if (this.highestChunks.remove(fileId) == null)
+                return null;
+            return out -> {
+                out.writeByte(DELETE_MAX_CHUNK);
+                out.writeUTF(fileId);
+            };
+        });
     }
 
     /**
@@ -380,17 +513,31 @@ public class FileManager {
      * @throws IOException
      */
     public boolean removeChunk(String fileId, int chunkNo) throws IOException {
-        if (!this.removeChunkStored(fileId, chunkNo)) {
+        // the record is written before the content is deleted
+        ChunkStore.Location[] location = new ChunkStore.Location[1];
+        long sequence = this.log.append(() -> {
+            if (!this.removeChunkStored(fileId, chunkNo))
+                return null;
+            location[0] = this.chunkLocations.remove(fileId + "_" + chunkNo);
+            return out -> {
+                out.writeByte(REMOVE_CHUNK);
+                out.writeUTF(fileId);
+                out.writeInt(chunkNo);
+            };
+        });
+        if (sequence == 0) {
             return false;
         }
+        this.log.commit(sequence);
 
-        String chunkPath = getChunkPath(fileId, chunkNo);
-        Files.deleteIfExists(Paths.get(chunkPath));
-
-        ConcurrentSkipListSet<Integer> chunks = this.fileToChunks.get(fileId);
+        if (location[0] != null) {
+            this.chunkStore.free(location[0]);
+        } else {
+            String chunkPath = getChunkPath(fileId, chunkNo);
+            Files.deleteIfExists(Paths.get(chunkPath));
+        }
 
-        if (chunks.size() == 0) {
-            this.fileToChunks.remove(fileId);
+        if (!this.fileToChunks.containsKey(fileId)) {
             this.removeFileOwner(fileId);
         }
 
@@ -400,8 +547,6 @@ public class FileManager {
 
         this.chunkSizes.remove(fileId + "_" + chunkNo);
 
-        this.saveToDirectory();
-
         return true;
     }
 
@@ -411,10 +556,14 @@ public class FileManager {
      */
     public void removeFile(String fileId) {
         this.deleteFileForHash(fileId);
-        this.fileToChunks.remove(fileId);
-        this.highestChunks.remove(fileId);
-
-        saveToDirectory();
+        this.log.update(() -> {
+            this.fileToChunks.remove(fileId);
+            this.highestChunks.remove(fileId);
+            return out -> {
+                out.writeByte(REMOVE_FILE);
+                out.writeUTF(fileId);
+            };
+        });
     }
 
 
@@ -463,23 +612,98 @@ public class FileManager {
      * Adds information that a chunk of a file was stored.
      * @param fileId The ID of the file
      * @param chunkNo The number of the chunk
-     */
-    private void addChunkStored(String fileId, int chunkNo) {
-        ConcurrentSkipListSet<Integer> chunks = this.fileToChunks.computeIfAbsent(fileId, value -> new ConcurrentSkipListSet<>());
-        chunks.add(chunkNo);
+     * @return The number of the record of the metadata log, to be committed once the chunk is written
+     */
+    private long addChunkStored(String fileId, int chunkNo, ChunkStore.Location location) {
+        return this.log.append(() -> {
+            ConcurrentSkipListSet<Integer> chunks = this.fileToChunks.computeIfAbsent(fileId, value -> new ConcurrentSkipListSet<>());
+            chunks.add(chunkNo);
+            this.chunkLocations.put(fileId + "_" + chunkNo, location);
+            return out -> {
+                out.writeByte(ADD_CHUNK_AT);
+                out.writeUTF(fileId);
+                out.writeInt(chunkNo);
+                writeLocation(out, location);
+            };
+        });
+    }
+
+    /**
+     * Moves the chunks still in use out of a segment file and then removes the segment (compaction, called by the
+     * chunk store). Each move is recorded in the metadata log before the segment is removed.
+     * @param segment The id of the segment
+     */
+    private void compactSegment(int segment) {
+        for (Map.Entry<String, ChunkStore.Location> entry : this.chunkLocations.entrySet()) {
+            ChunkStore.Location from = entry.getValue();
+            if (from.getSegment() != segment)
+                continue;
+
+            String chunk = entry.getKey();
+            ChunkStore.Location to;
+            try {
+                to = this.chunkStore.copy(from);
+                this.chunkStore.sync();
+            } catch (IOException e) {
+                System.err.println("Error moving chunk " + chunk + " out of segment " + segment);
+                e.printStackTrace();
+                continue;
+            }
 
-        saveToDirectory();
+            // the chunk may have been removed meanwhile
+            long sequence = this.log.append(() -> {
+                if (!this.chunkLocations.replace(chunk, from, to))
+                    return null;
+                return out -> {
+                    out.writeByte(MOVE_CHUNK);
+                    out.writeUTF(chunk);
+                    writeLocation(out, to);
+                };
+            });
+            if (sequence == 0) {
+                this.chunkStore.free(to);
+                continue;
+            }
+            try {
+                this.log.commit(sequence);
+            } catch (IOException e) {
+                // the move is not on the disk yet, so the segment is kept (removeSegment() sees it still in use)
+                System.err.println("Error recording the move of chunk " + chunk + " out of segment " + segment);
+                e.printStackTrace();
+                break;
+            }
+            this.chunkStore.free(from);
+        }
+
+        this.chunkStore.removeSegment(segment);
+    }
+
+    private static void writeLocation(DataOutputStream out, ChunkStore.Location location) throws IOException {
+        out.writeInt(location.getSegment());
+        out.writeLong(location.getOffset());
+        out.writeInt(location.getLength());
+    }
+
+    private static ChunkStore.Location readLocation(DataInputStream in) throws IOException {
+        int segment = in.readInt();
+        long offset = in.readLong();
+        return new ChunkStore.Location(segment, offset, in.readInt());
     }
 
     /**
-     * Removes information that a chunk of a file was stored.
+     * Removes information that a chunk of a file was stored; the file is removed when it has no more chunks.
      * @param fileId The ID of the file
      * @param chunkNo The number of the chunk
      * @return true if any elements were removed
      */
     private boolean removeChunkStored(String fileId, int chunkNo) {
         ConcurrentSkipListSet<Integer> chunks = this.fileToChunks.getOrDefault(fileId, new ConcurrentSkipListSet<>());
-        return chunks.removeIf(elem -> elem == chunkNo);
+        if (!chunks.removeIf(elem -> elem == chunkNo))
+            return false;
+
+        if (chunks.isEmpty())
+            this.fileToChunks.remove(fileId, chunks);
+        return true;
     }
 
     /**
@@ -542,15 +766,97 @@ public class FileManager {
             this.fileOwnerTable = new ConcurrentHashMap<>();
         }
 
-        // Loading chunk sizes table
+        // Loading chunk locations table
+        try {
+            FileInputStream chunkLocationsFileIn = new FileInputStream(this.getDirectoryPath("chunks") + chunkLocationsInfo);
+            ObjectInputStream chunkLocationsObjIn = new ObjectInputStream(chunkLocationsFileIn);
+            @SuppressWarnings("unchecked")
+            ConcurrentHashMap<String, ChunkStore.Location> locations = (ConcurrentHashMap<String, ChunkStore.Location>) chunkLocationsObjIn.readObject();
+            this.chunkLocations = locations;
+            chunkLocationsObjIn.close();
+            chunkLocationsFileIn.close();
+        } catch (Exception e) {
+            this.chunkLocations = new ConcurrentHashMap<>();
+        }
+
+    }
+
+    /**
+     * Applies a record of the metadata log to the tables (when the peer starts).
+     * @param in Data of the record
+     * @throws IOException when the record cannot be read
+     */
+    private void replayRecord(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String fileId;
+        int chunkNo;
+        switch (type) {
+            case ADD_FILE_OWNER:
+                fileId = in.readUTF();
+                String ipAddress = in.readUTF();
+                this.fileOwnerTable.put(fileId, new AddressRecord(ipAddress, in.readInt()));
+                break;
+            case REMOVE_FILE_OWNER:
+                this.fileOwnerTable.remove(in.readUTF());
+                break;
+            case INSERT_HASH:
+                String filepath = in.readUTF();
+                this.hashBackedUpFiles.put(filepath, in.readUTF());
+                break;
+            case DELETE_HASH:
+                this.hashBackedUpFiles.remove(in.readUTF());
+                break;
+            case SET_MAX_CHUNK:
+                fileId = in.readUTF();
+                this.highestChunks.merge(fileId, in.readInt(), Math::max);
+                break;
+            case DELETE_MAX_CHUNK:
+                this.highestChunks.remove(in.readUTF());
+                break;
+            case ADD_CHUNK:
+                fileId = in.readUTF();
+                this.fileToChunks.computeIfAbsent(fileId, value -> new ConcurrentSkipListSet<>()).add(in.readInt());
+                break;
+            case ADD_CHUNK_AT:
+                fileId = in.readUTF();
+                chunkNo = in.readInt();
+                this.fileToChunks.computeIfAbsent(fileId, value -> new ConcurrentSkipListSet<>()).add(chunkNo);
+                this.chunkLocations.put(fileId + "_" + chunkNo, readLocation(in));
+                break;
+            case MOVE_CHUNK:
+                String chunk = in.readUTF();
+                this.chunkLocations.put(chunk, readLocation(in));
+                break;
+            case REMOVE_CHUNK:
+                fileId = in.readUTF();
+                chunkNo = in.readInt();
+                this.removeChunkStored(fileId, chunkNo);
+                this.chunkLocations.remove(fileId + "_" + chunkNo);
+                break;
+            case REMOVE_FILE:
+                fileId = in.readUTF();
+                this.fileToChunks.remove(fileId);
+                this.highestChunks.remove(fileId);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    /**
+     * Fills the chunk sizes table with the sizes of the chunks, from their locations in the segments (or from the
+     * files of the chunks stored before the segments were used).
+     */
+    private void loadChunkSizes() {
         this.chunkSizes = new ConcurrentHashMap<>();
         for (Map.Entry<String, ConcurrentSkipListSet<Integer>> entry : this.fileToChunks.entrySet()) {
             String fileID = entry.getKey();
             for (int chunkNo : entry.getValue()) {
                 String filename = fileID + "_" + chunkNo;
-                File chunk = new File(this.getDirectoryPath("chunks") + filename);
-                if (chunk.exists()) {
-                    int size = (int) chunk.length() / 1000;
+                ChunkStore.Location location = this.chunkLocations.get(filename);
+                File chunk = location == null ? new File(this.getDirectoryPath("chunks") + filename) : null;
+                if (location != null || chunk.exists()) {
+                    int size = (int) (location != null ? location.getLength() : chunk.length()) / 1000;
                     if (size == 0)
                         size = 1;
 
@@ -562,44 +868,32 @@ public class FileManager {
     }
 
     /**
-     * Writes to files in the directory to save the information present on the tables.
+     * Writes to files in the directory to save the information present on the tables (snapshot of the metadata
+     * log). Each table is written to a temporary file first, which then replaces the old one.
+     * @throws IOException when a table cannot be saved
      */
-    synchronized private void saveToDirectory() {
+    private void saveToDirectory() throws IOException {
+        this.saveTable(this.highestChunks, highestChunksInfo);
+        this.saveTable(this.fileToChunks, fileToChunksInfo);
+        this.saveTable(this.hashBackedUpFiles, hashBackedUpFilesInfo);
+        this.saveTable(this.fileOwnerTable, fileOwnerInfo);
+        this.saveTable(this.chunkLocations, chunkLocationsInfo);
+    }
 
-        // Saving highest chunks table
-        try {
-            FileOutputStream highestChunksFileOut = new FileOutputStream(this.getDirectoryPath("chunks") + highestChunksInfo);
-            ObjectOutputStream highestChunksObjOut = new ObjectOutputStream(highestChunksFileOut);
-            highestChunksObjOut.writeObject(this.highestChunks);
-            highestChunksObjOut.close();
-            highestChunksFileOut.close();
-        } catch (Exception ignore) { }
-
-        // Saving file to chunks table
-        try {
-            FileOutputStream fileToChunkFileOut = new FileOutputStream(this.getDirectoryPath("chunks") + fileToChunksInfo);
-            ObjectOutputStream fileToChunkObjOut = new ObjectOutputStream(fileToChunkFileOut);
-            fileToChunkObjOut.writeObject(this.fileToChunks);
-            fileToChunkObjOut.close();
-            fileToChunkFileOut.close();
-        } catch (Exception ignore) { }
-
-        // Saving hash backed up files table
-        try {
-            FileOutputStream hashBackedUpFilesFileOut = new FileOutputStream(this.getDirectoryPath("chunks") + hashBackedUpFilesInfo);
-            ObjectOutputStream hashBackedUpFilesObjOut = new ObjectOutputStream(hashBackedUpFilesFileOut);
-            hashBackedUpFilesObjOut.writeObject(this.hashBackedUpFiles);
-            hashBackedUpFilesObjOut.close();
-            hashBackedUpFilesFileOut.close();
-        } catch (Exception ignore) { }
-
-        // Saving file owner list
-        try {
-            FileOutputStream fileOwnFileOut = new FileOutputStream(this.getDirectoryPath("chunks") + fileOwnerInfo);
-            ObjectOutputStream fileOwnObjOut = new ObjectOutputStream(fileOwnFileOut);
-            fileOwnObjOut.writeObject(this.fileOwnerTable);
-            fileOwnObjOut.close();
-            fileOwnFileOut.close();
-        } catch (Exception ignore) {}
+    /**
+     * Writes a table to a file in the directory.
+     * @param table The table
+     * @param filename Name of the file
+     * @throws IOException when the table cannot be saved
+     */
+    private void saveTable(Object table, String filename) throws IOException {
+        String path = this.getDirectoryPath("chunks") + filename;
+        try (FileOutputStream fileOut = new FileOutputStream(path + ".tmp");
+             ObjectOutputStream objOut = new ObjectOutputStream(fileOut)) {
+            objOut.writeObject(table);
+            objOut.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(Paths.get(path + ".tmp"), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 }
@@ -0,0 +1,299 @@
+package peer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the tables of a manager (FileManager, ChunkManager), so that each change
+ * writes one small record instead of serializing every table again. Each record is written as
+ * [length][CRC32 of the data][data].
+ *
+ * The records added at the same time by several threads are written and forced to the disk together (group
+ * commit): the first thread to commit writes every pending record, and the others find theirs already written.
+ * When the log grows past SNAPSHOT_SIZE, the manager saves its tables in full (snapshot) and the log is emptied.
+ * On startup, the manager loads its snapshot and the records of the log are applied on top of it; a record that
+ * is incomplete or has a wrong checksum (written when the peer crashed) ends the log.
+ *
+ * The records must be idempotent (put, remove, max...), since the records written while a snapshot is taken may
+ * be applied again on a snapshot that already has them.
+ */
+public class MetadataLog {
+    /**
+     * Writes the data of a record.
+     */
+    public interface Record {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Change to the tables of the manager; returns the record that describes it, or null if nothing changed.
+     */
+    public interface Mutation {
+        Record apply();
+    }
+
+    /**
+     * Saves the tables of the manager in full.
+     */
+    public interface Snapshot {
+        void save() throws IOException;
+    }
+
+    /**
+     * Applies the data of a record read from the log to the tables of the manager.
+     */
+    public interface Replayer {
+        void replay(DataInputStream in) throws IOException;
+    }
+
+    private static final long SNAPSHOT_SIZE = Long.getLong("peer.metadata.snapshotSize", 1 << 20);  /** size (in bytes) of the log after which a snapshot is taken */
+    private static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("peer.metadata.fsync", "true"));  /** true if each commit is forced to the disk */
+    private static final int RECORD_HEADER = 2 * Integer.BYTES;                                    /** length and checksum of a record */
+
+    private final Path path;                        /** path of the log file */
+    private final Snapshot snapshot;                /** saves the tables of the manager in full */
+    private FileChannel channel;                    /** channel of the log file */
+    private long size;                              /** size (in bytes) of the valid records of the log */
+    private long snapshotSize = SNAPSHOT_SIZE;      /** size of the log at which the next snapshot is taken (raised after a failed one) */
+
+    private final Object appendLock = new Object(); /** lock of the order of the records (and of the pending records) */
+    private final Object commitLock = new Object(); /** lock of the writes to the file */
+    private List<byte[]> pending = new ArrayList<>();  /** records added but not written yet */
+    private long appended = 0;                      /** number of records added */
+    private long committed = 0;                     /** number of records written */
+
+    private long commits = 0;                       /** number of writes to the file */
+    private long snapshots = 0;                     /** number of snapshots taken */
+
+    /**
+     * Constructor of the log; the file is created if it does not exist.
+     * @param directory directory of the log file
+     * @param name name of the log file
+     * @param snapshot saves the tables of the manager in full
+     */
+    public MetadataLog(String directory, String name, Snapshot snapshot) {
+        this.path = Paths.get(directory, name);
+        this.snapshot = snapshot;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        } catch (IOException e) {
+            System.err.println("Error opening the metadata log " + path);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies the records of the log, in order, to the tables of the manager (called once, on startup). The log
+     * is cut at the first record that is incomplete or has a wrong checksum.
+     * @param replayer applies each record
+     */
+    public void replay(Replayer replayer) {
+        if (channel == null)
+            return;
+
+        synchronized (commitLock) {
+            long valid = 0;
+            int count = 0;
+            try {
+                ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(path));
+                while (log.remaining() >= RECORD_HEADER) {
+                    int length = log.getInt();
+                    int checksum = log.getInt();
+                    if (length < 0 || length > log.remaining())
+                        break;
+
+                    byte[] data = new byte[length];
+                    log.get(data);
+                    if (checksum(data) != checksum)
+                        break;
+
+                    try {
+                        replayer.replay(new DataInputStream(new ByteArrayInputStream(data)));
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Error applying a record of the metadata log " + path);
+                        e.printStackTrace();
+                    }
+                    valid = log.position();
+                    count++;
+                }
+
+                if (valid < channel.size()) {
+                    System.err.println("Metadata log " + path + " cut after " + count + " records (" + (channel.size() - valid) + " bytes were incomplete)");
+                    channel.truncate(valid);
+                    channel.force(true);
+                }
+                size = valid;
+            } catch (IOException e) {
+                System.err.println("Error reading the metadata log " + path);
+                e.printStackTrace();
+            }
+
+            if (size > snapshotSize)
+                this.takeSnapshot();
+        }
+    }
+
+    /**
+     * Makes a change to the tables of the manager and writes its record to the log, waiting until it is written.
+     * @param mutation the change
+     * @throws UncheckedIOException when the record cannot be written (it stays pending)
+     */
+    public void update(Mutation mutation) {
+        try {
+            this.commit(this.append(mutation));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Makes a change to the tables of the manager and adds its record to the log, without waiting for it to be
+     * written (the caller may be holding a lock). The changes are recorded in the order they are made.
+     * @param mutation the change
+     * @return the number of the record, to be passed to commit(), or 0 if nothing changed
+     */
+    public long append(Mutation mutation) {
+        synchronized (appendLock) {
+            Record record = mutation.apply();
+            if (record == null)
+                return 0;
+
+            pending.add(encode(record));
+            return ++appended;
+        }
+    }
+
+    /**
+     * Waits until a record is written to the log. The first thread to get here writes every pending record.
+     * If the write fails, the records are kept pending (to be written by the next commit) and the error is thrown.
+     * @param sequence the number of the record, as returned by append()
+     * @throws IOException when the records cannot be written
+     */
+    public void commit(long sequence) throws IOException {
+        synchronized (commitLock) {
+            if (committed >= sequence)
+                return;
+
+            List<byte[]> batch;
+            long last;
+            synchronized (appendLock) {
+                batch = pending;
+                pending = new ArrayList<>();
+                last = appended;
+            }
+
+            int length = 0;
+            for (byte[] record : batch)
+                length += record.length;
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            for (byte[] record : batch)
+                buffer.put(record);
+            buffer.flip();
+
+            try {
+                if (channel == null)
+                    throw new IOException("The log is not open");
+                long position = size;
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position);
+                if (FSYNC)
+                    channel.force(false);
+                size = position;
+            } catch (IOException e) {
+                // put the batch back in front of the records added meanwhile; a partial write is overwritten
+                synchronized (appendLock) {
+                    batch.addAll(pending);
+                    pending = batch;
+                }
+                System.err.println("Error writing the metadata log " + path);
+                throw e;
+            }
+
+            committed = last;
+            commits++;
+
+            if (size > snapshotSize)
+                this.takeSnapshot();
+        }
+    }
+
+    /**
+     * Saves the tables of the manager in full and empties the log. Called with the commit lock, so no records are
+     * written meanwhile; the records still pending are written after it, and applied again on the snapshot.
+     * If the snapshot fails, the log is kept, and the next snapshot is only tried after another SNAPSHOT_SIZE bytes
+     * (instead of saving every table again on each commit).
+     */
+    private void takeSnapshot() {
+        try {
+            snapshot.save();
+            channel.truncate(0);
+            channel.force(true);
+            size = 0;
+            snapshotSize = SNAPSHOT_SIZE;
+            snapshots++;
+        } catch (IOException | RuntimeException e) {
+            snapshotSize = size + SNAPSHOT_SIZE;
+            System.err.println("Error taking a snapshot of the metadata log " + path + "; next try after " + snapshotSize + " bytes");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the data of a record with its length and checksum.
+     * @param record the record
+     * @return the bytes of the record, as written to the log
+     */
+    private static byte[] encode(Record record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            record.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] data = bytes.toByteArray();
+        ByteBuffer header = ByteBuffer.wrap(data, 0, RECORD_HEADER);
+        header.putInt(data.length - RECORD_HEADER);
+        header.putInt(checksum(data, RECORD_HEADER, data.length - RECORD_HEADER));
+        return data;
+    }
+
+    private static int checksum(byte[] data) {
+        return checksum(data, 0, data.length);
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Retrieves the metrics of the log.
+     * @return line with the metrics
+     */
+    public String state() {
+        synchronized (commitLock) {
+            long average = commits == 0 ? 0 : committed / commits;
+            return "Metadata log " + path.getFileName() + ": " + committed + " records in " + commits + " commits (" + average
+                    + " per commit), " + size + " bytes, " + snapshots + " snapshots\n";
+        }
+    }
+}
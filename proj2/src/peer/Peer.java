@@ -1,7 +1,11 @@
 package peer;
 
 import link.RemoteInterface;
+import peer.buffers.BufferPool;
+import peer.buffers.SharedBuffer;
+import peer.chord.ChordRingInfo;
 import peer.jsse.ReceiverThread;
+import peer.jsse.SSLContextHolder;
 import peer.jsse.SenderThread;
 import peer.messages.MessageHandler;
 import peer.protocols.Protocol;
@@ -9,14 +13,17 @@ import peer.protocols.Protocol;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -26,6 +33,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class Peer implements RemoteInterface {
     private final static int N_THREADS = 30;               /** number of threads ready for processing packets in each channel */
     public static final int CHUNK_SIZE = 64000;            /** chunk size constant */
+    private final static int MAX_CHUNKS_IN_FLIGHT = 16;    /** maximum number of chunks of a backup read and not sent yet */
+    private final static long CHUNK_TIMEOUT = 60000;       /** maximum time (in milliseconds) a chunk can take to be sent */
+    private final static long LOCATIONS_TIMEOUT = 10000;   /** maximum time (in milliseconds) waiting for the batched lookups of the chunks of a backup */
 
     private final Protocol protocol;           /** protocol responsible for the peer behaviours */
     private final ExecutorService service;     /** ExecutorService responsible for threads */
@@ -43,7 +53,12 @@ public class Peer implements RemoteInterface {
         this.service = Executors.newFixedThreadPool(N_THREADS);
 
         try {
-            ReceiverThread receiverThread = new ReceiverThread(messageHandler, protocol, serverKeys, trustStore, password, N_THREADS);
+            // the SSL contexts are created once, and shared by all connections
+            SSLContextHolder serverContext = new SSLContextHolder(protocol, serverKeys, trustStore, password);
+            SSLContextHolder clientContext = new SSLContextHolder(protocol, clientKeys, trustStore, password);
+            SenderThread.setContextHolder(clientContext);
+
+            ReceiverThread receiverThread = new ReceiverThread(messageHandler, serverContext, N_THREADS);
             receiverThread.addServer(ipAddress, portMC);
             receiverThread.addServer(ipAddress, portMDB);
             receiverThread.addServer(ipAddress, portMDR);
@@ -58,15 +73,11 @@ public class Peer implements RemoteInterface {
         }
 
         SenderThread.setSenderId(this.protocol.getPeerID());
-        SenderThread.setProtocol(protocol);
-        SenderThread.setClientKeys(clientKeys);
-        SenderThread.setTrustStore(trustStore);
-        SenderThread.setPassword(password);
 
         System.out.println("Started all threads...");
 
 
-        this.protocol.getChord().createOrJoin(initIpAddress, initPort);
+        this.protocol.joinRing(initIpAddress, initPort);
 
         System.out.println("Starting chord ring creation/joining...");
     }
@@ -90,10 +101,10 @@ public class Peer implements RemoteInterface {
                 return;
             }
 
-            AsynchronousFileChannel fileChannel;
-
+            // the channel comes from the shared cache, and is released at the end of the backup
+            FileChannels.Handle fileHandle;
             try {
-                fileChannel = AsynchronousFileChannel.open(Paths.get(filepath), StandardOpenOption.READ);
+                fileHandle = FileChannels.getShared().open(Paths.get(filepath), StandardOpenOption.READ);
             } catch (IOException e) {
                 System.err.println("Error while trying to read from file");
                 return;
@@ -109,39 +120,65 @@ public class Peer implements RemoteInterface {
             if (fileSize % CHUNK_SIZE != 0)
                 numChunks++;
 
-            if (numChunks == 0)
+            if (numChunks == 0) {
+                fileHandle.close();
                 return;
+            }
 
             final String encodedFileId = protocol.startFileBackup(
                         filepath, modificationDate);
 
+            // the nodes of all the chunks are looked up in batches first; chunks whose lookup did not finish are looked up on their own
+            try {
+                protocol.findChunkLocations(encodedFileId, numChunks).get(LOCATIONS_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fileHandle.close();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                System.err.println("Lookups of the chunks of " + filepath + " did not finish: " + e);
+            }
+
+            // only a few chunks are read ahead of the ones being sent, so that a big file does not fill the memory
+            Semaphore chunksInFlight = new Semaphore(MAX_CHUNKS_IN_FLIGHT);
+
             for (int chunkNo = 0; chunkNo < numChunks; chunkNo++) {
-                ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
-                long position = chunkNo * CHUNK_SIZE;
-                final int chunkNoFinal = chunkNo;
+                try {
+                    chunksInFlight.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                // the chunk is sent straight from the pooled buffer it is read into
+                SharedBuffer buf = BufferPool.getShared().acquire(CHUNK_SIZE);
+                ByteBuffer buffer = buf.getBuffer();
+                try {
+                    fileHandle.getChannel().read(buffer, (long) chunkNo * CHUNK_SIZE).get();
+                    buffer.flip();
+                } catch (Exception e) {
+                    System.err.println("Error while trying to read chunk " + chunkNo + " from file");
+                    e.printStackTrace();
+                    buf.release();
+                    break;
+                }
 
-                fileChannel.read(buf, position, buf, new CompletionHandler<Integer, ByteBuffer>() {
-                    @Override
-                    public void completed(Integer result, ByteBuffer attachment) {
-                        attachment.flip();
-                        byte[] data = new byte[attachment.limit()];
-                        attachment.get(data);
-                        protocol.initiateBackup(
-                                encodedFileId,
-                                chunkNoFinal,
-                                data,
-                                replicationDegree);
-
-                        attachment.clear();
-                    }
-
-                    @Override
-                    public void failed(Throwable exc, ByteBuffer attachment) {
-
-                    }
-                });
+                final int chunkNoFinal = chunkNo;
+                CompletableFuture<Void> sent = protocol.initiateBackup(encodedFileId, chunkNo, buffer, replicationDegree);
+                sent.whenComplete((result, error) -> buf.release());
+
+                // the timeout only frees the place of the chunk; its buffer is kept until the PUTCHUNK is done
+                sent.copy()
+                        .orTimeout(CHUNK_TIMEOUT, TimeUnit.MILLISECONDS)
+                        .whenComplete((result, error) -> {
+                            chunksInFlight.release();
+                            if (error != null)
+                                System.err.println("Chunk " + chunkNoFinal + " of " + filepath + " was not sent: " + error);
+                        });
             }
 
+            fileHandle.close();
+
         });
     }
 
@@ -195,6 +232,11 @@ public class Peer implements RemoteInterface {
         StringBuilder stateInformation = new StringBuilder();
         stateInformation.append("STATE INFORMATION\n----------------\n");
         stateInformation.append(this.protocol.state());
+        stateInformation.append(this.protocol.getTaskManager().state());
+        stateInformation.append(this.protocol.getChord().getLocationCache().state());
+        stateInformation.append(ChordRingInfo.getLatencies().state());
+        stateInformation.append(BufferPool.getShared().state());
+        stateInformation.append(FileChannels.getShared().state());
         stateInformation.append("----------------\n");
         return stateInformation.toString();
     }
@@ -0,0 +1,234 @@
+package peer.buffers;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of direct byte buffers, divided in size classes (powers of two), reused to avoid allocating
+ * new buffers for every message and chunk. Buffers are handed out inside a SharedBuffer, and go back to the pool
+ * when it is released by all its users. Shared buffers that are garbage collected without being released are
+ * reported as leaks.
+ */
+public class BufferPool {
+    /**
+     * Size (in bytes) of the smallest size class.
+     */
+    private static final int MIN_CLASS_SIZE = 1024;
+
+    /**
+     * Size (in bytes) of the largest size class. Bigger buffers are allocated every time and are not pooled.
+     */
+    private static final int MAX_CLASS_SIZE = 256 * 1024;
+
+    /**
+     * Maximum amount of memory (in bytes) kept in free buffers of each size class.
+     */
+    private static final int MAX_FREE_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    /**
+     * Pool shared by the whole peer.
+     */
+    private static final BufferPool shared = new BufferPool();
+
+    /**
+     * Cleaner used to find the shared buffers that were not released.
+     */
+    private static final Cleaner cleaner = Cleaner.create();
+
+    /**
+     * Flag to know if the place where leaked buffers were acquired should be recorded (costly, for debugging).
+     */
+    private static final boolean trackLeaks = Boolean.getBoolean("peer.buffers.trackLeaks");
+
+    /**
+     * Free buffers of each size class.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+
+    /**
+     * Number of free buffers of each size class.
+     */
+    private final AtomicInteger[] freeCount;
+
+    /**
+     * Number of buffers acquired that were already in the pool.
+     */
+    private final AtomicLong hits = new AtomicLong(0);
+
+    /**
+     * Number of buffers acquired that had to be allocated.
+     */
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Number of buffers acquired and not released yet.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+
+    /**
+     * Number of buffers that were never released.
+     */
+    private final AtomicLong leaks = new AtomicLong(0);
+
+    /**
+     * Constructor of the pool.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        int classes = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE) + 1;
+        this.free = new ConcurrentLinkedQueue[classes];
+        this.freeCount = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            this.free[i] = new ConcurrentLinkedQueue<>();
+            this.freeCount[i] = new AtomicInteger(0);
+        }
+    }
+
+    /**
+     * Retrieves the pool shared by the whole peer.
+     * @return The shared pool
+     */
+    public static BufferPool getShared() {
+        return shared;
+    }
+
+    /**
+     * Retrieves a buffer with at least the given capacity. The buffer is cleared and its limit is the
+     * capacity asked for (the buffer itself may be bigger).
+     * @param capacity Capacity needed
+     * @return Buffer, with one reference (of the caller)
+     */
+    public SharedBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            buffer = free[sizeClass].poll();
+            if (buffer != null)
+                freeCount[sizeClass].decrementAndGet();
+        }
+
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(sizeClass >= 0 ? MIN_CLASS_SIZE << sizeClass : capacity);
+        } else {
+            hits.incrementAndGet();
+        }
+
+        buffer.clear();
+        buffer.limit(capacity);
+        outstanding.incrementAndGet();
+
+        SharedBuffer sharedBuffer = new SharedBuffer(buffer, this);
+        LeakCheck check = new LeakCheck(this, capacity, trackLeaks ? new Throwable("Buffer acquired here") : null);
+        sharedBuffer.setCleanable(cleaner.register(sharedBuffer, check), check);
+        return sharedBuffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. Called when a shared buffer is no longer used.
+     * @param buffer Buffer that is no longer used
+     */
+    void recycle(ByteBuffer buffer) {
+        outstanding.decrementAndGet();
+
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || (MIN_CLASS_SIZE << sizeClass) != buffer.capacity())
+            return;
+
+        if (freeCount[sizeClass].incrementAndGet() * (long) buffer.capacity() > MAX_FREE_BYTES_PER_CLASS) {
+            freeCount[sizeClass].decrementAndGet();
+            return;
+        }
+        free[sizeClass].add(buffer);
+    }
+
+    /**
+     * Finds the size class of a capacity.
+     * @param capacity Capacity needed
+     * @return Index of the smallest size class that fits the capacity, or -1 if it is too big
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity > MAX_CLASS_SIZE)
+            return -1;
+        if (capacity <= MIN_CLASS_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    }
+
+    /**
+     * Retrieves the number of buffers acquired that were already in the pool.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of buffers acquired that had to be allocated.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Retrieves the number of buffers acquired and not released yet.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Retrieves the number of buffers that were never released.
+     */
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * Creates a string with the metrics of the pool.
+     * @return String with the metrics
+     */
+    public String state() {
+        return "Buffer pool: " + hits.get() + " hits, " + misses.get() + " misses, "
+                + outstanding.get() + " outstanding, " + leaks.get() + " leaked\n";
+    }
+
+    /**
+     * Action run when a shared buffer is garbage collected or released. If it was not released, it is a leak.
+     */
+    static class LeakCheck implements Runnable {
+        private final BufferPool pool;
+        private final int capacity;
+        private final Throwable acquiredAt;
+        private volatile boolean released = false;
+
+        LeakCheck(BufferPool pool, int capacity, Throwable acquiredAt) {
+            this.pool = pool;
+            this.capacity = capacity;
+            this.acquiredAt = acquiredAt;
+        }
+
+        /**
+         * Marks the buffer as released, so that it is not reported.
+         */
+        void released() {
+            released = true;
+        }
+
+        @Override
+        public void run() {
+            if (released)
+                return;
+
+            pool.leaks.incrementAndGet();
+            pool.outstanding.decrementAndGet();
+            System.err.println("Buffer leak: a buffer of " + capacity + " bytes was never released"
+                    + (acquiredAt == null ? " (run with -Dpeer.buffers.trackLeaks=true to find where)" : ""));
+            if (acquiredAt != null)
+                acquiredAt.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package peer.buffers;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A byte buffer that may be read by several users at the same time (for example, the messages decrypted
+ * into it, which are processed in other threads). Each user keeps a reference; the buffer goes back to its
+ * pool when all the references are released, so it must not be used after that.
+ */
+public class SharedBuffer {
+    /**
+     * The buffer itself.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Pool where the buffer goes back to.
+     */
+    private final BufferPool pool;
+
+    /**
+     * Number of references to the buffer.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Registration in the cleaner, for leak detection.
+     */
+    private Cleaner.Cleanable cleanable;
+
+    /**
+     * Leak check run by the cleaner.
+     */
+    private BufferPool.LeakCheck leakCheck;
+
+    /**
+     * Constructor of the shared buffer, with one reference.
+     * @param buffer The buffer
+     * @param pool Pool of the buffer
+     */
+    SharedBuffer(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the registration of the buffer for leak detection.
+     * @param cleanable Registration in the cleaner
+     * @param leakCheck Leak check run by the cleaner
+     */
+    void setCleanable(Cleaner.Cleanable cleanable, BufferPool.LeakCheck leakCheck) {
+        this.cleanable = cleanable;
+        this.leakCheck = leakCheck;
+    }
+
+    /**
+     * Retrieves the buffer.
+     * @return The buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Adds a reference to the buffer.
+     */
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Removes a reference to the buffer. When there are none left, the buffer goes back to its pool.
+     */
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            leakCheck.released();
+            cleanable.clean();
+            pool.recycle(buffer);
+        } else if (left < 0) {
+            System.err.println("Shared buffer released more times than retained");
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package peer.chord;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Identifier in the Chord ring: an unsigned integer of up to 160 bits (the size of a SHA-1 hash),
+ * stored as a fixed-width big-endian byte array. The ids are immutable.
+ */
+public final class ChordId implements Comparable<ChordId>, Serializable {
+    /**
+     * Version of the serialized form (the one computed for the class so far, so saved tables can still be read).
+     */
+    private static final long serialVersionUID = -3591388308440166772L;
+
+    /**
+     * Maximum number of bits of an identifier.
+     */
+    public static final int MAX_BITS = 160;
+
+    /**
+     * Number of bytes used to store an identifier.
+     */
+    public static final int BYTES = MAX_BITS / 8;
+
+    /**
+     * Hexadecimal digits, for printing the ids.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Value of the id, unsigned, big-endian, with BYTES bytes.
+     */
+    private final byte[] value;
+
+    /**
+     * Cached hash code of the id.
+     */
+    private final int hash;
+
+    /**
+     * Creates an id from its value; the array is not copied.
+     * @param value Value of the id, with BYTES bytes
+     */
+    private ChordId(byte[] value) {
+        this.value = value;
+        this.hash = Arrays.hashCode(value);
+    }
+
+    /**
+     * Creates an id from the lowest bits of a value.
+     * @param bytes Unsigned big-endian value, of any length
+     * @param bits Number of bits to keep (1 to MAX_BITS)
+     * @return The id
+     */
+    public static ChordId fromBytes(byte[] bytes, int bits) {
+        byte[] value = new byte[BYTES];
+        int length = Math.min(bytes.length, BYTES);
+        System.arraycopy(bytes, bytes.length - length, value, BYTES - length, length);
+        mask(value, bits);
+        return new ChordId(value);
+    }
+
+    /**
+     * Creates an id from an unsigned big-endian value, as returned by toByteArray().
+     * @param bytes Value of the id, with at most BYTES bytes
+     * @return The id
+     * @throws IllegalArgumentException when the value is too long
+     */
+    public static ChordId fromBytes(byte[] bytes) throws IllegalArgumentException {
+        if (bytes.length > BYTES) {
+            throw new IllegalArgumentException("Chord id too long: " + bytes.length + " bytes");
+        }
+        return fromBytes(bytes, MAX_BITS);
+    }
+
+    /**
+     * Creates an id from its hexadecimal form, as returned by toString().
+     * @param hex Hexadecimal digits of the id
+     * @return The id
+     * @throws IllegalArgumentException when the string is not a valid id
+     */
+    public static ChordId fromHex(String hex) throws IllegalArgumentException {
+        if (hex.isEmpty() || hex.length() > 2 * BYTES) {
+            throw new IllegalArgumentException("Invalid Chord id: " + hex);
+        }
+
+        byte[] value = new byte[BYTES];
+        for (int i = 0; i < hex.length(); i++) {
+            int digit = Character.digit(hex.charAt(hex.length() - 1 - i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid Chord id: " + hex);
+            }
+            value[BYTES - 1 - i / 2] |= (byte) (digit << (4 * (i % 2)));
+        }
+        return new ChordId(value);
+    }
+
+    /**
+     * Creates an id from a small non-negative number.
+     * @param number The number
+     * @return The id
+     */
+    public static ChordId valueOf(long number) {
+        byte[] value = new byte[BYTES];
+        for (int i = 0; i < Long.BYTES; i++) {
+            value[BYTES - 1 - i] = (byte) (number >>> (8 * i));
+        }
+        return new ChordId(value);
+    }
+
+    /**
+     * Creates an id from a non-negative BigInteger, keeping its lowest bits.
+     * @param number The number
+     * @param bits Number of bits to keep (1 to MAX_BITS)
+     * @return The id
+     */
+    public static ChordId fromBigInteger(BigInteger number, int bits) {
+        return fromBytes(number.toByteArray(), bits);
+    }
+
+    /**
+     * Clears the bits of a value above the given number of bits.
+     * @param value Value, with BYTES bytes
+     * @param bits Number of bits to keep
+     */
+    private static void mask(byte[] value, int bits) {
+        int fullBytes = BYTES - (bits + 7) / 8;
+        Arrays.fill(value, 0, fullBytes, (byte) 0);
+        if (bits % 8 != 0) {
+            value[fullBytes] &= (byte) ((1 << (bits % 8)) - 1);
+        }
+    }
+
+    /**
+     * Computes (this + 2^exponent) mod 2^bits, as used for the start of the fingers.
+     * @param exponent Exponent of the power of two to add (0 to bits - 1)
+     * @param bits Number of bits of the ring
+     * @return The new id
+     */
+    public ChordId addPowerOfTwo(int exponent, int bits) {
+        byte[] result = value.clone();
+        int index = BYTES - 1 - exponent / 8;
+        int carry = 1 << (exponent % 8);
+        for (int i = index; i >= 0 && carry != 0; i--) {
+            int sum = (result[i] & 0xff) + carry;
+            result[i] = (byte) sum;
+            carry = sum >>> 8;
+        }
+        mask(result, bits);
+        return new ChordId(result);
+    }
+
+    /**
+     * Retrieves the value of the id without its leading zero bytes (at least one byte).
+     * @return Unsigned big-endian value of the id
+     */
+    public byte[] toByteArray() {
+        int start = 0;
+        while (start < BYTES - 1 && value[start] == 0) {
+            start++;
+        }
+        return Arrays.copyOfRange(value, start, BYTES);
+    }
+
+    /**
+     * Converts the id to a BigInteger.
+     * @return The id as a BigInteger
+     */
+    public BigInteger toBigInteger() {
+        return new BigInteger(1, value);
+    }
+
+    /**
+     * Compares two ids as unsigned numbers.
+     * @param that The other id
+     * @return Negative int if this < that, 0 if this == that, positive int if this > that
+     */
+    @Override
+    public int compareTo(ChordId that) {
+        return Arrays.compareUnsigned(this.value, that.value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(value, ((ChordId) o).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Hexadecimal form of the id, without leading zeros.
+     * @return The id in hexadecimal
+     */
+    @Override
+    public String toString() {
+        StringBuilder hex = new StringBuilder(2 * BYTES);
+        for (byte b : value) {
+            hex.append(HEX_DIGITS[(b >>> 4) & 0x0f]).append(HEX_DIGITS[b & 0x0f]);
+        }
+
+        int start = 0;
+        while (start < hex.length() - 1 && hex.charAt(start) == '0') {
+            start++;
+        }
+        return hex.substring(start);
+    }
+}
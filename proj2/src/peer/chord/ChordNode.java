@@ -11,7 +11,7 @@ public class ChordNode implements Comparable<ChordNode> {
     /**
      * Id of the node.
      */
-    private int id;
+    private ChordId id;
 
     /**
      * IP address of the node.
@@ -42,7 +42,7 @@ public class ChordNode implements Comparable<ChordNode> {
      * Getter for the ID of the node.
      * @return ID of the node.
      */
-    public int getId() {
+    public ChordId getId() {
         return id;
     }
 
@@ -50,7 +50,7 @@ public class ChordNode implements Comparable<ChordNode> {
      * Setter for the ID of the node.
      * @param id New ID of the node
      */
-    public void setId(int id) {
+    public void setId(ChordId id) {
         this.id = id;
     }
 
@@ -139,7 +139,7 @@ public class ChordNode implements Comparable<ChordNode> {
      * @param portChord Chord port of the Chord node
      * @param id Id of the node
      */
-    public ChordNode(String ipAddress, int portMC, int portMDB, int portMDR, int portChord, int id) {
+    public ChordNode(String ipAddress, int portMC, int portMDB, int portMDR, int portChord, ChordId id) {
         this.ipAddress = ipAddress;
         this.portMC = portMC;
         this.portMDB = portMDB;
@@ -155,7 +155,7 @@ public class ChordNode implements Comparable<ChordNode> {
      */
     @Override
     public int compareTo(ChordNode that) {
-        return Integer.compare(this.id, that.id);
+        return this.id.compareTo(that.id);
     }
 
     /**
@@ -168,7 +168,7 @@ public class ChordNode implements Comparable<ChordNode> {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ChordNode chordNode = (ChordNode) o;
-        return id == chordNode.id;
+        return id.equals(chordNode.id);
     }
 
     /**
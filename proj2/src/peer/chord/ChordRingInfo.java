@@ -2,7 +2,9 @@ package peer.chord;
 import peer.task.Task;
 import peer.task.TaskManager;
 import peer.jsse.SenderThread;
+import peer.jsse.error.OnError;
 import peer.jsse.error.PredecessorError;
+import peer.jsse.error.SuccessorError;
 import peer.messages.Message;
 import peer.messages.MessageType;
 
@@ -10,8 +12,18 @@ import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
@@ -22,22 +34,28 @@ public class ChordRingInfo {
     /**
      * Sender Id of the peer, for sending messages.
      */
-    private final int senderId;
+    private final ChordId senderId;
 
     /**
-     * Constant with the number of threads for the thread pool.
+     * Delay (in milliseconds) between the rounds of the periodically ran methods while the ring is changing
+     * (-Dpeer.chord.minDelay, 500 by default).
      */
-    private static final int NUMBER_OF_THREADS = 20;
+    private static final long MIN_DELAY = Math.max(100, Long.getLong("peer.chord.minDelay", 500));
 
     /**
-     * Constant with the delay (in milliseconds) for the periodically ran methods.
+     * Maximum delay (in milliseconds) between the rounds, reached when the routing state of the node does not
+     * change (-Dpeer.chord.maxDelay, 15000 by default).
      */
-    private static final int DELAY = 15000;
+    private static final long MAX_DELAY = Math.max(MIN_DELAY, Long.getLong("peer.chord.maxDelay", 15000));
 
     /**
-     * Thread pool executor.
+     * Timer thread that runs the periodically ran methods of all the nodes.
      */
-    protected ScheduledThreadPoolExecutor executor;
+    private static final ScheduledExecutorService maintenanceTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chord-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Task manager that keeps a record of the pending Chord requests.
@@ -46,13 +64,76 @@ public class ChordRingInfo {
 
     /**
      * Number of bits for each Chord ID. The system allows a maximum of 2^m nodes.
+     * Can be changed with -Dpeer.chord.m (1 to 160); all the peers of a ring must use the same value.
      */
-    private static final int m = 6;
+    private static final int m = Math.max(1, Math.min(ChordId.MAX_BITS, Integer.getInteger("peer.chord.m", ChordId.MAX_BITS)));
 
     /**
-     * Static integer that denotes the next entry of the finger table that needs to be checked.
+     * Number of successors kept in the successor list (-Dpeer.chord.successors, 4 by default). When the successor
+     * fails, the next one in the list takes its place, without waiting for the stabilization.
      */
-    private static int next = 0;
+    private static final int SUCCESSOR_LIST_SIZE = Math.max(1, Integer.getInteger("peer.chord.successors", 4));
+
+    /**
+     * True if the lookups started by this node are iterative (-Dpeer.chord.lookup=iterative): this node asks
+     * the nodes itself, instead of the FIND_SUCC being forwarded from hop to hop (recursive, the default).
+     */
+    private static final boolean ITERATIVE_LOOKUPS = "iterative".equals(System.getProperty("peer.chord.lookup", "recursive"));
+
+    /**
+     * Number of nodes an iterative lookup asks at the same time (-Dpeer.chord.alpha, 3 by default).
+     */
+    private static final int LOOKUP_PARALLELISM = Math.max(1, Integer.getInteger("peer.chord.alpha", 3));
+
+    /**
+     * Maximum number of nodes in the location cache (-Dpeer.chord.locationCache, 1024 by default).
+     */
+    private static final int LOCATION_CACHE_SIZE = Integer.getInteger("peer.chord.locationCache", 1024);
+
+    /**
+     * Maximum number of keys in a FIND_SUCC_BATCH message (-Dpeer.chord.batchSize, 256 by default).
+     */
+    private static final int MAX_BATCH_SIZE = Math.max(1, Integer.getInteger("peer.chord.batchSize", 256));
+
+    /**
+     * Number of candidates kept for each finger (-Dpeer.chord.fingerCandidates, 3 by default). Any node between
+     * the start of a finger and the start of the next one can be used as that finger without making the lookups
+     * longer, so the candidate with the lowest round-trip time is chosen, and the others are its backups.
+     */
+    private static final int FINGER_CANDIDATES = Math.max(1, Integer.getInteger("peer.chord.fingerCandidates", 3));
+
+    /**
+     * Time (in milliseconds) after which the round-trip time of a candidate is measured again.
+     */
+    private static final long PROBE_INTERVAL = 30000;
+
+    /**
+     * Minimum difference (in nanoseconds) between the round-trip times of two candidates for the finger to change.
+     */
+    private static final long MIN_RTT_GAIN = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * Maximum number of PING messages sent in each round of the periodically ran methods.
+     */
+    private static final int MAX_PROBES = 8;
+
+    /**
+     * Round-trip times measured by the nodes of this peer (shared by its virtual nodes).
+     */
+    private static final LatencyTable latencies = new LatencyTable();
+
+    /**
+     * Called when a node that joined the ring learns its predecessor: the keys between the predecessor and the node
+     * are now the node's, and the chunks stored for them are still with its successor.
+     */
+    public interface RangeListener {
+        /**
+         * @param ring Chord information of the node that joined
+         * @param low Id of its predecessor (start of the range, not included)
+         * @param holder Successor of the node, which holds the chunks of the range
+         */
+        void rangeAcquired(ChordRingInfo ring, ChordId low, ChordNode holder);
+    }
 
     /**
      * Node information relative to the current peer.
@@ -69,11 +150,64 @@ public class ChordRingInfo {
      */
      private final AtomicReferenceArray<ChordNode> fingers;
 
-     private ScheduledFuture<?> scheduledStabilize;
+    /**
+     * Candidates for each finger: the nodes known between the start of the finger and the start of the next one,
+     * the closest to the start first. Each list is replaced as a whole (never modified).
+     */
+     private final AtomicReferenceArray<List<ChordNode>> fingerCandidates;
+
+    /**
+     * Successor list of the node: the first nodes that follow it in the ring, starting with its successor.
+     * Replaced as a whole (never modified), so it can be read without locks.
+     */
+     private volatile List<ChordNode> successors = Collections.emptyList();
 
-     private ScheduledFuture<?> scheduledFixFingers;
+    /**
+     * Iterative lookups started by this node that are still running.
+     * key = request id
+     */
+     private final ConcurrentHashMap<Integer, IterativeLookup> iterativeLookups = new ConcurrentHashMap<>();
 
-     private ScheduledFuture<?> scheduledStartCheckPredecessor;
+    /**
+     * Nodes responsible for the keys looked up by this node.
+     */
+     private final LocationCache locationCache = new LocationCache(LOCATION_CACHE_SIZE);
+
+    /**
+     * Lock for the scheduling of the periodically ran methods.
+     */
+     private final Object maintenanceLock = new Object();
+
+    /**
+     * Next round of the periodically ran methods.
+     */
+     private ScheduledFuture<?> nextMaintenance;
+
+    /**
+     * Current delay between the rounds; doubled (up to MAX_DELAY) after each round in which the routing state
+     * did not change, and back to MIN_DELAY when it changes.
+     */
+     private long maintenanceDelay = MIN_DELAY;
+
+    /**
+     * Routing state of the node when the last round started.
+     */
+     private List<ChordNode> lastRoutingState;
+
+    /**
+     * True after endTasks() is called.
+     */
+     private boolean maintenanceStopped = false;
+
+    /**
+     * Called when this node takes over a range of keys after joining.
+     */
+     private volatile RangeListener rangeListener;
+
+    /**
+     * True from the moment the node joins an existing ring until it asks for the chunks of its range.
+     */
+     private volatile boolean rangePending = false;
 
     /**
      * Construction of the Chord ring information.
@@ -85,18 +219,18 @@ public class ChordRingInfo {
      * @param senderId Sender ID, for sending messages
      * @param taskManager Task manager
      */
-    public ChordRingInfo(String ipAddress, int portMC, int portMDB, int portMDR, int portChord, int senderId, TaskManager taskManager) {
+    public ChordRingInfo(String ipAddress, int portMC, int portMDB, int portMDR, int portChord, ChordId senderId, TaskManager taskManager) {
         this.senderId = senderId;
         this.nodeInfo = new ChordNode(ipAddress, portMC, portMDB, portMDR, portChord, senderId);
         this.predecessor = null;
         this.fingers = new AtomicReferenceArray<>(m);
+        this.fingerCandidates = new AtomicReferenceArray<>(m);
+        for (int i = 0; i < m; i++)
+            this.fingerCandidates.set(i, Collections.emptyList());
         this.taskManager = taskManager;
-        this.executor = new ScheduledThreadPoolExecutor(NUMBER_OF_THREADS);
 
         // start background tasks that run periodically
-        this.scheduledStabilize = this.executor.scheduleAtFixedRate(this::stabilize, DELAY, DELAY, TimeUnit.MILLISECONDS);
-        this.scheduledFixFingers = this.executor.scheduleAtFixedRate(this::fixFingers, DELAY + 2000, DELAY, TimeUnit.MILLISECONDS);
-        this.scheduledStartCheckPredecessor = this.executor.scheduleAtFixedRate(this::startCheckPredecessor, DELAY + 4000, DELAY, TimeUnit.MILLISECONDS);
+        this.nextMaintenance = maintenanceTimer.schedule(this::maintain, MIN_DELAY, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -110,37 +244,60 @@ public class ChordRingInfo {
     /**
      * Generates SHA-1 hash, making an identifier for the Chord ring.
      * @param key String key
-     * @return Identifier for the Chord ring
+     * @return Identifier for the Chord ring (the lowest m bits of the hash)
      */
-    public static int generateHash(String key) {
+    public static ChordId generateHash(String key) {
         MessageDigest digest = null;
         try {
             digest = MessageDigest.getInstance("SHA-1");
             digest.reset();
             digest.update(key.getBytes(StandardCharsets.UTF_8));
-            String sha1 = String.format("%040x", new BigInteger(1, digest.digest()));
-            int hashCode = sha1.hashCode();
-            if (hashCode < 0) {
-                hashCode = -hashCode;
-            }
-            return (hashCode % (int) Math.pow(2, m));
+            return ChordId.fromBytes(digest.digest(), m);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
-        return -1;
+        return null;
     }
 
-    public static int getFileOffset(int replicationDegree) {
-        int maxNumNodes = (int) Math.pow(2, m);
-        return maxNumNodes / replicationDegree;
+    public static ChordId getFileOffset(int replicationDegree) {
+        BigInteger maxNumNodes = BigInteger.ONE.shiftLeft(m);
+        return ChordId.fromBigInteger(maxNumNodes.divide(BigInteger.valueOf(replicationDegree)), m);
     }
 
+    /**
+     * Sets the method called when this node takes over a range of keys after joining.
+     * @param rangeListener The listener
+     */
+    public void setRangeListener(RangeListener rangeListener) {
+        this.rangeListener = rangeListener;
+    }
+
+    /**
+     * Method to be called after a SET_PRED message is received, from a predecessor that is leaving the ring.
+     * @param predecessor New predecessor of the node
+     */
     public void setPredecessor(ChordNode predecessor) {
+        ChordNode oldPredecessor = this.predecessor;
         this.predecessor = predecessor;
+        if (oldPredecessor != null && !oldPredecessor.equals(predecessor))
+            locationCache.remove(oldPredecessor);
+        this.routingChanged();
     }
 
+    /**
+     * Method to be called after a SET_SUCC message is received, from a successor that is leaving the ring.
+     * @param successor New successor of the node
+     */
     public void setSuccessor(ChordNode successor) {
-        fingers.set(0, successor);
+        ChordNode oldSuccessor = fingers.getAndSet(0, successor);
+        List<ChordNode> list = new ArrayList<>(successors);
+        if (oldSuccessor != null && !oldSuccessor.equals(successor)) {
+            list.remove(oldSuccessor);
+            locationCache.remove(oldSuccessor);
+        }
+        list.add(0, successor);
+        this.updateSuccessorList(list);
+        this.routingChanged();
     }
 
     // ----------------------------------------------------------------------------------------------------
@@ -157,18 +314,14 @@ public class ChordRingInfo {
         // join or create Chord ring
         if (initIpAddress != null && initPort != -1) {
             predecessor = null;
-            this.taskManager.addTask(nodeInfo.getId(), this::handleSetSuccessor);
-            SenderThread.sendMessage(
-                    initIpAddress,
-                    initPort,
-                    new Message(
-                            MessageType.FIND_SUCC,
-                            nodeInfo.getId(),
-                            nodeInfo.getIpAddress(),
-                            nodeInfo.getPortChord()
-                    ),
-                    null
-            );
+            rangePending = true;
+            // the lookup is sent again to the same node if its answer does not arrive in time
+            int requestId = this.taskManager.addTask(nodeInfo.getId(), this::handleSetSuccessor, null,
+                    (id, tried) -> {
+                        this.sendJoin(initIpAddress, initPort, id);
+                        return true;
+                    });
+            this.sendJoin(initIpAddress, initPort, requestId);
         }
         else {
             predecessor = null;
@@ -176,6 +329,27 @@ public class ChordRingInfo {
         }
     }
 
+    /**
+     * Sends the lookup of the id of this node to the node through which it is joining the ring.
+     * @param initIpAddress IP address of the node we should contact in order to join the Chord ring
+     * @param initPort Port number of the node we should contact in order to join the Chord ring
+     * @param requestId Id of the lookup
+     */
+    private void sendJoin(String initIpAddress, int initPort, int requestId) {
+        SenderThread.sendMessage(
+                initIpAddress,
+                initPort,
+                new Message(
+                        MessageType.FIND_SUCC,
+                        nodeInfo.getId(),
+                        requestId,
+                        nodeInfo.getIpAddress(),
+                        nodeInfo.getPortChord()
+                ),
+                null
+        );
+    }
+
     // ----------------------------------------------------------------------------------------------------
     // ----------------------
     // Successor finding
@@ -187,19 +361,333 @@ public class ChordRingInfo {
      * @param task The task for this key
      * @return The object that is the successor for that key; null otherwise
      */
-    public ChordNode startFindSuccessor(int keyHash, Task task) {
-        return findSuccessor(keyHash, nodeInfo.getIpAddress(), nodeInfo.getPortChord(), task);
+    public ChordNode startFindSuccessor(ChordId keyHash, Task task) {
+        ChordNode cached = locationCache.get(keyHash);
+        if (cached != null) {
+            task.complete(cached);
+            return cached;
+        }
+        return lookup(keyHash, task);
+    }
+
+    /**
+     * Starts a lookup for a key (without using the location cache); its result is added to the cache.
+     * @param keyHash Key in the Chord ring
+     * @param task The task for this key
+     * @return The object that is the successor for that key, if it is known locally; null otherwise
+     */
+    private ChordNode lookup(ChordId keyHash, Task task) {
+        Task cachingTask = this.cachingTask(keyHash, task);
+
+        if (ITERATIVE_LOOKUPS)
+            return findSuccessorIteratively(keyHash, cachingTask);
+        return findSuccessor(keyHash, 0, nodeInfo.getIpAddress(), nodeInfo.getPortChord(), cachingTask);
+    }
+
+    /**
+     * Wraps the task of a lookup so that its result is added to the location cache.
+     * @param keyHash Key in the Chord ring
+     * @param task The task for this key
+     * @return The task that caches the result and then completes the given task
+     */
+    private Task cachingTask(ChordId keyHash, Task task) {
+        return new Task() {
+            @Override
+            public void complete(ChordNode chordNode) {
+                locationCache.put(keyHash, chordNode);
+                task.complete(chordNode);
+            }
+
+            @Override
+            public void dropped() {
+                task.dropped();
+            }
+        };
+    }
+
+    /**
+     * Forgets a node that could not be reached, so that it is not returned by the location cache again.
+     * @param node The node
+     */
+    public void invalidateLocation(ChordNode node) {
+        locationCache.remove(node);
+    }
+
+    /**
+     * Finds the successor of a key with an iterative lookup: this node asks the closest nodes it knows,
+     * and then the closer nodes they return, until one of them knows the successor.
+     * @param keyHash Key in the Chord ring
+     * @param task The task for this key
+     * @return The successor, if it is known locally; null otherwise
+     */
+    private ChordNode findSuccessorIteratively(ChordId keyHash, Task task) {
+        ChordNode successor = getSuccessor();
+        if (successor != null && ChordUtils.isBetweenInc(nodeInfo.getId(), successor.getId(), keyHash)) {
+            task.complete(successor);
+            return successor;
+        }
+
+        List<ChordNode> nodes = closestPrecedingNodes(keyHash, 2 * LOOKUP_PARALLELISM);
+        if (nodes.isEmpty()) {
+            task.complete(nodeInfo);
+            return nodeInfo;
+        }
+
+        IterativeLookup lookup = new IterativeLookup(this, keyHash, task, LOOKUP_PARALLELISM);
+        int requestId = this.taskManager.addTask(keyHash, lookup, null, lookup);
+        lookup.setRequestId(requestId);
+        iterativeLookups.put(requestId, lookup);
+        lookup.start(nodes);
+        return null;
+    }
+
+    /**
+     * Sends the FIND_NEXT of an iterative lookup to a node. If the node is down, it is forgotten, and the lookup
+     * asks the next node.
+     * @param lookup The lookup
+     * @param node Node to ask
+     */
+    void sendFindNext(IterativeLookup lookup, ChordNode node) {
+        this.sendTimed(
+                node,
+                new Message(
+                        MessageType.FIND_NEXT,
+                        lookup.getKey(),
+                        lookup.getRequestId(),
+                        nodeInfo.getIpAddress(),
+                        nodeInfo.getPortChord()
+                ),
+                () -> {
+                    this.handleNodeFailure(node);
+                    lookup.failed(node);
+                }
+        );
+    }
+
+    /**
+     * Forgets an iterative lookup that is finished.
+     * @param requestId Request id of the lookup
+     */
+    void removeIterativeLookup(int requestId) {
+        iterativeLookups.remove(requestId);
+    }
+
+    /**
+     * Method to be called after a FIND_NEXT message is received. Answers with the successor of the key, if it is
+     * known by this node, or with the nodes closest to the key that this node knows.
+     * @param keyHash Key in the Chord ring
+     * @param requestId Id of the lookup
+     * @param ipAddress IP Address of the node that started the lookup
+     * @param port Port number of the node that started the lookup
+     */
+    public void handleFindNext(ChordId keyHash, int requestId, String ipAddress, int port) {
+        boolean done = false;
+        List<ChordNode> nodes;
+
+        ChordNode successor = getSuccessor();
+        if (successor != null && ChordUtils.isBetweenInc(nodeInfo.getId(), successor.getId(), keyHash)) {
+            done = true;
+            nodes = Collections.singletonList(successor);
+        } else {
+            nodes = closestPrecedingNodes(keyHash, LOOKUP_PARALLELISM);
+            if (nodes.isEmpty()) {
+                done = true;
+                nodes = Collections.singletonList(nodeInfo);
+            }
+        }
+
+        SenderThread.sendMessage(
+                ipAddress,
+                port,
+                new Message(MessageType.RTRN_NEXT, keyHash, requestId, done, nodes),
+                null
+        );
+    }
+
+    /**
+     * Method to be called after a RTRN_NEXT message is received, in response to a FIND_NEXT of this node.
+     * The nodes received are also used to improve the fingers.
+     * @param from Id of the node that answered
+     * @param keyHash Key in the Chord ring
+     * @param requestId Id of the lookup
+     * @param done True if the node received is the successor of the key
+     * @param nodes The successor of the key, or the nodes to ask next
+     */
+    public void handleReturnNext(ChordId from, ChordId keyHash, int requestId, boolean done, List<ChordNode> nodes) {
+        this.answerReceived(from);
+        for (ChordNode node : nodes)
+            this.learnFinger(node);
+
+        if (done) {
+            if (!nodes.isEmpty())
+                this.taskManager.completeTask(requestId, keyHash, nodes.get(0));
+            return;
+        }
+
+        IterativeLookup lookup = iterativeLookups.get(requestId);
+        if (lookup != null && lookup.getKey().equals(keyHash)) {
+            this.taskManager.extend(requestId);
+            lookup.answer(from, nodes);
+        }
+    }
+
+    /**
+     * Adds a node learned from another node as a candidate for the finger whose interval it falls in, if it is
+     * one of the FINGER_CANDIDATES closest to the start of the finger. The successor (first finger) is only
+     * changed by stabilize.
+     * @param node Node learned
+     */
+    private void learnFinger(ChordNode node) {
+        int index = this.fingerIndex(node.getId());
+        if (index < 1)
+            return;
+
+        List<ChordNode> candidates;
+        List<ChordNode> newCandidates;
+        do {
+            candidates = fingerCandidates.get(index);
+            if (candidates.contains(node))
+                return;
+
+            newCandidates = new ArrayList<>(candidates);
+            int position = 0;
+            while (position < newCandidates.size() && ChordUtils.isBetween(nodeInfo.getId(), node.getId(), newCandidates.get(position).getId()))
+                position++;
+            if (position >= FINGER_CANDIDATES)
+                return;
+            newCandidates.add(position, node);
+            if (newCandidates.size() > FINGER_CANDIDATES)
+                newCandidates.remove(newCandidates.size() - 1);
+        } while (!fingerCandidates.compareAndSet(index, candidates, Collections.unmodifiableList(newCandidates)));
+
+        this.selectFinger(index);
+    }
+
+    /**
+     * Finds the finger whose interval (from its start to the start of the next one) a node falls in.
+     * @param id Id of the node
+     * @return The index of the finger, or -1 for this node
+     */
+    private int fingerIndex(ChordId id) {
+        BigInteger distance = id.toBigInteger().subtract(nodeInfo.getId().toBigInteger()).mod(BigInteger.ONE.shiftLeft(m));
+        return distance.bitLength() - 1;
+    }
+
+    /**
+     * Chooses the candidate of a finger with the lowest round-trip time (the closest to the start of the finger
+     * while no times are known). The current finger is kept unless the other candidate is clearly faster
+     * (by more than 25% and MIN_RTT_GAIN), so that the finger does not change back and forth.
+     * @param index Index of the finger
+     */
+    private void selectFinger(int index) {
+        List<ChordNode> candidates = fingerCandidates.get(index);
+        if (candidates.isEmpty())
+            return;
+
+        ChordNode best = candidates.get(0);
+        long bestRtt = latencies.get(best.getId());
+        for (ChordNode candidate : candidates) {
+            long rtt = latencies.get(candidate.getId());
+            if (rtt >= 0 && (bestRtt < 0 || rtt < bestRtt)) {
+                best = candidate;
+                bestRtt = rtt;
+            }
+        }
+
+        ChordNode current = fingers.get(index);
+        if (best.equals(current))
+            return;
+        if (current != null && candidates.contains(current)) {
+            long currentRtt = latencies.get(current.getId());
+            if (currentRtt >= 0 && (4 * currentRtt <= 5 * bestRtt || currentRtt - bestRtt < MIN_RTT_GAIN))
+                return;
+        }
+
+        if (fingers.compareAndSet(index, current, best))
+            System.out.println("----\nAssign finger with index = " + index + " (key of node = " + best.getId() + ")\n----\n");
+    }
+
+    /**
+     * Records the answer of a node to a request whose round-trip time is measured, and chooses its finger again.
+     * @param from Id of the node that answered
+     */
+    private void answerReceived(ChordId from) {
+        latencies.answerReceived(from);
+        int index = this.fingerIndex(from);
+        if (index > 0)
+            this.selectFinger(index);
+    }
+
+    /**
+     * Measures the round-trip times of the finger candidates that were not measured in the last PROBE_INTERVAL
+     * (at most MAX_PROBES of them).
+     */
+    private void probeFingerCandidates() {
+        Set<ChordNode> probed = new HashSet<>();
+        for (int i = 1; i < m && probed.size() < MAX_PROBES; i++) {
+            for (ChordNode candidate : fingerCandidates.get(i)) {
+                if (probed.size() >= MAX_PROBES)
+                    break;
+                if (!latencies.isFresh(candidate.getId(), PROBE_INTERVAL) && probed.add(candidate)) {
+                    this.sendTimed(candidate, new Message(MessageType.PING, nodeInfo), () -> this.handleNodeFailure(candidate));
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to be called after a PING message is received; answers right away.
+     * @param node Node that sent the PING
+     */
+    public void handlePing(ChordNode node) {
+        this.send(node, new Message(MessageType.PONG, nodeInfo), null);
+    }
+
+    /**
+     * Method to be called after a PONG message is received, in response to a PING of this node.
+     * @param node Node that answered
+     */
+    public void handlePong(ChordNode node) {
+        this.answerReceived(node.getId());
+    }
+
+    /**
+     * Finds the nodes known by this node (fingers and successor list) that precede a key.
+     * @param keyHash Identifier in the Chord ring
+     * @param count Maximum number of nodes to return
+     * @return The nodes, the closest to the key first
+     */
+    private List<ChordNode> closestPrecedingNodes(ChordId keyHash, int count) {
+        List<ChordNode> nodes = new ArrayList<>();
+        for (int i = 0; i < fingers.length(); i++) {
+            ChordNode finger = fingers.get(i);
+            if (finger != null && !nodes.contains(finger) && ChordUtils.isBetween(nodeInfo.getId(), keyHash, finger.getId()))
+                nodes.add(finger);
+        }
+        for (ChordNode node : successors) {
+            if (!nodes.contains(node) && ChordUtils.isBetween(nodeInfo.getId(), keyHash, node.getId()))
+                nodes.add(node);
+        }
+
+        // a node is closer than another if it is between the other and the key
+        nodes.sort((a, b) -> {
+            if (a.equals(b))
+                return 0;
+            return ChordUtils.isBetween(b.getId(), keyHash, a.getId()) ? -1 : 1;
+        });
+        return nodes.size() > count ? new ArrayList<>(nodes.subList(0, count)) : nodes;
     }
 
     /**
      * Method to be called after a FIND_SUCC message is received.
      * @param keyHash Identifier in the Chord ring.
+     * @param requestId Id of the lookup, to be returned with the answer
      * @param ipAddress IP Address of the node to contact after its successor is found
      * @param port Port number of the node to contact after its successor is found
      */
-    public void handleFindSuccessor(int keyHash, String ipAddress, int port) {
+    public void handleFindSuccessor(ChordId keyHash, int requestId, String ipAddress, int port) {
         // try to fund successor; if found, return value to the initiator node
-        ChordNode node = findSuccessor(keyHash, ipAddress, port, null);
+        ChordNode node = findSuccessor(keyHash, requestId, ipAddress, port, null);
         if (node != null) {
             SenderThread.sendMessage(
                     ipAddress,
@@ -207,7 +695,8 @@ public class ChordRingInfo {
                     new Message(
                             MessageType.RTRN_SUCC,
                             node,
-                            keyHash
+                            keyHash,
+                            requestId
                     ),
                     null
             );
@@ -217,12 +706,13 @@ public class ChordRingInfo {
     /**
      * Generic function to get successor of a certain key.
      * @param keyHash Key in the Chord ring
+     * @param requestId Id of the lookup, when it was started by another node (ignored when there is a task)
      * @param ipAddress IP Address of the node to contact after its successor is found
      * @param port Port number of the node to contact after its successor is found
-     * @param task The task for this key
+     * @param task The task for this key, when the lookup is started by this node
      * @return The object that is the successor for that key; null otherwise
      */
-    public ChordNode findSuccessor(int keyHash, String ipAddress, int port, Task task) {
+    public ChordNode findSuccessor(ChordId keyHash, int requestId, String ipAddress, int port, Task task) {
         // check successor
         ChordNode successor = getSuccessor();
         if(successor != null && ChordUtils.isBetweenInc(nodeInfo.getId(), successor.getId(), keyHash)) {
@@ -232,30 +722,86 @@ public class ChordRingInfo {
 
         // get closest preceding node
         ChordNode closest = closestPrecedingNode(keyHash);
-        if (closest.getId() == nodeInfo.getId()) {
+        if (closest.getId().equals(nodeInfo.getId())) {
             if(task != null) task.complete(nodeInfo);
             return nodeInfo;
         }
 
-        // add task as callback function from when we receive the response for this key
+        // add task as callback function from when we receive the response for this lookup;
+        // if the response does not arrive in time, the lookup is sent again through another node
         if (task != null)
-            this.taskManager.addTask(keyHash, task);
+            requestId = this.taskManager.addTask(keyHash, task, closest, this.findSuccessorResend(keyHash, task));
 
-        // send message to the closest preceding node in order to find out successor
-        SenderThread.sendMessage(
-                closest.getIpAddress(),
-                closest.getPortChord(),
+        this.sendFindSuccessor(closest, keyHash, requestId, ipAddress, port);
+
+        // no "local" value; returning null
+        return null;
+    }
+
+    /**
+     * Sends a FIND_SUCC message to a node. If the node is down, it is forgotten and the lookup continues
+     * from this node, with the next closest node.
+     * @param node Node to send the message to
+     * @param keyHash Key in the Chord ring
+     * @param requestId Id of the lookup
+     * @param ipAddress IP Address of the node to contact after its successor is found
+     * @param port Port number of the node to contact after its successor is found
+     */
+    private void sendFindSuccessor(ChordNode node, ChordId keyHash, int requestId, String ipAddress, int port) {
+        this.send(
+                node,
                 new Message(
                         MessageType.FIND_SUCC,
                         keyHash,
+                        requestId,
                         ipAddress,
                         port
                 ),
-                null
+                () -> {
+                    this.handleNodeFailure(node);
+                    this.handleFindSuccessor(keyHash, requestId, ipAddress, port);
+                }
         );
+    }
 
-        // no "local" value; returning null
-        return null;
+    /**
+     * Sends a lookup started by this node again, when its answer did not arrive in time, through the closest
+     * preceding node that was not tried yet (or the successor, if all of them were tried).
+     * @param keyHash Key in the Chord ring
+     * @param requestId Id of the lookup
+     * @param tried Nodes the lookup was already sent to
+     * @return True if the lookup was sent again, false if there is no other node to try
+     */
+    private boolean resendFindSuccessor(ChordId keyHash, int requestId, Set<ChordNode> tried) {
+        ChordNode node = closestPrecedingNode(keyHash, tried);
+        if (node.equals(nodeInfo))
+            node = getSuccessor();
+        if (node == null || node.equals(nodeInfo) || tried.contains(node))
+            return false;
+
+        tried.add(node);
+        this.sendFindSuccessor(node, keyHash, requestId, nodeInfo.getIpAddress(), nodeInfo.getPortChord());
+        return true;
+    }
+
+    /**
+     * Builds the resend of a lookup started by this node, which also tells its task when the lookup is dropped.
+     * @param keyHash Key in the Chord ring
+     * @param task The task for this key
+     * @return The resend of the lookup
+     */
+    private TaskManager.Resend findSuccessorResend(ChordId keyHash, Task task) {
+        return new TaskManager.Resend() {
+            @Override
+            public boolean resend(int requestId, Set<ChordNode> tried) {
+                return resendFindSuccessor(keyHash, requestId, tried);
+            }
+
+            @Override
+            public void dropped(int requestId) {
+                task.dropped();
+            }
+        };
     }
 
     /**
@@ -264,17 +810,35 @@ public class ChordRingInfo {
      * @param keyHash Identifier in the Chord ring
      * @return The object that is the successor for that key; null otherwise
      */
-    public ChordNode closestPrecedingNode(int keyHash) {
+    public ChordNode closestPrecedingNode(ChordId keyHash) {
+        return closestPrecedingNode(keyHash, Collections.emptySet());
+    }
+
+    /**
+     * Finds the closest preceding node for a certain key, leaving out some nodes.
+     * @param keyHash Identifier in the Chord ring
+     * @param excluded Nodes that should not be returned
+     * @return The closest preceding node; this node if there is none
+     */
+    private ChordNode closestPrecedingNode(ChordId keyHash, Set<ChordNode> excluded) {
         // check fingers
+        ChordNode closest = nodeInfo;
         for (int i = fingers.length() - 1; i >= 0; i--) {
             ChordNode next = fingers.get(i);
-            if (next != null && ChordUtils.isBetween(nodeInfo.getId(), keyHash, next.getId())) {
-                return next;
+            if (next != null && !excluded.contains(next) && ChordUtils.isBetween(nodeInfo.getId(), keyHash, next.getId())) {
+                closest = next;
+                break;
             }
         }
 
-        // return own peer
-        return nodeInfo;
+        // a node of the successor list may be closer than the fingers found (and it is known to be alive)
+        for (ChordNode next : successors) {
+            if (!excluded.contains(next) && ChordUtils.isBetween(closest.getId(), keyHash, next.getId())) {
+                closest = next;
+            }
+        }
+
+        return closest;
     }
 
     /**
@@ -283,18 +847,21 @@ public class ChordRingInfo {
      */
     public void handleSetSuccessor(ChordNode successor) {
         ChordNode oldSuccessor = getSuccessor();
-        if (oldSuccessor == null || oldSuccessor.getId() == nodeInfo.getId() ||
+        if (oldSuccessor == null || oldSuccessor.getId().equals(nodeInfo.getId()) ||
                 ChordUtils.isBetween(nodeInfo.getId(), oldSuccessor.getId(), successor.getId())) {
             fingers.set(0, successor);
+            this.addFirstSuccessor(successor);
+            locationCache.nodeJoined(successor);
+            if (!successor.equals(oldSuccessor))
+                this.routingChanged();
         }
         else {
             successor = oldSuccessor;
         }
 
         // notify the successor that we might be its predecessor
-        SenderThread.sendMessage(
-                successor.getIpAddress(),
-                successor.getPortChord(),
+        this.send(
+                successor,
                 new Message(
                         MessageType.NOTIFY,
                         nodeInfo
@@ -303,6 +870,167 @@ public class ChordRingInfo {
         );
     }
 
+    // ----------------------------------------------------------------------------------------------------
+    // ----------------------
+    // Batched lookups
+    // ----------------------
+
+    /**
+     * Finds the successors of many keys at once. The keys that are not in the location cache are grouped by the
+     * node they have to be forwarded to, and each group is sent in a single FIND_SUCC_BATCH message. Each key still
+     * has its own request id, so the answers complete each lookup, and a lookup that is not answered in time is
+     * sent again on its own, as a FIND_SUCC. In iterative mode, each key is looked up separately.
+     * @param tasks The keys in the Chord ring, and the task for each of them
+     */
+    public void startFindSuccessors(Map<ChordId, Task> tasks) {
+        this.findSuccessors(tasks, true);
+    }
+
+    /**
+     * Finds the successors of many keys at once (see startFindSuccessors()).
+     * @param tasks The keys in the Chord ring, and the task for each of them
+     * @param useCache True if the keys found in the location cache are not looked up
+     */
+    private void findSuccessors(Map<ChordId, Task> tasks, boolean useCache) {
+        Map<ChordNode, Map<Integer, ChordId>> nextHops = new HashMap<>();
+
+        for (Map.Entry<ChordId, Task> entry : tasks.entrySet()) {
+            ChordId keyHash = entry.getKey();
+            ChordNode cached = useCache ? locationCache.get(keyHash) : null;
+            if (cached != null) {
+                entry.getValue().complete(cached);
+                continue;
+            }
+
+            if (ITERATIVE_LOOKUPS) {
+                this.lookup(keyHash, entry.getValue());
+                continue;
+            }
+
+            Task task = this.cachingTask(keyHash, entry.getValue());
+            ChordNode owner = this.localSuccessor(keyHash);
+            if (owner != null) {
+                task.complete(owner);
+                continue;
+            }
+
+            ChordNode closest = closestPrecedingNode(keyHash);
+            int requestId = this.taskManager.addTask(keyHash, task, closest, this.findSuccessorResend(keyHash, task));
+            nextHops.computeIfAbsent(closest, node -> new LinkedHashMap<>()).put(requestId, keyHash);
+        }
+
+        for (Map.Entry<ChordNode, Map<Integer, ChordId>> nextHop : nextHops.entrySet())
+            this.sendFindSuccessorBatch(nextHop.getKey(), nextHop.getValue(), nodeInfo.getIpAddress(), nodeInfo.getPortChord());
+    }
+
+    /**
+     * Method to be called after a FIND_SUCC_BATCH message is received. The keys this node knows the successor of
+     * are answered with one RTRN_SUCC_BATCH per successor; the others are split by closest preceding node and
+     * forwarded.
+     * @param lookups Lookups to be done (request id -> key)
+     * @param ipAddress IP Address of the node to contact after the successors are found
+     * @param port Port number of the node to contact after the successors are found
+     */
+    public void handleFindSuccessorBatch(Map<Integer, ChordId> lookups, String ipAddress, int port) {
+        Map<ChordNode, Map<Integer, ChordId>> owners = new HashMap<>();
+        Map<ChordNode, Map<Integer, ChordId>> nextHops = new HashMap<>();
+
+        for (Map.Entry<Integer, ChordId> lookup : lookups.entrySet()) {
+            ChordNode owner = this.localSuccessor(lookup.getValue());
+            if (owner != null)
+                owners.computeIfAbsent(owner, node -> new LinkedHashMap<>()).put(lookup.getKey(), lookup.getValue());
+            else
+                nextHops.computeIfAbsent(closestPrecedingNode(lookup.getValue()), node -> new LinkedHashMap<>())
+                        .put(lookup.getKey(), lookup.getValue());
+        }
+
+        for (Map.Entry<ChordNode, Map<Integer, ChordId>> owner : owners.entrySet()) {
+            SenderThread.sendMessage(
+                    ipAddress,
+                    port,
+                    new Message(
+                            MessageType.RTRN_SUCC_BATCH,
+                            owner.getKey(),
+                            owner.getValue()
+                    ),
+                    null
+            );
+        }
+
+        for (Map.Entry<ChordNode, Map<Integer, ChordId>> nextHop : nextHops.entrySet())
+            this.sendFindSuccessorBatch(nextHop.getKey(), nextHop.getValue(), ipAddress, port);
+    }
+
+    /**
+     * Method to be called after a RTRN_SUCC_BATCH message is received. Completes the lookups answered.
+     * @param successor Successor of the keys
+     * @param lookups Lookups answered (request id -> key)
+     */
+    public void handleReturnSuccessorBatch(ChordNode successor, Map<Integer, ChordId> lookups) {
+        for (Map.Entry<Integer, ChordId> lookup : lookups.entrySet())
+            this.taskManager.completeTask(lookup.getKey(), lookup.getValue(), successor);
+    }
+
+    /**
+     * Sends FIND_SUCC_BATCH messages to a node, with at most MAX_BATCH_SIZE keys each. If the node is down, it is
+     * forgotten and the lookups continue from this node.
+     * @param node Node to send the messages to
+     * @param lookups Lookups to be done (request id -> key)
+     * @param ipAddress IP Address of the node to contact after the successors are found
+     * @param port Port number of the node to contact after the successors are found
+     */
+    private void sendFindSuccessorBatch(ChordNode node, Map<Integer, ChordId> lookups, String ipAddress, int port) {
+        Map<Integer, ChordId> batch = new LinkedHashMap<>();
+        for (Map.Entry<Integer, ChordId> lookup : lookups.entrySet()) {
+            batch.put(lookup.getKey(), lookup.getValue());
+            if (batch.size() == MAX_BATCH_SIZE) {
+                this.sendBatch(node, batch, ipAddress, port);
+                batch = new LinkedHashMap<>();
+            }
+        }
+        if (!batch.isEmpty())
+            this.sendBatch(node, batch, ipAddress, port);
+    }
+
+    /**
+     * Sends a single FIND_SUCC_BATCH message.
+     * @param node Node to send the message to
+     * @param batch Lookups to be done (request id -> key)
+     * @param ipAddress IP Address of the node to contact after the successors are found
+     * @param port Port number of the node to contact after the successors are found
+     */
+    private void sendBatch(ChordNode node, Map<Integer, ChordId> batch, String ipAddress, int port) {
+        this.send(
+                node,
+                new Message(
+                        MessageType.FIND_SUCC_BATCH,
+                        batch,
+                        ipAddress,
+                        port
+                ),
+                () -> {
+                    this.handleNodeFailure(node);
+                    this.handleFindSuccessorBatch(batch, ipAddress, port);
+                }
+        );
+    }
+
+    /**
+     * Finds the successor of a key with the information of this node only.
+     * @param keyHash Key in the Chord ring
+     * @return The successor of the key, or null if the lookup has to be forwarded to the closest preceding node
+     */
+    private ChordNode localSuccessor(ChordId keyHash) {
+        ChordNode successor = getSuccessor();
+        if (successor != null && ChordUtils.isBetweenInc(nodeInfo.getId(), successor.getId(), keyHash))
+            return successor;
+
+        if (closestPrecedingNode(keyHash).equals(nodeInfo))
+            return nodeInfo;
+
+        return null;
+    }
+
     // ----------------------------------------------------------------------------------------------------
     // -------------------------
     // Method ran periodically
@@ -316,18 +1044,18 @@ public class ChordRingInfo {
         System.out.println("----\nRunning stabilize\n----\n");
         ChordNode closestSuccessor = getSuccessor();
 
-        if (closestSuccessor == null || closestSuccessor.getId() == nodeInfo.getId())
+        if (closestSuccessor == null || closestSuccessor.getId().equals(nodeInfo.getId()))
             return;
 
-        // ask successor for its predecessor (it might be our new successor)
-        SenderThread.sendMessage(
-                closestSuccessor.getIpAddress(),
-                closestSuccessor.getPortChord(),
+        // ask successor for its predecessor (it might be our new successor); if it is down,
+        // the next node of the successor list takes its place
+        this.send(
+                closestSuccessor,
                 new Message(
                     MessageType.GET_PRED,
                     nodeInfo
                 ),
-                null
+                new SuccessorError(this, closestSuccessor)
         );
     }
 
@@ -335,46 +1063,243 @@ public class ChordRingInfo {
     public void handleGetPred(ChordNode node) {
         if(this.predecessor == null) {
             this.predecessor = node;
+            this.predecessorLearned();
         }
 
-        SenderThread.sendMessage(
-                node.getIpAddress(),
-                node.getPortChord(),
+        // the successor list is sent with the predecessor, so that the other node can build its own
+        List<ChordNode> successorList = new ArrayList<>(SUCCESSOR_LIST_SIZE);
+        successorList.add(nodeInfo);
+        for (ChordNode successor : successors) {
+            if (successorList.size() >= SUCCESSOR_LIST_SIZE)
+                break;
+            successorList.add(successor);
+        }
+
+        this.send(
+                node,
                 new Message(
                     MessageType.RTRN_PRED,
-                    this.predecessor
+                    this.predecessor,
+                    successorList
                 ),
                 null
         );
     }
 
+    /**
+     * Method to be called after a RTRN_PRED message is received, in response to the GET_PRED of stabilize.
+     * @param predecessor Predecessor of our successor (it might be our new successor)
+     * @param successorList Successor list of our successor, starting with the successor itself
+     */
+    public void handleReturnPredecessor(ChordNode predecessor, List<ChordNode> successorList) {
+        if (!successorList.isEmpty()) {
+            this.updateSuccessorList(successorList);
+            for (ChordNode node : successorList)
+                this.learnFinger(node);
+        }
+        this.handleSetSuccessor(predecessor);
+    }
+
+    /**
+     * Replaces the successor list, leaving out this node and repeated nodes, and keeping at most
+     * SUCCESSOR_LIST_SIZE nodes.
+     * @param list New successor list, starting with the successor
+     */
+    private void updateSuccessorList(List<ChordNode> list) {
+        List<ChordNode> newSuccessors = new ArrayList<>(SUCCESSOR_LIST_SIZE);
+        for (ChordNode node : list) {
+            if (newSuccessors.size() >= SUCCESSOR_LIST_SIZE)
+                break;
+            if (!node.equals(nodeInfo) && !newSuccessors.contains(node))
+                newSuccessors.add(node);
+        }
+        this.successors = Collections.unmodifiableList(newSuccessors);
+    }
+
+    /**
+     * Puts a new successor at the start of the successor list.
+     * @param successor New successor of the node
+     */
+    private void addFirstSuccessor(ChordNode successor) {
+        List<ChordNode> list = new ArrayList<>(successors.size() + 1);
+        list.add(successor);
+        list.addAll(successors);
+        this.updateSuccessorList(list);
+    }
+
+    /**
+     * Forgets a node that did not answer: removes it from the successor list and the fingers. If it was the
+     * successor, the next node of the successor list takes its place (or this node, if the list is empty).
+     * @param failed Node that failed
+     */
+    public void handleNodeFailure(ChordNode failed) {
+        if (failed.equals(nodeInfo))
+            return;
+
+        locationCache.remove(failed);
+        latencies.remove(failed.getId());
+        List<ChordNode> list = new ArrayList<>(successors);
+        list.remove(failed);
+        this.updateSuccessorList(list);
+
+        // the finger is replaced by one of its other candidates, if there is any
+        int index = this.fingerIndex(failed.getId());
+        if (index > 0) {
+            List<ChordNode> candidates = new ArrayList<>(fingerCandidates.get(index));
+            if (candidates.remove(failed))
+                fingerCandidates.set(index, Collections.unmodifiableList(candidates));
+        }
+        for (int i = fingers.length() - 1; i > 0; i--) {
+            ChordNode finger = fingers.get(i);
+            if (failed.equals(finger)) {
+                fingers.compareAndSet(i, finger, null);
+                this.selectFinger(i);
+            }
+        }
+
+        ChordNode successor = fingers.get(0);
+        if (failed.equals(successor)) {
+            ChordNode replacement = list.isEmpty() ? nodeInfo : list.get(0);
+            if (fingers.compareAndSet(0, successor, replacement))
+                System.out.println("----\nSuccessor " + failed.getId() + " failed; new successor is " + replacement.getId() + "\n----\n");
+        }
+
+        this.routingChanged();
+    }
+
+    /**
+     * Method to be called when the successor does not answer to stabilize. The next node of the successor list
+     * takes its place, and stabilize is run again with it right away.
+     * @param failed Successor that failed
+     */
+    public void handleSuccessorError(ChordNode failed) {
+        this.handleNodeFailure(failed);
+
+        ChordNode successor = getSuccessor();
+        if (successor != null && !successor.equals(failed) && !successor.equals(nodeInfo))
+            this.stabilize();
+    }
+
     public void handleNotify(ChordNode possiblePredecessor) {
         if (predecessor == null ||
                 ChordUtils.isBetween(predecessor.getId(), nodeInfo.getId(), possiblePredecessor.getId())) {
+            if (!possiblePredecessor.equals(predecessor))
+                this.routingChanged();
             predecessor = possiblePredecessor;
+            this.predecessorLearned();
         }
 
+        // the node may have taken over keys that were cached as belonging to another node
+        locationCache.nodeJoined(possiblePredecessor);
+        this.learnFinger(possiblePredecessor);
+
         // if we have no successors, then the predecessor might also be our successor
         ChordNode oldSuccessor = getSuccessor();
-        if (oldSuccessor == null || oldSuccessor.getId() == nodeInfo.getId()) {
+        if (oldSuccessor == null || oldSuccessor.getId().equals(nodeInfo.getId())) {
             fingers.set(0, possiblePredecessor);
+            this.addFirstSuccessor(possiblePredecessor);
+        }
+    }
+
+    /**
+     * Called when the predecessor of the node is set. The first time it happens after joining, the node asks its
+     * successor for the chunks of the keys it took over.
+     */
+    private void predecessorLearned() {
+        ChordNode predecessor = this.predecessor;
+        ChordNode successor = getSuccessor();
+        if (!rangePending || predecessor == null || successor == null || successor.equals(nodeInfo))
+            return;
+
+        rangePending = false;
+        RangeListener listener = this.rangeListener;
+        if (listener != null)
+            listener.rangeAcquired(this, predecessor.getId(), successor);
+    }
+
+    /**
+     * Runs a round of the periodically ran methods, and schedules the next one. While the routing state of the
+     * node (predecessor, successor list and fingers) keeps changing, the rounds run every MIN_DELAY; once it
+     * stops changing, the delay doubles after each round, up to MAX_DELAY.
+     */
+    private void maintain() {
+        synchronized (maintenanceLock) {
+            if (maintenanceStopped)
+                return;
+
+            List<ChordNode> routingState = this.routingState();
+            if (routingState.equals(lastRoutingState))
+                maintenanceDelay = Math.min(2 * maintenanceDelay, MAX_DELAY);
+            else
+                maintenanceDelay = MIN_DELAY;
+            lastRoutingState = routingState;
+
+            nextMaintenance = maintenanceTimer.schedule(this::maintain, maintenanceDelay, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            this.stabilize();
+            this.startCheckPredecessor();
+            this.fixFingers();
+            this.probeFingerCandidates();
+        } catch (RuntimeException e) {
+            System.err.println("Error running the periodic Chord methods");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called when a node joins or leaves next to this node, so that the next round runs within MIN_DELAY
+     * instead of waiting for the backed off delay.
+     */
+    private void routingChanged() {
+        synchronized (maintenanceLock) {
+            if (maintenanceStopped || maintenanceDelay == MIN_DELAY)
+                return;
+
+            maintenanceDelay = MIN_DELAY;
+            if (nextMaintenance != null && nextMaintenance.getDelay(TimeUnit.MILLISECONDS) > MIN_DELAY
+                    && nextMaintenance.cancel(false))
+                nextMaintenance = maintenanceTimer.schedule(this::maintain, MIN_DELAY, TimeUnit.MILLISECONDS);
         }
     }
 
     /**
-     * Method that fixes the entries of the finger tables.
+     * Retrieves the routing state of the node: its predecessor, successor list and fingers.
+     * @return list with the nodes of the routing state
+     */
+    private List<ChordNode> routingState() {
+        List<ChordNode> state = new ArrayList<>(1 + successors.size() + fingers.length());
+        state.add(predecessor);
+        state.addAll(successors);
+        for (int i = 0; i < fingers.length(); i++)
+            state.add(fingers.get(i));
+        return state;
+    }
+
+    /**
+     * Method that fixes all the entries of the finger table, looking up their starts in a single batched pass.
+     * A start that falls in (n, previous finger] has that same finger as its successor, so it is not looked up;
+     * with m much bigger than log2 of the number of nodes, that leaves about one lookup per node of the ring.
      */
     public void fixFingers() {
-        int nextCopy = next;
+        System.out.println("----\nRunning fix fingers\n----\n");
 
-        int wantedFingerKeyHash = this.nodeInfo.getId() + (int) Math.pow(2, nextCopy);
-        wantedFingerKeyHash = (wantedFingerKeyHash % (int) Math.pow(2, m));
-        System.out.println("----\nRunning fix fingers with index = " + nextCopy + " (hash = " + wantedFingerKeyHash + ")\n----\n");
+        Map<ChordId, Task> lookups = new LinkedHashMap<>();
+        for (int i = 0; i < m; i++) {
+            int index = i;
+            ChordId start = this.nodeInfo.getId().addPowerOfTwo(i, m);
 
-        startFindSuccessor(wantedFingerKeyHash,
-                (chordNode) -> assignFinger(nextCopy, chordNode));
+            ChordNode previous = i > 0 ? fingers.get(i - 1) : null;
+            if (previous != null && ChordUtils.isBetweenInc(nodeInfo.getId(), previous.getId(), start)) {
+                this.assignFinger(index, previous);
+                continue;
+            }
+            lookups.put(start, (chordNode) -> assignFinger(index, chordNode));
+        }
 
-        next = ++next >= m ? 0 : next;
+        // the cache is not used, since the purpose is to find changes in the ring
+        this.findSuccessors(lookups, false);
     }
 
     /**
@@ -383,8 +1308,25 @@ public class ChordRingInfo {
      * @param response The Chord Node to be assigned
      */
     public void assignFinger(int index, ChordNode response) {
-        System.out.println("----\nAssign finger with index = " + index + " (key of node = " + response.getId() + ")\n----\n");
-        fingers.set(index, response);
+        if (index > 0 && this.fingerIndex(response.getId()) == index) {
+            // the response is the first node of the interval of the finger; the candidates before it are gone
+            List<ChordNode> newCandidates = new ArrayList<>(FINGER_CANDIDATES);
+            newCandidates.add(response);
+            for (ChordNode candidate : fingerCandidates.get(index)) {
+                if (newCandidates.size() < FINGER_CANDIDATES && ChordUtils.isBetween(response.getId(), nodeInfo.getId(), candidate.getId()))
+                    newCandidates.add(candidate);
+            }
+            fingerCandidates.set(index, Collections.unmodifiableList(newCandidates));
+            this.selectFinger(index);
+            return;
+        }
+
+        // there is no node in the interval of the finger, so it is the successor of its start
+        if (index > 0)
+            fingerCandidates.set(index, Collections.emptyList());
+        ChordNode oldFinger = fingers.getAndSet(index, response);
+        if (!response.equals(oldFinger))
+            System.out.println("----\nAssign finger with index = " + index + " (key of node = " + response.getId() + ")\n----\n");
     }
 
     /**
@@ -394,20 +1336,19 @@ public class ChordRingInfo {
         System.out.println("----\nRunning start check predecessor\n----\n");
 
         if (predecessor != null)
-            SenderThread.sendMessage(
-                    predecessor.getIpAddress(),
-                    predecessor.getPortChord(),
+            this.send(
+                    predecessor,
                     new Message(MessageType.CHECK_ACTIVE),
                     new PredecessorError(this)
             );
     }
 
     public void handlePredecessorError() {
-        ChordNode successor = getSuccessor();
-        if (successor != null && successor.getId() == this.predecessor.getId()) {
-            fingers.set(0, nodeInfo);
-        }
+        ChordNode failed = this.predecessor;
+        if (failed == null)
+            return;
         predecessor = null;
+        this.handleNodeFailure(failed);
     }
 
     // ----------------------------------------------------------------------------------------------------
@@ -415,30 +1356,67 @@ public class ChordRingInfo {
     // Exiting
     // ------------------
 
-    public void exit() {
+    /**
+     * Tells the neighbours of this node that it is leaving the ring.
+     * @param newSuccessor Successor to give to the predecessor of this node (null to not update it)
+     * @param newPredecessor Predecessor to give to the successor of this node (null to not update it)
+     */
+    public void exit(ChordNode newSuccessor, ChordNode newPredecessor) {
+        ChordNode predecessor = this.predecessor;
         ChordNode successor = fingers.get(0);
 
         // Update predecessor's successor
-        SenderThread.sendMessage(
-                predecessor.getIpAddress(),
-                predecessor.getPortChord(),
-                new Message(MessageType.SET_SUCC, successor),
-                null
-        );
+        if (predecessor != null && newSuccessor != null)
+            this.send(
+                    predecessor,
+                    new Message(MessageType.SET_SUCC, newSuccessor),
+                    null
+            );
 
         // Update successor's predecessor
-        SenderThread.sendMessage(
-                successor.getIpAddress(),
-                successor.getPortChord(),
-                new Message(MessageType.SET_PRED, predecessor),
-                null
-        );
+        if (successor != null && newPredecessor != null)
+            this.send(
+                    successor,
+                    new Message(MessageType.SET_PRED, newPredecessor),
+                    null
+            );
     }
 
     public void endTasks() {
-        this.scheduledStabilize.cancel(false);
-        this.scheduledFixFingers.cancel(false);
-        this.scheduledStartCheckPredecessor.cancel(false);
+        synchronized (maintenanceLock) {
+            maintenanceStopped = true;
+            if (nextMaintenance != null)
+                nextMaintenance.cancel(false);
+        }
+    }
+
+    /**
+     * Sends a message to the Chord port of a node, addressed to it (the peer of the node may host other
+     * virtual nodes).
+     * @param node Node to send the message to
+     * @param message Message to be sent
+     * @param onError Callback for when the message cannot be sent
+     */
+    private void send(ChordNode node, Message message, OnError onError) {
+        message.setReceiverId(node.getId());
+        SenderThread.sendMessage(node.getIpAddress(), node.getPortChord(), message, onError);
+    }
+
+    /**
+     * Sends a request whose round-trip time is measured. The time starts when the request is written to the
+     * connection, so the wait in the queue of the sender and the handshake of a new connection are not counted.
+     * @param node Node to send the request to
+     * @param message Request to be sent
+     * @param onError Callback for when the request cannot be sent
+     */
+    private void sendTimed(ChordNode node, Message message, OnError onError) {
+        message.setReceiverId(node.getId());
+        SenderThread.send(node.getIpAddress(), node.getPortChord(), message).whenComplete((result, error) -> {
+            if (error == null)
+                latencies.requestSent(node.getId());
+            else if (onError != null)
+                onError.errorOccurred();
+        });
     }
 
     // ----------------------------------------------------------------------------------------------------
@@ -461,4 +1439,25 @@ public class ChordRingInfo {
     public AtomicReferenceArray<ChordNode> getFingers() {
         return fingers;
     }
+
+    public List<ChordNode> getSuccessors() {
+        return successors;
+    }
+
+    public LocationCache getLocationCache() {
+        return locationCache;
+    }
+
+    public static LatencyTable getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Checks if an iterative lookup started by this node is still running.
+     * @param requestId Request id of the lookup
+     * @return True if the lookup is running
+     */
+    public boolean hasIterativeLookup(int requestId) {
+        return iterativeLookups.containsKey(requestId);
+    }
 }
@@ -4,19 +4,25 @@ package peer.chord;
  * Class containing utility functions for Chord.
  */
 public class ChordUtils {
-    public static boolean isBetweenInc(int lower, int upper, int key) {
-        if (lower < upper) {
-            return key > lower && key <= upper;
+    /**
+     * Checks if a key is in the interval (lower, upper] of the ring.
+     */
+    public static boolean isBetweenInc(ChordId lower, ChordId upper, ChordId key) {
+        if (lower.compareTo(upper) < 0) {
+            return key.compareTo(lower) > 0 && key.compareTo(upper) <= 0;
         } else {
-            return key > lower || key <= upper;
+            return key.compareTo(lower) > 0 || key.compareTo(upper) <= 0;
         }
     }
 
-    public static boolean isBetween(int lower, int upper, int key) {
-        if (lower < upper) {
-            return key > lower && key < upper;
+    /**
+     * Checks if a key is in the interval (lower, upper) of the ring.
+     */
+    public static boolean isBetween(ChordId lower, ChordId upper, ChordId key) {
+        if (lower.compareTo(upper) < 0) {
+            return key.compareTo(lower) > 0 && key.compareTo(upper) < 0;
         } else {
-            return key > lower || key < upper;
+            return key.compareTo(lower) > 0 || key.compareTo(upper) < 0;
         }
     }
 }
@@ -0,0 +1,205 @@
+package peer.chord;
+
+import peer.task.Task;
+import peer.task.TaskManager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Lookup driven by the node that started it (iterative mode). Instead of forwarding the FIND_SUCC from hop to hop,
+ * the node asks the nodes itself (FIND_NEXT), up to a number of them in parallel, and each one answers with the
+ * successor of the key or with the nodes closest to the key that it knows (RTRN_NEXT). Nodes that do not answer
+ * are skipped.
+ */
+class IterativeLookup implements Task, TaskManager.Resend {
+    /**
+     * Chord information of this node, used to send the queries.
+     */
+    private final ChordRingInfo ringInfo;
+
+    /**
+     * Key being looked up.
+     */
+    private final ChordId key;
+
+    /**
+     * Task to be completed with the successor of the key.
+     */
+    private final Task task;
+
+    /**
+     * Maximum number of nodes being asked at the same time.
+     */
+    private final int parallelism;
+
+    /**
+     * Request id of the lookup.
+     */
+    private int requestId;
+
+    /**
+     * Nodes that can still be asked, the closest to the key first.
+     */
+    private final TreeSet<ChordNode> candidates;
+
+    /**
+     * Nodes that were already asked.
+     */
+    private final Set<ChordNode> queried = new HashSet<>();
+
+    /**
+     * Nodes that were asked and did not answer yet.
+     */
+    private final Set<ChordId> waiting = new HashSet<>();
+
+    /**
+     * Constructor of the lookup.
+     * @param ringInfo Chord information of this node
+     * @param key Key being looked up
+     * @param task Task to be completed with the successor of the key
+     * @param parallelism Maximum number of nodes being asked at the same time
+     */
+    IterativeLookup(ChordRingInfo ringInfo, ChordId key, Task task, int parallelism) {
+        this.ringInfo = ringInfo;
+        this.key = key;
+        this.task = task;
+        this.parallelism = parallelism;
+
+        // a node is closer than another if it is between the other and the key
+        this.candidates = new TreeSet<>((a, b) -> {
+            if (a.equals(b))
+                return 0;
+            return ChordUtils.isBetween(b.getId(), key, a.getId()) ? -1 : 1;
+        });
+    }
+
+    ChordId getKey() {
+        return key;
+    }
+
+    int getRequestId() {
+        return requestId;
+    }
+
+    void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * Starts the lookup, asking the closest nodes known by this node.
+     * @param nodes Nodes known by this node that precede the key
+     */
+    void start(List<ChordNode> nodes) {
+        List<ChordNode> toQuery;
+        synchronized (this) {
+            this.addCandidates(nodes);
+            toQuery = this.nextQueries();
+        }
+        this.query(toQuery);
+    }
+
+    /**
+     * Handles an answer with the nodes to ask next.
+     * @param from Id of the node that answered
+     * @param nodes Nodes to ask next
+     */
+    void answer(ChordId from, List<ChordNode> nodes) {
+        List<ChordNode> toQuery;
+        synchronized (this) {
+            waiting.remove(from);
+            this.addCandidates(nodes);
+            toQuery = this.nextQueries();
+        }
+        this.query(toQuery);
+    }
+
+    /**
+     * Handles a node that could not be asked; the next candidate is asked instead.
+     * @param node Node that failed
+     */
+    void failed(ChordNode node) {
+        List<ChordNode> toQuery;
+        synchronized (this) {
+            waiting.remove(node.getId());
+            toQuery = this.nextQueries();
+        }
+        this.query(toQuery);
+    }
+
+    /**
+     * Called by the task manager when no answer arrived in time: the nodes being waited for are skipped,
+     * and the next candidates are asked.
+     * @param requestId Id of the lookup
+     * @param tried Not used; the lookup keeps the nodes it asked
+     * @return True if some node was asked, false if there are no more candidates
+     */
+    @Override
+    public boolean resend(int requestId, Set<ChordNode> tried) {
+        List<ChordNode> toQuery;
+        synchronized (this) {
+            waiting.clear();
+            toQuery = this.nextQueries();
+        }
+        this.query(toQuery);
+        return !toQuery.isEmpty();
+    }
+
+    /**
+     * Called by the task manager when the lookup is dropped.
+     * @param requestId Id of the lookup
+     */
+    @Override
+    public void dropped(int requestId) {
+        ringInfo.removeIterativeLookup(requestId);
+        task.dropped();
+    }
+
+    /**
+     * Called by the task manager when the successor of the key is found.
+     * @param successor Successor of the key
+     */
+    @Override
+    public void complete(ChordNode successor) {
+        ringInfo.removeIterativeLookup(requestId);
+        task.complete(successor);
+    }
+
+    /**
+     * Adds nodes to the candidates, leaving out this node and the nodes already asked.
+     * @param nodes Nodes to add
+     */
+    private void addCandidates(List<ChordNode> nodes) {
+        for (ChordNode node : nodes) {
+            if (!node.equals(ringInfo.getNodeInfo()) && !queried.contains(node))
+                candidates.add(node);
+        }
+    }
+
+    /**
+     * Takes the closest candidates, as many as can be asked now.
+     * @return Nodes to ask
+     */
+    private List<ChordNode> nextQueries() {
+        List<ChordNode> toQuery = new ArrayList<>();
+        while (waiting.size() < parallelism && !candidates.isEmpty()) {
+            ChordNode node = candidates.pollFirst();
+            queried.add(node);
+            waiting.add(node.getId());
+            toQuery.add(node);
+        }
+        return toQuery;
+    }
+
+    /**
+     * Sends the FIND_NEXT messages (outside the lock of the lookup, since sending may wait).
+     * @param toQuery Nodes to ask
+     */
+    private void query(List<ChordNode> toQuery) {
+        for (ChordNode node : toQuery)
+            ringInfo.sendFindNext(this, node);
+    }
+}
@@ -0,0 +1,140 @@
+package peer.chord;
+
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trip times measured to other nodes. A request that gets its answer straight from the node it was sent to
+ * (FIND_NEXT, PING) is timed from when it is written until the answer arrives, and the times of each node are
+ * smoothed like TCP does (each new sample weighs 1/8). Only the last request sent to a node is timed. The first
+ * sample of a node is discarded, since it also pays for the setup of the connection on the other side.
+ */
+public class LatencyTable {
+    /**
+     * Measured round-trip time of a node.
+     */
+    private static class Entry {
+        long smoothed;
+        long updated;
+
+        Entry(long smoothed, long updated) {
+            this.smoothed = smoothed;
+            this.updated = updated;
+        }
+    }
+
+    /**
+     * Round-trip times of the nodes (in nanoseconds).
+     */
+    private final ConcurrentHashMap<ChordId, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Time at which the last request to each node that is waiting for its answer was sent.
+     */
+    private final ConcurrentHashMap<ChordId, Long> sent = new ConcurrentHashMap<>();
+
+    /**
+     * Nodes whose first sample was already discarded.
+     */
+    private final Set<ChordId> warmedUp = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Records that a request was sent to a node.
+     * @param node Id of the node
+     */
+    public void requestSent(ChordId node) {
+        sent.put(node, System.nanoTime());
+    }
+
+    /**
+     * Records that the answer of a node arrived; ignored if no request to it is waiting.
+     * @param node Id of the node
+     */
+    public void answerReceived(ChordId node) {
+        Long sendTime = sent.remove(node);
+        if (sendTime != null)
+            this.record(node, System.nanoTime() - sendTime);
+    }
+
+    /**
+     * Adds a sample of the round-trip time of a node (the first sample of each node is discarded).
+     * @param node Id of the node
+     * @param rtt Round-trip time (in nanoseconds)
+     */
+    public void record(ChordId node, long rtt) {
+        if (warmedUp.add(node))
+            return;
+
+        long now = System.nanoTime();
+        entries.compute(node, (id, entry) -> {
+            if (entry == null)
+                return new Entry(rtt, now);
+            entry.smoothed += (rtt - entry.smoothed) / 8;
+            entry.updated = now;
+            return entry;
+        });
+    }
+
+    /**
+     * Retrieves the round-trip time of a node.
+     * @param node Id of the node
+     * @return The smoothed round-trip time (in nanoseconds), or -1 if it was never measured
+     */
+    public long get(ChordId node) {
+        Entry entry = entries.get(node);
+        return entry == null ? -1 : entry.smoothed;
+    }
+
+    /**
+     * Checks if the round-trip time of a node was measured recently.
+     * @param node Id of the node
+     * @param maxAge Maximum age of the last sample (in milliseconds)
+     * @return True if there is a sample newer than maxAge
+     */
+    public boolean isFresh(ChordId node, long maxAge) {
+        Entry entry = entries.get(node);
+        return entry != null && System.nanoTime() - entry.updated < TimeUnit.MILLISECONDS.toNanos(maxAge);
+    }
+
+    /**
+     * Forgets a node (that failed or left the ring).
+     * @param node Id of the node
+     */
+    public void remove(ChordId node) {
+        entries.remove(node);
+        sent.remove(node);
+        warmedUp.remove(node);
+    }
+
+    /**
+     * Orders nodes by their round-trip time, the nodes that were never measured last.
+     * @return The comparator
+     */
+    public Comparator<ChordId> byLatency() {
+        return Comparator.comparingLong(node -> {
+            long rtt = this.get(node);
+            return rtt < 0 ? Long.MAX_VALUE : rtt;
+        });
+    }
+
+    /**
+     * Retrieves the metrics of the table.
+     * @return line with the metrics
+     */
+    public String state() {
+        long min = Long.MAX_VALUE, max = 0, total = 0;
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            min = Math.min(min, entry.smoothed);
+            max = Math.max(max, entry.smoothed);
+            total += entry.smoothed;
+            count++;
+        }
+        if (count == 0)
+            return "Latencies: no nodes measured\n";
+        return "Latencies: " + count + " nodes measured, min " + TimeUnit.NANOSECONDS.toMicros(min) + " us, average "
+                + TimeUnit.NANOSECONDS.toMicros(total / count) + " us, max " + TimeUnit.NANOSECONDS.toMicros(max) + " us\n";
+    }
+}
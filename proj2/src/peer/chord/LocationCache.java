@@ -0,0 +1,155 @@
+package peer.chord;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Cache of the nodes responsible for the keys looked up by this node. Each entry is a node and the range of keys
+ * [low, id of the node] that are known to belong to it: when a lookup for a key returns a node, every key between
+ * that key and the node also belongs to it. Consecutive chunks of a file often fall in the same range, so most of
+ * them do not need a lookup. The entries are kept by least recent use, up to a maximum.
+ */
+public class LocationCache {
+    /**
+     * Range of keys of a node.
+     */
+    private static class Entry {
+        final ChordNode node;
+        ChordId low;
+
+        Entry(ChordNode node, ChordId low) {
+            this.node = node;
+            this.low = low;
+        }
+
+        boolean contains(ChordId key) {
+            // a range that starts at the node only has its id (isBetween(a, a, key) would be the whole ring)
+            if (low.equals(node.getId()))
+                return key.equals(low);
+            return key.equals(low) || key.equals(node.getId()) || ChordUtils.isBetween(low, node.getId(), key);
+        }
+    }
+
+    /**
+     * Maximum number of entries.
+     */
+    private final int capacity;
+
+    /**
+     * Entries ordered by the id of their node, to find the one a key could belong to.
+     */
+    private final TreeMap<ChordId, Entry> entries = new TreeMap<>();
+
+    /**
+     * Ids of the nodes of the entries, in order of use (least recently used first).
+     */
+    private final LinkedHashMap<ChordId, Entry> recentlyUsed = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Metrics of the cache.
+     */
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Constructor of the cache.
+     * @param capacity Maximum number of entries
+     */
+    public LocationCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Finds the node responsible for a key, if it is known.
+     * @param key Key in the Chord ring
+     * @return The node responsible for the key, or null if it is not in the cache
+     */
+    public synchronized ChordNode get(ChordId key) {
+        Map.Entry<ChordId, Entry> candidate = entries.ceilingEntry(key);
+        if (candidate == null)
+            candidate = entries.firstEntry();
+
+        if (candidate == null || !candidate.getValue().contains(key)) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        recentlyUsed.get(candidate.getKey());
+        return candidate.getValue().node;
+    }
+
+    /**
+     * Records the node responsible for a key, as returned by a lookup.
+     * @param key Key in the Chord ring
+     * @param node Node responsible for the key
+     */
+    public synchronized void put(ChordId key, ChordNode node) {
+        // entries of other nodes that say otherwise are outdated
+        this.removeIf(entry -> !entry.node.equals(node) && entry.contains(key));
+
+        Entry entry = entries.get(node.getId());
+        if (entry == null) {
+            entry = new Entry(node, key);
+            entries.put(node.getId(), entry);
+            recentlyUsed.put(node.getId(), entry);
+        } else {
+            recentlyUsed.get(node.getId());
+            // the key belongs to the node, so every key between it and the node also does
+            if (!entry.contains(key))
+                entry.low = key;
+        }
+
+        while (entries.size() > capacity) {
+            Iterator<ChordId> eldest = recentlyUsed.keySet().iterator();
+            entries.remove(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Removes the entry of a node (that failed or left the ring).
+     * @param node The node
+     */
+    public synchronized void remove(ChordNode node) {
+        entries.remove(node.getId());
+        recentlyUsed.remove(node.getId());
+    }
+
+    /**
+     * Removes the entries whose range includes a node that joined the ring, since it took over part of them.
+     * @param node The node that joined
+     */
+    public synchronized void nodeJoined(ChordNode node) {
+        this.removeIf(entry -> !entry.node.equals(node) && entry.contains(node.getId()));
+    }
+
+    /**
+     * Removes the entries that match a condition.
+     * @param condition The condition
+     */
+    private void removeIf(Predicate<Entry> condition) {
+        List<ChordId> toRemove = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (condition.test(entry))
+                toRemove.add(entry.node.getId());
+        }
+        for (ChordId id : toRemove) {
+            entries.remove(id);
+            recentlyUsed.remove(id);
+        }
+    }
+
+    /**
+     * Retrieves the metrics of the cache.
+     * @return line with the metrics
+     */
+    public synchronized String state() {
+        return "Location cache: " + entries.size() + " entries, " + hits + " hits, " + misses + " misses\n";
+    }
+}
@@ -0,0 +1,195 @@
+package peer.jsse;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Pool of open SSL/TLS connections to other peers, organized by destination (IP address and port).
+ * Connections are kept open after being used, so that later messages to the same peer do not need
+ * a new TCP connection and handshake.
+ */
+public class ConnectionPool {
+    /**
+     * Interface for the creation of new connections, when there are none available in the pool.
+     */
+    public interface ConnectionFactory {
+        SSLConnection create(String remoteAddress, int port) throws Exception;
+    }
+
+    /**
+     * Connections (idle and in use) to a single destination.
+     */
+    private static class Destination {
+        /**
+         * Permits for opening/using connections to the destination.
+         */
+        private final Semaphore permits;
+
+        /**
+         * Connections to the destination that are open and not being used.
+         */
+        private final ConcurrentLinkedDeque<SSLConnection> idle = new ConcurrentLinkedDeque<>();
+
+        private Destination(int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+    }
+
+    /**
+     * Maximum number of connections to each destination.
+     */
+    private final int maxConnectionsPerDestination;
+
+    /**
+     * Time (in milliseconds) after which an idle connection is closed.
+     */
+    private final long idleTimeout;
+
+    /**
+     * Maximum time (in milliseconds) to wait for a connection to a destination.
+     */
+    private final long acquireTimeout;
+
+    /**
+     * Factory used to create new connections.
+     */
+    private final ConnectionFactory factory;
+
+    /**
+     * Destinations of the pool.
+     * key = ipAddress:port
+     * value = connections to that destination
+     */
+    private final ConcurrentHashMap<String, Destination> destinations = new ConcurrentHashMap<>();
+
+    /**
+     * Executor responsible for periodically closing idle connections.
+     */
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Constructor of the connection pool.
+     * @param factory Factory used to create new connections
+     * @param maxConnectionsPerDestination Maximum number of connections to each destination
+     * @param idleTimeout Time (in milliseconds) after which an idle connection is closed
+     * @param acquireTimeout Maximum time (in milliseconds) to wait for a connection to a destination
+     */
+    public ConnectionPool(ConnectionFactory factory, int maxConnectionsPerDestination, long idleTimeout, long acquireTimeout) {
+        this.factory = factory;
+        this.maxConnectionsPerDestination = maxConnectionsPerDestination;
+        this.idleTimeout = idleTimeout;
+        this.acquireTimeout = acquireTimeout;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, idleTimeout, idleTimeout / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a connection to a destination, reusing an idle one if possible. The connection must be
+     * given back to the pool afterwards, with release() or invalidate().
+     * @param remoteAddress IP address of the destination
+     * @param port Port of the destination
+     * @return A connection to the destination, ready to be used
+     * @throws Exception when there are too many connections to the destination, or a new connection could not be created
+     */
+    public SSLConnection acquire(String remoteAddress, int port) throws Exception {
+        Destination destination = destinations.computeIfAbsent(key(remoteAddress, port),
+                value -> new Destination(maxConnectionsPerDestination));
+
+        if (!destination.permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+            throw new IOException("Timed out waiting for a connection to " + key(remoteAddress, port));
+        }
+
+        try {
+            // most recently used connections are tried first
+            SSLConnection connection;
+            while ((connection = destination.idle.pollFirst()) != null) {
+                if (connection.isAlive())
+                    return connection;
+                connection.close();
+            }
+
+            connection = factory.create(remoteAddress, port);
+            if (connection == null)
+                throw new IOException("Could not connect to " + key(remoteAddress, port));
+            return connection;
+        } catch (Exception e) {
+            destination.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool, so that it can be reused.
+     * @param connection Connection that was being used
+     */
+    public void release(SSLConnection connection) {
+        Destination destination = destinations.get(key(connection.getRemoteAddress(), connection.getPort()));
+        if (destination == null) {
+            connection.close();
+            return;
+        }
+
+        destination.idle.offerFirst(connection);
+        destination.permits.release();
+    }
+
+    /**
+     * Gives a broken connection back to the pool, which closes it.
+     * @param connection Connection that was being used
+     */
+    public void invalidate(SSLConnection connection) {
+        connection.close();
+
+        Destination destination = destinations.get(key(connection.getRemoteAddress(), connection.getPort()));
+        if (destination != null)
+            destination.permits.release();
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the idle timeout.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        for (Destination destination : destinations.values()) {
+            Iterator<SSLConnection> iterator = destination.idle.iterator();
+            while (iterator.hasNext()) {
+                SSLConnection connection = iterator.next();
+                if (connection.getIdleTime(now) >= idleTimeout && destination.idle.removeFirstOccurrence(connection)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops the eviction of connections.
+     */
+    public void shutdown() {
+        evictor.shutdownNow();
+
+        for (Map.Entry<String, Destination> entry : destinations.entrySet()) {
+            SSLConnection connection;
+            while ((connection = entry.getValue().idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Builds the key of a destination.
+     * @param remoteAddress IP address of the destination
+     * @param port Port of the destination
+     * @return The key of the destination
+     */
+    private static String key(String remoteAddress, int port) {
+        return remoteAddress + ":" + port;
+    }
+}
@@ -0,0 +1,269 @@
+package peer.jsse;
+
+import peer.buffers.BufferPool;
+import peer.buffers.SharedBuffer;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread with its own selector that opens the connections to other peers. Both the connection and the
+ * handshake are driven by the events of the selector, so no thread is kept waiting for the network.
+ * When the handshake is done, the channel is put back in blocking mode and handed to the sender.
+ */
+public class Connector implements Runnable {
+    /**
+     * State of a connection that is being opened.
+     */
+    private static class PendingConnect {
+        final SocketChannel socketChannel;
+        final SSLEngine engine;
+        final CompletableFuture<Void> future;
+        TLSHandshake handshake;
+        SharedBuffer peerNetBuffer;
+
+        PendingConnect(SocketChannel socketChannel, SSLEngine engine, CompletableFuture<Void> future) {
+            this.socketChannel = socketChannel;
+            this.engine = engine;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Selector that will serve all connections being opened.
+     */
+    private final Selector selector;
+
+    /**
+     * Connections that still need to be registered in the selector.
+     */
+    private final ConcurrentLinkedQueue<PendingConnect> pendingConnects = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Keys of the connections whose handshake can continue, after its delegated tasks were done.
+     */
+    private final ConcurrentLinkedQueue<SelectionKey> resumedHandshakes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Connections whose handshake is done, waiting for their key to be removed from the selector.
+     */
+    private final List<PendingConnect> finished = new ArrayList<>();
+
+    /**
+     * Flag to know if the connector should stop.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructor of the connector. Starts its thread.
+     * @throws IOException when the selector cannot be opened
+     */
+    public Connector() throws IOException {
+        this.selector = SelectorProvider.provider().openSelector();
+
+        Thread thread = new Thread(this, "connector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts opening a connection to another peer. Can be called from any thread.
+     * @param socketChannel Socket channel (not connected yet) to be used
+     * @param engine Engine of the connection, in client mode
+     * @param address Address of the other peer
+     * @return Future completed when the handshake is done, with the channel in blocking mode
+     * @throws IOException when the connection cannot be started
+     */
+    public CompletableFuture<Void> connect(SocketChannel socketChannel, SSLEngine engine, InetSocketAddress address) throws IOException {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        socketChannel.configureBlocking(false);
+        socketChannel.connect(address);
+
+        pendingConnects.add(new PendingConnect(socketChannel, engine, future));
+        selector.wakeup();
+        return future;
+    }
+
+    /**
+     * Registers in the selector the connections that were started.
+     */
+    private void registerPending() {
+        PendingConnect connect;
+        while ((connect = pendingConnects.poll()) != null) {
+            try {
+                connect.socketChannel.register(selector, SelectionKey.OP_CONNECT, connect);
+            } catch (IOException e) {
+                this.fail(null, connect, e);
+            }
+        }
+    }
+
+    /**
+     * Finishes the connection of a channel and starts its handshake.
+     * @param key Key of the connection
+     */
+    private void finishConnect(SelectionKey key) {
+        PendingConnect connect = (PendingConnect) key.attachment();
+        try {
+            if (!connect.socketChannel.finishConnect())
+                return;
+
+            connect.engine.beginHandshake();
+            connect.peerNetBuffer = BufferPool.getShared().acquire(connect.engine.getSession().getPacketBufferSize());
+            connect.handshake = new TLSHandshake(connect.socketChannel, connect.engine, connect.peerNetBuffer.getBuffer(), () -> {
+                resumedHandshakes.add(key);
+                selector.wakeup();
+            });
+        } catch (IOException e) {
+            this.fail(key, connect, e);
+            return;
+        }
+
+        this.advanceHandshake(key);
+    }
+
+    /**
+     * Advances the handshake of a connection, and updates the events the selector listens to for it.
+     * @param key Key of the connection
+     */
+    private void advanceHandshake(SelectionKey key) {
+        PendingConnect connect = (PendingConnect) key.attachment();
+
+        TLSHandshake.State state;
+        try {
+            state = connect.handshake.step();
+        } catch (IOException e) {
+            this.fail(key, connect, e);
+            return;
+        }
+
+        if (state != TLSHandshake.State.FINISHED) {
+            key.interestOps(TLSHandshake.interestOps(state));
+            return;
+        }
+
+        // the other peer does not send data through this connection, so its buffer is no longer needed
+        this.releaseBuffer(connect);
+
+        // the channel can only be put in blocking mode after the key is removed from the selector
+        key.cancel();
+        finished.add(connect);
+    }
+
+    /**
+     * Continues the handshakes whose delegated tasks were done.
+     */
+    private void resumeHandshakes() {
+        SelectionKey key;
+        while ((key = resumedHandshakes.poll()) != null) {
+            if (key.isValid())
+                this.advanceHandshake(key);
+        }
+    }
+
+    /**
+     * Hands the connections whose handshake is done to the sender, in blocking mode.
+     */
+    private void completeFinished() {
+        if (finished.isEmpty())
+            return;
+
+        try {
+            // removes the cancelled keys from the selector
+            selector.selectNow();
+        } catch (IOException ignored) { }
+
+        for (PendingConnect connect : finished) {
+            try {
+                connect.socketChannel.configureBlocking(true);
+                connect.future.complete(null);
+            } catch (IOException e) {
+                this.fail(null, connect, e);
+            }
+        }
+        finished.clear();
+    }
+
+    /**
+     * Discards a connection that could not be opened.
+     * @param key Key of the connection, or null if it was not registered
+     * @param connect State of the connection
+     * @param e Cause of the failure
+     */
+    private void fail(SelectionKey key, PendingConnect connect, Exception e) {
+        if (key != null)
+            key.cancel();
+        this.releaseBuffer(connect);
+        try {
+            connect.socketChannel.close();
+        } catch (IOException ignored) { }
+        connect.future.completeExceptionally(e);
+    }
+
+    /**
+     * Gives the buffer of a connection back to the pool, if it was not given back yet.
+     * @param connect State of the connection
+     */
+    private void releaseBuffer(PendingConnect connect) {
+        if (connect.peerNetBuffer != null) {
+            connect.peerNetBuffer.release();
+            connect.peerNetBuffer = null;
+        }
+    }
+
+    /**
+     * Stops the connector, closing its selector.
+     */
+    public void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs in a loop, opening the connections that were started, as long as the connector is not stopped.
+     */
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                continue;
+            }
+
+            registerPending();
+            resumeHandshakes();
+
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isConnectable()) {
+                    this.finishConnect(key);
+                } else {
+                    this.advanceHandshake(key);
+                }
+            }
+
+            completeFinished();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) { }
+    }
+}
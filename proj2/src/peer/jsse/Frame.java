@@ -0,0 +1,208 @@
+package peer.jsse;
+
+import peer.buffers.BufferPool;
+import peer.buffers.SharedBuffer;
+import peer.messages.Message;
+import peer.messages.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A frame of the wire format used between peers. Each message is sent inside a frame, so that several
+ * messages can be sent, one after the other, through the same connection:
+ *   - length of the payload (4 bytes)
+ *   - type of the message (1 byte)
+ *   - payload (the message itself)
+ * Several small messages can also be sent in a single batch frame, with a special type, whose payload is
+ * a sequence of frames (one for each message).
+ */
+public class Frame {
+    /**
+     * Size (in bytes) of the frame header (length and type).
+     */
+    public static final int HEADER_SIZE = 5;
+
+    /**
+     * Maximum size (in bytes) of the payload of a frame. Frames announcing a bigger payload are considered invalid.
+     */
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Type of the batch frames, that contain other frames.
+     */
+    public static final int BATCH_TYPE = 0xff;
+
+    /**
+     * Type of the message in the frame.
+     */
+    private final MessageType messageType;
+
+    /**
+     * Payload of the frame.
+     */
+    private final ByteBuffer payload;
+
+    /**
+     * Buffer where the payload is, or null if the payload does not belong to a shared buffer.
+     */
+    private final SharedBuffer owner;
+
+    /**
+     * Constructor of the frame.
+     * @param messageType Type of the message in the frame
+     * @param payload Payload of the frame
+     */
+    public Frame(MessageType messageType, ByteBuffer payload) {
+        this(messageType, payload, null);
+    }
+
+    /**
+     * Constructor of a frame whose payload is a part of a shared buffer. The frame must hold a reference to it.
+     * @param messageType Type of the message in the frame
+     * @param payload Payload of the frame
+     * @param owner Buffer where the payload is
+     */
+    public Frame(MessageType messageType, ByteBuffer payload, SharedBuffer owner) {
+        this.messageType = messageType;
+        this.payload = payload;
+        this.owner = owner;
+    }
+
+    /**
+     * Retrieves the type of the message in the frame.
+     * @return type of the message
+     */
+    public MessageType getMessageType() {
+        return messageType;
+    }
+
+    /**
+     * Retrieves the payload of the frame, between the position and the limit of the buffer.
+     * @return payload of the frame
+     */
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * Releases the buffer where the payload is. The payload must not be used after this.
+     */
+    public void release() {
+        if (owner != null)
+            owner.release();
+    }
+
+    /**
+     * Builds the frame with the messages to be sent: a plain frame when there is one message, and a batch frame
+     * otherwise. The messages are written straight into a buffer of the shared pool, so that their bodies (the
+     * chunks) are not copied anywhere else.
+     * @param messages Messages to send
+     * @return Shared buffer with the frame, flipped; it must be released after the frame is written
+     */
+    public static SharedBuffer encode(List<Message> messages) {
+        int[] sizes = new int[messages.size()];
+        int length = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = messages.get(i).encodedSize();
+            length += HEADER_SIZE + sizes[i];
+        }
+
+        boolean batch = messages.size() > 1;
+        SharedBuffer frame = BufferPool.getShared().acquire(batch ? HEADER_SIZE + length : length);
+        try {
+            ByteBuffer buffer = frame.getBuffer();
+            if (batch) {
+                buffer.putInt(length);
+                buffer.put((byte) BATCH_TYPE);
+            }
+            for (int i = 0; i < sizes.length; i++) {
+                buffer.putInt(sizes[i]);
+                buffer.put((byte) messages.get(i).getHeader().getMessageType().ordinal());
+                messages.get(i).writeTo(buffer);
+            }
+            buffer.flip();
+        } catch (RuntimeException e) {
+            frame.release();
+            throw e;
+        }
+        return frame;
+    }
+
+    /**
+     * Extracts all the complete frames from a buffer. The payloads are not copied: each one is a read-only
+     * slice of the buffer, and each frame holds a reference to the shared buffer, which must be released after
+     * the frame is processed. The messages of a batch frame are extracted as separate frames.
+     * A frame that did not fully arrive yet is left in the buffer, starting at its position.
+     * @param data Buffer with the data received, flipped
+     * @param owner Shared buffer where the data is (or null if the data is not in a shared buffer)
+     * @param frames List where the decoded frames are added
+     * @throws IOException when the data does not follow the frame format; the frames before the invalid one are
+     * still added to the list (a batch is only added if all of its frames are valid)
+     */
+    public static void decodeAll(ByteBuffer data, SharedBuffer owner, List<Frame> frames) throws IOException {
+        decodeAll(data, owner, frames, true);
+    }
+
+    /**
+     * Extracts all the complete frames from a buffer.
+     * @param data Buffer with the data received, flipped
+     * @param owner Shared buffer where the data is (or null if the data is not in a shared buffer)
+     * @param frames List where the decoded frames are added
+     * @param allowBatch True if batch frames are accepted (batches cannot be nested)
+     * @throws IOException when the data does not follow the frame format
+     */
+    private static void decodeAll(ByteBuffer data, SharedBuffer owner, List<Frame> frames, boolean allowBatch) throws IOException {
+        while (data.remaining() >= HEADER_SIZE) {
+            int start = data.position();
+            int length = data.getInt(start);
+            int type = data.get(start + 4) & 0xff;
+
+            if (length < 0 || length > MAX_PAYLOAD_SIZE)
+                throw new IOException("Invalid frame length: " + length);
+            if (type >= MessageType.values().length && (type != BATCH_TYPE || !allowBatch))
+                throw new IOException("Invalid frame type: " + type);
+
+            if (data.remaining() < HEADER_SIZE + length)
+                return;
+
+            ByteBuffer content = data.duplicate();
+            content.position(start + HEADER_SIZE);
+            content.limit(start + HEADER_SIZE + length);
+            data.position(start + HEADER_SIZE + length);
+
+            if (type == BATCH_TYPE) {
+                decodeBatch(content.slice(), owner, frames);
+                continue;
+            }
+
+            if (owner != null)
+                owner.retain();
+            frames.add(new Frame(MessageType.values()[type], content.slice().asReadOnlyBuffer(), owner));
+        }
+    }
+
+    /**
+     * Extracts the frames of the messages of a batch frame.
+     * @param batch Payload of the batch frame
+     * @param owner Shared buffer where the data is (or null if the data is not in a shared buffer)
+     * @param frames List where the decoded frames are added
+     * @throws IOException when the batch does not follow the frame format
+     */
+    private static void decodeBatch(ByteBuffer batch, SharedBuffer owner, List<Frame> frames) throws IOException {
+        List<Frame> batchFrames = new ArrayList<>();
+        try {
+            decodeAll(batch, owner, batchFrames, false);
+            if (batch.hasRemaining())
+                throw new IOException("Incomplete frame in batch");
+        } catch (IOException e) {
+            // the frames already decoded hold references to the buffer
+            for (Frame frame : batchFrames)
+                frame.release();
+            throw e;
+        }
+        frames.addAll(batchFrames);
+    }
+}
@@ -0,0 +1,145 @@
+package peer.jsse;
+
+import peer.messages.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the small messages sent to the same peer in a short window of time, so that they are written
+ * together, in a single batch frame, instead of one by one.
+ */
+class MessageBatcher {
+    /**
+     * Called with the messages of a batch, to send them.
+     */
+    interface Dispatcher {
+        void dispatch(String remoteAddress, int port, List<Message> messages, List<CompletableFuture<Void>> futures);
+    }
+
+    /**
+     * Messages waiting to be sent to a peer.
+     */
+    private static class Batch {
+        final List<Message> messages = new ArrayList<>();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        boolean scheduled = false;
+    }
+
+    /**
+     * Messages waiting for each peer.
+     * key = ip:port of the peer
+     */
+    private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<>();
+
+    /**
+     * Thread that sends the batches when their window ends.
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "message-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Sends the batches.
+     */
+    private final Dispatcher dispatcher;
+
+    /**
+     * Time (in milliseconds) a message can wait for others to be sent with.
+     */
+    private final long window;
+
+    /**
+     * Maximum number of messages in a batch; a full batch is sent right away.
+     */
+    private final int maxMessages;
+
+    /**
+     * Constructor of the batcher.
+     * @param dispatcher Sends the batches
+     * @param window Time (in milliseconds) a message can wait for others to be sent with
+     * @param maxMessages Maximum number of messages in a batch
+     */
+    MessageBatcher(Dispatcher dispatcher, long window, int maxMessages) {
+        this.dispatcher = dispatcher;
+        this.window = window;
+        this.maxMessages = Math.max(1, maxMessages);
+    }
+
+    /**
+     * Adds a message to the batch of its destination.
+     * @param remoteAddress IP address to send the message
+     * @param port Port to send the message
+     * @param message Message to send
+     * @param future Future of the message, completed when it is sent
+     */
+    void add(String remoteAddress, int port, Message message, CompletableFuture<Void> future) {
+        String key = remoteAddress + ":" + port;
+        Batch batch = batches.computeIfAbsent(key, k -> new Batch());
+
+        boolean full;
+        synchronized (batch) {
+            batch.messages.add(message);
+            batch.futures.add(future);
+            full = batch.messages.size() >= maxMessages;
+
+            if (!full && !batch.scheduled) {
+                batch.scheduled = true;
+                try {
+                    timer.schedule(() -> this.flush(remoteAddress, port), window, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // shutting down: send it right away
+                    full = true;
+                }
+            }
+        }
+
+        if (full)
+            this.flush(remoteAddress, port);
+    }
+
+    /**
+     * Sends the messages waiting for a peer.
+     * @param remoteAddress IP address of the peer
+     * @param port Port of the peer
+     */
+    private void flush(String remoteAddress, int port) {
+        Batch batch = batches.get(remoteAddress + ":" + port);
+        if (batch == null)
+            return;
+
+        List<Message> messages;
+        List<CompletableFuture<Void>> futures;
+        synchronized (batch) {
+            batch.scheduled = false;
+            if (batch.messages.isEmpty())
+                return;
+
+            messages = new ArrayList<>(batch.messages);
+            futures = new ArrayList<>(batch.futures);
+            batch.messages.clear();
+            batch.futures.clear();
+        }
+
+        dispatcher.dispatch(remoteAddress, port, messages, futures);
+    }
+
+    /**
+     * Sends all the messages waiting, and stops the timer.
+     */
+    void shutdown() {
+        timer.shutdownNow();
+        for (String key : batches.keySet()) {
+            int separator = key.lastIndexOf(':');
+            this.flush(key.substring(0, separator), Integer.parseInt(key.substring(separator + 1)));
+        }
+    }
+}
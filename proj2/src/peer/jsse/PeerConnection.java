@@ -0,0 +1,91 @@
+package peer.jsse;
+
+import peer.buffers.BufferPool;
+import peer.buffers.SharedBuffer;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of a connection accepted by this peer. Connections are kept open between messages,
+ * so the data received that does not form a full frame yet must be kept.
+ */
+class PeerConnection {
+    /**
+     * Size of the message buffer.
+     */
+    static final int MESSAGE_SIZE = 64500;
+
+    /**
+     * Size of the buffers where the data is decrypted: a full message and one more record of the other peer.
+     */
+    static final int APP_BUFFER_SIZE = MESSAGE_SIZE + 17 * 1024;
+
+    /**
+     * Socket channel of the connection.
+     */
+    final SocketChannel socketChannel;
+
+    /**
+     * SSL engine for the encryption and decryption of messages.
+     */
+    final SSLEngine engine;
+
+    /**
+     * Pooled buffer for the encrypted data, released when the connection is closed.
+     */
+    private final SharedBuffer netBuffer;
+
+    /**
+     * Encrypted data received from the other peer that was not unwrapped yet (in the pooled buffer,
+     * unless it had to be enlarged).
+     */
+    ByteBuffer netData;
+
+    /**
+     * Buffer with the decrypted data received from the other peer that does not form a full frame yet.
+     * The frames already received may still be using its previous content.
+     */
+    SharedBuffer appBuffer;
+
+    /**
+     * Handshake of the connection; null after the handshake is completed.
+     */
+    TLSHandshake handshake;
+
+    /**
+     * Flag to know if the connection was closed.
+     */
+    boolean closed = false;
+
+    /**
+     * Flag to know if the buffers of the connection were given back to the pool.
+     */
+    private boolean released = false;
+
+    /**
+     * Constructor of the connection state.
+     * @param socketChannel Socket channel of the connection
+     * @param engine SSL engine of the connection
+     */
+    PeerConnection(SocketChannel socketChannel, SSLEngine engine) {
+        SSLSession session = engine.getSession();
+        this.socketChannel = socketChannel;
+        this.engine = engine;
+        this.netBuffer = BufferPool.getShared().acquire(Math.max(session.getPacketBufferSize(), MESSAGE_SIZE) + 500);
+        this.netData = this.netBuffer.getBuffer();
+        this.appBuffer = BufferPool.getShared().acquire(Math.max(session.getApplicationBufferSize(), APP_BUFFER_SIZE));
+    }
+
+    /**
+     * Gives the buffers of the connection back to the pool, when the connection is closed.
+     */
+    void release() {
+        if (released)
+            return;
+        released = true;
+        netBuffer.release();
+        appBuffer.release();
+    }
+}
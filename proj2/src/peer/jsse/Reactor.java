@@ -0,0 +1,341 @@
+package peer.jsse;
+
+import peer.buffers.BufferPool;
+import peer.buffers.SharedBuffer;
+import peer.messages.MessageHandler;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Thread with its own selector that reads from a set of connections accepted by the peer. The handshake
+ * of each connection is driven by the events of the selector, and the data is read and decrypted in this
+ * thread; only the complete messages are given to the message handler, which processes them in the thread pool.
+ */
+public class Reactor extends SSLThread implements Runnable {
+    /**
+     * Selector that will serve all connections of this reactor.
+     */
+    private final Selector selector;
+
+    /**
+     * Connections handed to this reactor that still need to be registered in the selector.
+     */
+    private final ConcurrentLinkedQueue<PeerConnection> pendingConnections = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Keys of the connections whose handshake can continue, after its delegated tasks were done.
+     */
+    private final ConcurrentLinkedQueue<SelectionKey> resumedHandshakes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * ExecutorService where the messages are processed.
+     */
+    private final ExecutorService service;
+
+    /**
+     * Message handler that will process receiving data/messages.
+     */
+    private final MessageHandler messageHandler;
+
+    /**
+     * Flag to know if the reactor should stop.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructor of the reactor.
+     * @param messageHandler Message handler for processing messages
+     * @param service ExecutorService where the messages are processed
+     * @throws IOException when the selector cannot be opened
+     */
+    public Reactor(MessageHandler messageHandler, ExecutorService service) throws IOException {
+        this.messageHandler = messageHandler;
+        this.service = service;
+        this.selector = SelectorProvider.provider().openSelector();
+    }
+
+    /**
+     * Hands a new connection to this reactor, which will perform its handshake. Can be called from any thread.
+     * @param connection State of the connection
+     */
+    void addConnection(PeerConnection connection) {
+        pendingConnections.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers in the selector the connections that were handed to this reactor, and starts their handshake.
+     */
+    private void registerPending() {
+        PeerConnection connection;
+        while ((connection = pendingConnections.poll()) != null) {
+            try {
+                SelectionKey key = connection.socketChannel.register(selector, 0, connection);
+                connection.handshake = new TLSHandshake(connection.socketChannel, connection.engine, connection.netData, () -> {
+                    resumedHandshakes.add(key);
+                    selector.wakeup();
+                });
+                this.advanceHandshake(key);
+            } catch (IOException e) {
+                System.err.println("Error registering connection in reactor");
+                try {
+                    connection.socketChannel.close();
+                } catch (IOException ignored) { }
+                connection.release();
+            }
+        }
+    }
+
+    /**
+     * Continues the handshakes whose delegated tasks were done.
+     */
+    private void resumeHandshakes() {
+        SelectionKey key;
+        while ((key = resumedHandshakes.poll()) != null) {
+            if (key.isValid())
+                this.advanceHandshake(key);
+        }
+    }
+
+    /**
+     * Advances the handshake of a connection, and updates the events the selector listens to for it.
+     * When the handshake is completed, the selector starts listening to the messages of the connection.
+     * @param key Key of the connection
+     */
+    private void advanceHandshake(SelectionKey key) {
+        PeerConnection connection = (PeerConnection) key.attachment();
+
+        TLSHandshake.State state;
+        try {
+            state = connection.handshake.step();
+        } catch (IOException e) {
+            System.err.println("Connection closed due to handshake failure.");
+            key.cancel();
+            try {
+                connection.socketChannel.close();
+            } catch (IOException ignored) { }
+            connection.release();
+            return;
+        }
+
+        if (state != TLSHandshake.State.FINISHED) {
+            key.interestOps(TLSHandshake.interestOps(state));
+            return;
+        }
+
+        // data that arrives right after the handshake is kept in the connection
+        connection.netData = connection.handshake.getPeerNetData();
+        connection.handshake = null;
+        key.interestOps(SelectionKey.OP_READ);
+
+        // a message may have arrived together with the end of the handshake
+        if (connection.netData.position() > 0)
+            this.read(key);
+    }
+
+    /**
+     * Method that will be called when there is data available to be read, i.e. another peer as sent one or more messages.
+     * Data that does not form a full frame yet is kept in the connection, waiting for the next read.
+     * @param connection State of the connection, with the socket channel, the SSL engine and the data received so far
+     * @return List with the frames received, one for each message
+     * @throws IOException when the connection fails (invalid data only closes the connection, after the frames before it)
+     */
+    protected List<Frame> readFromPeer(PeerConnection connection) throws IOException {
+        SocketChannel socketChannel = connection.socketChannel;
+        SSLEngine engine = connection.engine;
+        List<Frame> frames = new ArrayList<>();
+
+        // read data from the socket channel
+        if (socketChannel.read(connection.netData) < 0) {
+            System.out.println("Received end of stream. Will try to close connection with client...");
+            connection.closed = true;
+            connection.release();
+            handleEndOfStream(socketChannel, engine);
+            return frames;
+        }
+
+        // unwrap all the data available
+        connection.netData.flip();
+        boolean unwrap = true;
+        while (unwrap && connection.netData.hasRemaining()) {
+            // unwrap the message content using SSL engine
+            SSLEngineResult result = engine.unwrap(connection.netData, connection.appBuffer.getBuffer());
+
+            // get engine status
+            switch (result.getStatus()) {
+
+                // everything went OK
+                case OK:
+                    break;
+
+                // in case of buffer underflow, the rest of the data has not arrived yet
+                case BUFFER_UNDERFLOW:
+                    if (connection.netData.capacity() < engine.getSession().getPacketBufferSize()) {
+                        connection.netData = enlargeKeepingData(connection.netData, engine.getSession().getPacketBufferSize(), true);
+                    }
+                    unwrap = false;
+                    break;
+
+                // in case of buffer overflow
+                case BUFFER_OVERFLOW:
+                    ByteBuffer appData = connection.appBuffer.getBuffer();
+                    appData.flip();
+                    this.replaceAppBuffer(connection, appData, appData.capacity() * 2);
+                    break;
+
+                // when the connection was closed
+                case CLOSED:
+                    connection.closed = true;
+                    unwrap = false;
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
+            }
+        }
+        connection.netData.compact();
+
+        // extract every frame that is complete; the frames keep the buffer where they were decrypted
+        ByteBuffer appData = connection.appBuffer.getBuffer();
+        appData.flip();
+        try {
+            Frame.decodeAll(appData, connection.appBuffer, frames);
+        } catch (IOException e) {
+            // the messages before the invalid frame are still processed, but the connection cannot be used after it
+            System.err.println("Invalid frame received: " + e.getMessage());
+            connection.closed = true;
+        }
+        if (frames.isEmpty()) {
+            appData.compact();
+        } else {
+            this.replaceAppBuffer(connection, appData, PeerConnection.APP_BUFFER_SIZE);
+        }
+
+        if (connection.closed) {
+            connection.release();
+            closeConnection(socketChannel, engine);
+        }
+
+        return frames;
+    }
+
+    /**
+     * Gives a connection a new buffer for the decrypted data, with the data that was not used yet.
+     * The previous buffer is released by the connection (the frames decoded from it may still be using it).
+     * @param connection State of the connection
+     * @param appData Current buffer of the connection, flipped, with the data not used yet
+     * @param capacity Minimum capacity of the new buffer
+     */
+    private void replaceAppBuffer(PeerConnection connection, ByteBuffer appData, int capacity) {
+        SharedBuffer replaceBuffer = BufferPool.getShared().acquire(Math.max(capacity, appData.remaining()));
+        replaceBuffer.getBuffer().put(appData);
+        connection.appBuffer.release();
+        connection.appBuffer = replaceBuffer;
+    }
+
+    /**
+     * Replaces a buffer that is being filled with a larger one, with the same content.
+     * @param buffer Buffer that is being filled
+     * @param capacity Minimum capacity of the new buffer
+     * @param flipped True if the buffer is flipped (being read from), false otherwise
+     * @return New buffer, ready to be filled with more data
+     */
+    private ByteBuffer enlargeKeepingData(ByteBuffer buffer, int capacity, boolean flipped) {
+        ByteBuffer replaceBuffer = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()));
+        if (!flipped)
+            buffer.flip();
+        replaceBuffer.put(buffer);
+
+        if (flipped)
+            replaceBuffer.flip();
+        return replaceBuffer;
+    }
+
+    /**
+     * Reads the data available in a connection and gives the complete messages to the thread pool.
+     * @param key Key of the connection
+     */
+    private void read(SelectionKey key) {
+        PeerConnection connection = (PeerConnection) key.attachment();
+        List<Frame> frames;
+
+        try {
+            frames = readFromPeer(connection);
+        } catch (IOException e) {
+            System.err.println("Error while trying to read a message");
+            e.printStackTrace();
+            key.cancel();
+            try {
+                connection.socketChannel.close();
+            } catch (IOException ignored) { }
+            connection.release();
+            return;
+        }
+
+        // process the messages in the thread pool; the buffers of the frames are released after processing
+        for (Frame frame : frames) {
+            this.service.execute(() -> {
+                try {
+                    this.messageHandler.process(frame.getPayload());
+                } finally {
+                    frame.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the reactor, closing its selector.
+     */
+    public void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs in a loop, reading from the connections of this reactor, as long as the reactor is not stopped.
+     */
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                continue;
+            }
+
+            registerPending();
+            resumeHandshakes();
+
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (((PeerConnection) key.attachment()).handshake != null) {
+                    this.advanceHandshake(key);
+                } else if (key.isReadable()) {
+                    this.read(key);
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) { }
+    }
+}
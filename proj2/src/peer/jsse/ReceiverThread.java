@@ -5,10 +5,8 @@ import peer.messages.MessageHandler;
 import javax.net.ssl.*;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
-import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -16,58 +14,69 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.TimeUnit;
 
 /**
- * An SSL/TLS "server" that accepts and reads messages from other peers.
+ * An SSL/TLS "server" that accepts connections from other peers. The messages are read by a set of
+ * reactors, to which the accepted connections are distributed.
  */
-public class ReceiverThread extends SSLThread implements Runnable {
-    /**
-     * Size of the message buffer.
-     */
-    private static final int MESSAGE_SIZE = 64500;
-
+public class ReceiverThread implements Runnable {
     /**
      * ExecutorService responsible for threads.
      */
     private final ExecutorService service;
 
     /**
-     * SSL context that will be used to receive the messages.
+     * Holder of the SSL context that will be used to receive the messages.
      */
-    private final SSLContext context;
+    private final SSLContextHolder contextHolder;
 
     /**
-     * A part of Java NIO that will be used to serve all connections to the server in one thread.
+     * A part of Java NIO that will be used to accept the connections to all the servers in one thread.
      */
     private final Selector selector;
 
     /**
-     * Message handler that will process receiving data/messages.
+     * Flag to know if the thread should exit or not.
      */
-    private final MessageHandler messageHandler;
+    private static AtomicBoolean exit;
 
     /**
-     * Flag to know if the thread should exit or not.
+     * Reactors that read from the accepted connections.
      */
-    private static AtomicBoolean exit;
+    private final Reactor[] reactors;
+
+    /**
+     * Index of the reactor that will get the next accepted connection.
+     */
+    private int nextReactor = 0;
+
+    /**
+     * Constructor of the receiver thread, with one reactor for each available processor.
+     * @param messageHandler Message handler for processing messages
+     * @param contextHolder Holder of the SSL context, with the server keys and trust store
+     * @param nThreads Number of threads for the executor service
+     * @throws Exception
+     */
+    public ReceiverThread(MessageHandler messageHandler, SSLContextHolder contextHolder, int nThreads) throws Exception {
+        this(messageHandler, contextHolder, nThreads, Runtime.getRuntime().availableProcessors());
+    }
 
     /**
      * Constructor of the receiver thread.
      * @param messageHandler Message handler for processing messages
-     * @param protocol The protocol to be used as context
-     * @param serverKeys Server keys used
-     * @param trustStore Trust store used
-     * @param password Password used
+     * @param contextHolder Holder of the SSL context, with the server keys and trust store
      * @param nThreads Number of threads for the executor service
+     * @param nReactors Number of reactor threads that read from the accepted connections
      * @throws Exception
      */
-    public ReceiverThread(MessageHandler messageHandler, String protocol, String serverKeys, String trustStore, String password, int nThreads) throws Exception {
+    public ReceiverThread(MessageHandler messageHandler, SSLContextHolder contextHolder, int nThreads, int nReactors) throws Exception {
         this.service = Executors.newFixedThreadPool(nThreads);
-        this.messageHandler = messageHandler;
-
-        context = SSLContext.getInstance(protocol);
-        context.init(createKeyManagers(serverKeys, password, password),
-                createTrustManagers(trustStore, password), new SecureRandom());
+        this.contextHolder = contextHolder;
         selector = SelectorProvider.provider().openSelector();
         exit = new AtomicBoolean(false);
+
+        this.reactors = new Reactor[Math.max(1, nReactors)];
+        for (int i = 0; i < this.reactors.length; i++) {
+            this.reactors[i] = new Reactor(messageHandler, this.service);
+        }
     }
 
     /**
@@ -84,83 +93,24 @@ public class ReceiverThread extends SSLThread implements Runnable {
     }
 
     /**
-     * Method that accepts a new connection request that arrives the this peer.
+     * Method that accepts a new connection request that arrives the this peer. The connection is handed
+     * to one of the reactors (in turns), which performs the handshake and reads from it.
      * @param key Key for listening to new connection requests
      * @throws Exception
      */
     private void accept(SelectionKey key) throws Exception {
         // create socket channel and SSL engine
         SocketChannel socketChannel = ((ServerSocketChannel) key.channel()).accept();
+        if (socketChannel == null)
+            return;
         socketChannel.configureBlocking(false);
 
-        SSLEngine engine = context.createSSLEngine();
+        SSLEngine engine = contextHolder.getContext().createSSLEngine();
         engine.setUseClientMode(false);
         engine.beginHandshake();
 
-        // try to perform handshake
-        if (performHandshake(socketChannel, engine)) {
-            socketChannel.register(selector, SelectionKey.OP_READ, engine);
-        } else {
-            socketChannel.close();
-            System.err.println("Connection closed due to handshake failure.");
-        }
-    }
-
-    /**
-     * Method that will be called when there is data available to be read, i.e. another peer as sent a message.
-     * @param socketChannel Socket channel used to receive the message.
-     * @param engine SSL engine for the encryption and decryption of messages
-     * @return Byte buffer with the message content
-     * @throws IOException
-     */
-    protected ByteBuffer readFromPeer(SocketChannel socketChannel, SSLEngine engine) throws IOException {
-        SSLSession session = engine.getSession();
-
-        // create and allocate space for byte buffers
-        ByteBuffer message = ByteBuffer.allocate(Math.max(session.getApplicationBufferSize(), MESSAGE_SIZE) + 500);
-        ByteBuffer netData = ByteBuffer.allocate(Math.max(session.getPacketBufferSize(), MESSAGE_SIZE) + 500);
-
-        netData.clear();
-        // read data from the socket channel
-        if (socketChannel.read(netData) > 0) {
-            // if bytes were read, flip the buffer
-            netData.flip();
-            while (netData.hasRemaining()) {
-                // unwrap the message content using SSL engine
-                SSLEngineResult result = engine.unwrap(netData, message);
-
-                // get engine status
-                switch (result.getStatus()) {
-
-                    // everything went OK
-                    case OK:
-                        break;
-
-                    // in case of buffer underflow
-                    case BUFFER_UNDERFLOW:
-                        netData = underflowAppBufferCall(engine, netData);
-                        break;
-
-                    // in case of buffer overflow
-                    case BUFFER_OVERFLOW:
-                        message = overflowAppBufferCall(engine, message);
-                        break;
-
-                    // when the connection was closed
-                    case CLOSED:
-                        closeConnection(socketChannel, engine);
-                        return message;
-                    default:
-                        throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
-                }
-            }
-        } else {
-            System.out.println("Received end of stream. Will try to close connection with client...");
-            handleEndOfStream(socketChannel, engine);
-            return message;
-        }
-
-        return message;
+        reactors[nextReactor].addConnection(new PeerConnection(socketChannel, engine));
+        nextReactor = (nextReactor + 1) % reactors.length;
     }
 
     public static void exit() {
@@ -174,6 +124,10 @@ public class ReceiverThread extends SSLThread implements Runnable {
      */
     @Override
     public void run() {
+        for (int i = 0; i < reactors.length; i++) {
+            new Thread(reactors[i], "reactor-" + i).start();
+        }
+
         while (!exit.get()) {
             try {
                 selector.select();
@@ -194,36 +148,15 @@ public class ReceiverThread extends SSLThread implements Runnable {
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
-                } else if (key.isValid() && key.isReadable()) {
-                    key.cancel();
-                    // execute in thread pool the receiving of the data and the
-                    // composing and processing of the message
-                    this.service.execute(() -> {
-                        SocketChannel channel = (SocketChannel) key.channel();
-                        SSLEngine engine = (SSLEngine) key.attachment();
-                        ByteBuffer message;
-
-                        try {
-                            message = readFromPeer(channel, engine);
-                        } catch (IOException e) {
-                            System.err.println("Error while trying to read a message");
-                            e.printStackTrace();
-                            return;
-                        }
-
-                        this.messageHandler.process(message);
-
-                        try {
-                            closeConnection(channel, engine);
-                        } catch (IOException ignored) {
-                            System.err.println("Error closing the socket after reading a message");
-                        }
-                    });
                 }
             }
         }
 
-       this.service.shutdown();
+        for (Reactor reactor : reactors) {
+            reactor.stop();
+        }
+
+        this.service.shutdown();
         try {
             if (!this.service.awaitTermination(60, TimeUnit.SECONDS)) {
                 this.service.shutdownNow();
@@ -0,0 +1,258 @@
+package peer.jsse;
+
+import peer.buffers.BufferPool;
+import peer.buffers.SharedBuffer;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An authenticated SSL/TLS connection to another peer. After the handshake is done, the connection
+ * can be kept open and used to send several messages, one after the other.
+ */
+public class SSLConnection extends SSLThread {
+    /**
+     * The remote address of the peer we are connected to.
+     */
+    private final String remoteAddress;
+
+    /**
+     * The port of the peer we are connected to.
+     */
+    private final int port;
+
+    /**
+     * The engine that will be used to encrypt/decrypt data between the peers.
+     */
+    private final SSLEngine engine;
+
+    /**
+     * The socket channel that will be used as the transport link between the peers.
+     */
+    private SocketChannel socketChannel;
+
+    /**
+     * Instant (in milliseconds) in which the connection was last used.
+     */
+    private volatile long lastUsed;
+
+    /**
+     * Data received from the other peer that was not unwrapped yet (not flipped).
+     */
+    private ByteBuffer peerNetData;
+
+    /**
+     * Constructor of the connection. Does not connect to the peer; for that, call connect().
+     * @param remoteAddress The IP address of the peer
+     * @param port The peer's port that will be used
+     * @param context SSL context used to create the engine
+     */
+    public SSLConnection(String remoteAddress, int port, SSLContext context) {
+        this.remoteAddress = remoteAddress;
+        this.port = port;
+        this.engine = context.createSSLEngine(remoteAddress, port);
+        this.engine.setUseClientMode(true);
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Opens a socket channel to communicate with the peer and starts the handshake protocol, which is
+     * performed by the connector. The connection can only be used after the returned future is completed.
+     * @param connector Connector that drives the connection and the handshake
+     * @return Future completed when the connection is established with the peer
+     * @throws IOException when the connection cannot be started
+     */
+    public CompletableFuture<Void> connect(Connector connector) throws IOException {
+        socketChannel = SocketChannel.open();
+        return connector.connect(socketChannel, engine, new InetSocketAddress(remoteAddress, port));
+    }
+
+    /**
+     * Method that performs a write operation, using SSL and secure mechanisms, and sends a frame to the other peer.
+     * @param appData Byte buffer with the frame to be sent, flipped
+     * @throws IOException when the the sending of the frame fails
+     */
+    public void write(ByteBuffer appData) throws IOException {
+        SSLSession session = engine.getSession();
+
+        // get a byte buffer for communication from the pool
+        SharedBuffer netBuffer = BufferPool.getShared().acquire(session.getPacketBufferSize());
+        ByteBuffer netData = netBuffer.getBuffer();
+
+        try {
+            this.wrapAndWrite(appData, netData);
+        } finally {
+            netBuffer.release();
+        }
+
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Encrypts the data and writes it to the channel, one record at a time.
+     * @param appData Byte buffer with the data to be sent, flipped
+     * @param netData Byte buffer for the encrypted data
+     * @throws IOException when the the sending of the data fails
+     */
+    private void wrapAndWrite(ByteBuffer appData, ByteBuffer netData) throws IOException {
+        // while there is still data to be sent
+        while (appData.hasRemaining()) {
+            // use SSL Engine to wrap the data
+            netData.clear();
+            SSLEngineResult result = engine.wrap(appData, netData);
+
+            // get result status
+            switch (result.getStatus()) {
+                // everything went OK
+                case OK:
+                    // flip buffer and write to socket channel
+                    netData.flip();
+                    while (netData.hasRemaining()) {
+                        socketChannel.write(netData);
+                    }
+                    break;
+
+                // in case of buffer underflow
+                case BUFFER_UNDERFLOW:
+                    throw new SSLException("Error: underflow after wrap");
+
+                // in case of buffer overflow
+                case BUFFER_OVERFLOW:
+                    netData = overflowPacketBufferCall(engine, netData);
+                    break;
+
+                // when the connection was closed
+                case CLOSED:
+                    throw new SSLException("Connection closed while writing");
+                default:
+                    throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Checks if the connection can still be used. The other peer never sends application data through
+     * this connection, but its TLS layer can send records of its own after the handshake (for example, the
+     * session tickets of TLSv1.3); those are unwrapped here, so that the engine stays in sync with the stream.
+     * Application data, a closing message or the end of stream mean that the connection can no longer be used.
+     * @return True if the connection is still usable, false otherwise
+     */
+    public boolean isAlive() {
+        if (socketChannel == null || !socketChannel.isOpen() || engine.isOutboundDone() || engine.isInboundDone()) {
+            return false;
+        }
+
+        // the channel is only non-blocking during the check, since writes are blocking
+        try {
+            socketChannel.configureBlocking(false);
+            try {
+                return this.unwrapReceived();
+            } finally {
+                socketChannel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads and unwraps the records that the other peer sent since the connection was last checked. An incomplete
+     * record is kept in peerNetData until the rest of it arrives.
+     * @return True if only records of the TLS layer were received, false otherwise
+     * @throws IOException when the data cannot be read or unwrapped
+     */
+    private boolean unwrapReceived() throws IOException {
+        if (peerNetData == null)
+            peerNetData = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+
+        SharedBuffer appBuffer = BufferPool.getShared().acquire(engine.getSession().getApplicationBufferSize());
+        try {
+            while (true) {
+                int read = socketChannel.read(peerNetData);
+                if (read < 0)
+                    return false;
+                if (peerNetData.position() == 0)
+                    return true;
+
+                // unwrap every complete record
+                SSLEngineResult result;
+                do {
+                    ByteBuffer appData = appBuffer.getBuffer();
+                    appData.clear();
+                    peerNetData.flip();
+                    try {
+                        result = engine.unwrap(peerNetData, appData);
+                    } finally {
+                        peerNetData.compact();
+                    }
+
+                    if (result.getStatus() != SSLEngineResult.Status.OK && result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW)
+                        return false;
+                    if (result.bytesProduced() > 0)
+                        return false;
+
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+
+                    // anything else (a new handshake, or a key update to be answered) is not handled here
+                    SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                    if (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && status != SSLEngineResult.HandshakeStatus.FINISHED)
+                        return false;
+                } while (result.getStatus() == SSLEngineResult.Status.OK && peerNetData.position() > 0);
+
+                // the rest of an incomplete record has not arrived yet
+                if (read == 0)
+                    return true;
+                if (!peerNetData.hasRemaining()) {
+                    ByteBuffer replaceBuffer = ByteBuffer.allocate(peerNetData.capacity() * 2);
+                    peerNetData.flip();
+                    replaceBuffer.put(peerNetData);
+                    peerNetData = replaceBuffer;
+                }
+            }
+        } finally {
+            appBuffer.release();
+        }
+    }
+
+    /**
+     * Checks for how long the connection has been idle.
+     * @param now Current instant, in milliseconds
+     * @return Number of milliseconds since the connection was last used
+     */
+    public long getIdleTime(long now) {
+        return now - lastUsed;
+    }
+
+    /**
+     * Explicitly closes the connection. Errors are ignored, since the connection is being discarded anyway.
+     */
+    public void close() {
+        try {
+            if (socketChannel != null && socketChannel.isOpen())
+                closeConnection(socketChannel, engine);
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Getter for the remote address of the connection.
+     * @return The IP address of the peer
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Getter for the port of the connection.
+     * @return The port of the peer
+     */
+    public int getPort() {
+        return port;
+    }
+}
@@ -0,0 +1,160 @@
+package peer.jsse;
+
+import javax.net.ssl.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+
+/**
+ * Holds an SSLContext that is created once and shared by every connection that uses the same keys.
+ * The key store and trust store files are checked periodically; if any of them changes, the context is
+ * created again, so that new connections use the new keys.
+ */
+public class SSLContextHolder {
+    /**
+     * Minimum time (in milliseconds) between two checks for changes in the key store files.
+     */
+    private static final long RELOAD_CHECK_INTERVAL = 5000;
+
+    /**
+     * Protocol used for secure communication.
+     */
+    private final String protocol;
+
+    /**
+     * Path to the key store with the keys used.
+     */
+    private final String keys;
+
+    /**
+     * Path to the trust store used.
+     */
+    private final String trustStore;
+
+    /**
+     * Password used to access the keys and the trust store.
+     */
+    private final String password;
+
+    /**
+     * The current SSL context.
+     */
+    private volatile SSLContext context;
+
+    /**
+     * Last modification time of the key store, when the current context was created.
+     */
+    private long keysModified;
+
+    /**
+     * Last modification time of the trust store, when the current context was created.
+     */
+    private long trustStoreModified;
+
+    /**
+     * Instant (in milliseconds) of the last check for changes in the key store files.
+     */
+    private volatile long lastCheck;
+
+    /**
+     * Constructor of the holder. Loads the key store files and creates the context.
+     * @param protocol The SSL/TLS protocol to be used
+     * @param keys Path to the key store with the keys used
+     * @param trustStore Path to the trust store used
+     * @param password Password used to access the keys and the trust store
+     * @throws Exception when the context cannot be created
+     */
+    public SSLContextHolder(String protocol, String keys, String trustStore, String password) throws Exception {
+        this.protocol = protocol;
+        this.keys = keys;
+        this.trustStore = trustStore;
+        this.password = password;
+        this.reload();
+    }
+
+    /**
+     * Returns the current SSL context, creating it again first if the key store files have changed.
+     * @return The SSL context
+     */
+    public SSLContext getContext() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck >= RELOAD_CHECK_INTERVAL) {
+            synchronized (this) {
+                if (now - lastCheck >= RELOAD_CHECK_INTERVAL) {
+                    lastCheck = now;
+                    if (new File(keys).lastModified() != keysModified || new File(trustStore).lastModified() != trustStoreModified) {
+                        try {
+                            this.reload();
+                            System.out.println("Reloaded SSL context from " + keys + " and " + trustStore);
+                        } catch (Exception e) {
+                            System.err.println("Error reloading SSL context; keeping the previous one");
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }
+
+        return context;
+    }
+
+    /**
+     * Loads the key store files and creates a new SSL context.
+     * @throws Exception when the context cannot be created
+     */
+    private synchronized void reload() throws Exception {
+        long newKeysModified = new File(keys).lastModified();
+        long newTrustStoreModified = new File(trustStore).lastModified();
+
+        SSLContext newContext = SSLContext.getInstance(protocol);
+        newContext.init(createKeyManagers(keys, password, password), createTrustManagers(trustStore, password), new SecureRandom());
+
+        this.context = newContext;
+        this.keysModified = newKeysModified;
+        this.trustStoreModified = newTrustStoreModified;
+        this.lastCheck = System.currentTimeMillis();
+    }
+
+    /**
+     * Method that creates the necessary trust managers to initiate the SSLContext. Uses JSK keystore.
+     * @param filepath Path to JSK keystore
+     * @param keystorePassword Password of the keystore
+     * @return Array with trust managers that will be used in the connection
+     * @throws Exception
+     */
+    private static TrustManager[] createTrustManagers(String filepath, String keystorePassword) throws Exception {
+        // get and load keystore
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (InputStream trustStoreIS = new FileInputStream(filepath)) {
+            trustStore.load(trustStoreIS, keystorePassword.toCharArray());
+        }
+
+        // get trust manager factory and extract the trust managers from it
+        TrustManagerFactory trustFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustFactory.init(trustStore);
+        return trustFactory.getTrustManagers();
+    }
+
+    /**
+     * Method that creates the necessary key managers to initiate the SSLContext. Uses JSK keystore.
+     * @param filepath Path to JSK keystore
+     * @param keystorePassword Password of the keystore
+     * @param keyPassword Password of the key
+     * @return Array with the keys that will be used in the connection
+     * @throws Exception
+     */
+    private static KeyManager[] createKeyManagers(String filepath, String keystorePassword, String keyPassword) throws Exception {
+        // get and load keystore
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream keyStoreIS = new FileInputStream(filepath)) {
+            keyStore.load(keyStoreIS, keystorePassword.toCharArray());
+        }
+
+        // get key manager factory and extract keys from it
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, keyPassword.toCharArray());
+        return kmf.getKeyManagers();
+    }
+}
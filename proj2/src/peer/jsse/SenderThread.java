@@ -1,99 +1,189 @@
 package peer.jsse;
 
+import peer.buffers.SharedBuffer;
+import peer.chord.ChordId;
 import peer.jsse.error.OnError;
 import peer.messages.Message;
+import peer.messages.MessageType;
 
-import javax.net.ssl.*;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.security.SecureRandom;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
-import java.util.Locale;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * An SSL/TLS client that connects to a peer, using its IP address and port, and sends it a message.
+ * An SSL/TLS client that sends a message to a peer, using its IP address and port. The connections to
+ * the other peers are kept in a pool, and reused by later messages.
  */
-public class SenderThread extends SSLThread implements Runnable {
+public class SenderThread implements Runnable {
 
     /**
      * Sender ID for message sending.
      */
-    private static int senderId;
+    private static ChordId senderId;
 
     /**
-     * Protocol used for secure communication.
+     * Holder of the SSL context used to create the connections.
      */
-    private static String protocol;
+    private static SSLContextHolder contextHolder;
 
     /**
-     * Client keys, used for secure communication.
+     * The remote address of the peer we are trying to connect to.
      */
-    private static String clientKeys;
+    private final String remoteAddress;
 
     /**
-     * Trust store, used for secure communication.
+     * The port of the peer we are trying to connect to.
      */
-    private static String trustStore;
+    private final int port;
 
     /**
-     * Password used to access the client keys and the truststore.
+     * Messages to be sent to the other peer; more than one are sent together, in a batch.
      */
-    private static String password;
+    private final List<Message> messages;
 
     /**
-     * The remote address of the peer we are trying to connect to.
+     * Futures of the messages, completed when they are sent (or fail), one for each message.
      */
-    private final String remoteAddress;
+    private final List<CompletableFuture<Void>> futures;
 
     /**
-     * The port of the peer we are trying to connect to.
+     * Formats printed date
      */
-    private final int port;
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM).withLocale(Locale.getDefault()).withZone(ZoneId.systemDefault());
 
     /**
-     * The engine that will be used to encrypt/decrypt data between the peers.
+     * Executor service to send messages; when its queue is full, the messages fail (see dispatch) instead of
+     * being sent by the thread that dispatched them.
      */
-    private final SSLEngine engine;
+    private static final ThreadPoolExecutor service = new ThreadPoolExecutor(10, 10, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(1024), new ThreadPoolExecutor.AbortPolicy());
 
     /**
-     * The socket channel that will be used as the transport link between the peers.
+     * Flag to know if the thread should exit or not.
      */
-    private SocketChannel socketChannel;
+    private static AtomicBoolean exit = new AtomicBoolean(false);
 
     /**
-     * Message to be sent to the other peer.
+     * Maximum number of connections open to each peer.
      */
-    private final Message message;
+    private static final int MAX_CONNECTIONS_PER_PEER = 4;
 
     /**
-     * Callable statement to be run on error.
+     * Time (in milliseconds) after which an unused connection is closed.
      */
-    private final OnError onError;
+    private static final long IDLE_TIMEOUT = 30000;
 
     /**
-     * Formats printed date
+     * Maximum time (in milliseconds) to wait for a connection to a peer.
      */
-    private static final DateTimeFormatter formatter = DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM).withLocale(Locale.getDefault()).withZone(ZoneId.systemDefault());
+    private static final long ACQUIRE_TIMEOUT = 10000;
 
     /**
-     * Executor service to send messages
+     * Maximum time (in milliseconds) to wait for the connection and handshake with a peer.
      */
-    private static final ExecutorService service = Executors.newFixedThreadPool(10);
+    private static final long CONNECT_TIMEOUT = 10000;
 
     /**
-     * Flag to know if the thread should exit or not.
+     * Connector that opens the connections to the other peers, created when the first one is needed.
      */
-    private static AtomicBoolean exit = new AtomicBoolean(false);
+    private static Connector connector;
+
+    /**
+     * Pool with the connections to the other peers, reused between messages.
+     */
+    private static final ConnectionPool pool = new ConnectionPool(SenderThread::openConnection, MAX_CONNECTIONS_PER_PEER, IDLE_TIMEOUT, ACQUIRE_TIMEOUT);
+
+    /**
+     * Maximum number of messages being sent to each peer. When it is reached, the next messages to that peer
+     * wait in its queue, and are started as the ones being sent finish.
+     */
+    private static final int MAX_IN_FLIGHT_PER_PEER = 32;
+
+    /**
+     * Maximum number of messages waiting in the queue of each peer; more messages fail right away.
+     */
+    private static final int MAX_QUEUED_PER_PEER = 1024;
+
+    /**
+     * Maximum time (in milliseconds) a message can wait in the queue of a peer; after that, it is removed from
+     * the queue and fails. A message that was already started is not timed out: it fails by itself if the
+     * connection (ACQUIRE_TIMEOUT, CONNECT_TIMEOUT) or the write fails.
+     */
+    private static final long QUEUE_TIMEOUT = 10000;
+
+    /**
+     * Timer that removes the messages that waited too long from the queues of the peers.
+     */
+    private static final ScheduledExecutorService expiryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sender-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Message waiting to be started, with its future.
+     */
+    private static class Queued {
+        final String remoteAddress;
+        final int port;
+        final Message message;
+        final CompletableFuture<Void> future;
+        final long queuedAt = System.nanoTime();
+
+        Queued(String remoteAddress, int port, Message message, CompletableFuture<Void> future) {
+            this.remoteAddress = remoteAddress;
+            this.port = port;
+            this.message = message;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Messages being sent to a peer, and the ones waiting for them to finish.
+     */
+    private static class PeerQueue {
+        int inFlight = 0;
+        final ArrayDeque<Queued> waiting = new ArrayDeque<>();
+    }
+
+    /**
+     * Queues of the messages to each peer.
+     * key = ip:port of the peer
+     */
+    private static final ConcurrentHashMap<String, PeerQueue> queues = new ConcurrentHashMap<>();
+
+    static {
+        expiryTimer.scheduleWithFixedDelay(SenderThread::expireWaiting, QUEUE_TIMEOUT / 10, QUEUE_TIMEOUT / 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Types of the small messages that are batched with the others sent to the same peer at the same time.
+     */
+    private static final Set<MessageType> BATCHED_TYPES = EnumSet.of(
+            MessageType.STORED, MessageType.DELETED, MessageType.REMOVED, MessageType.NOTIFY, MessageType.GET_PRED);
+
+    /**
+     * Time (in milliseconds) a small message can wait for others to the same peer (-Dpeer.batch.window).
+     */
+    private static final long BATCH_WINDOW = Long.getLong("peer.batch.window", 2);
+
+    /**
+     * Maximum number of messages in a batch (-Dpeer.batch.maxMessages).
+     */
+    private static final int BATCH_MAX_MESSAGES = Integer.getInteger("peer.batch.maxMessages", 32);
+
+    /**
+     * Batcher of the small messages.
+     */
+    private static final MessageBatcher batcher = new MessageBatcher(
+            (remoteAddress, port, messages, futures) -> SenderThread.dispatch(new SenderThread(remoteAddress, port, messages, futures)),
+            BATCH_WINDOW, BATCH_MAX_MESSAGES);
 
     /**
      * Static method for message sending.
@@ -103,154 +193,197 @@ public class SenderThread extends SSLThread implements Runnable {
      * @param onError Error function to run if error occurs
      */
     public static void sendMessage(String remoteAddress, int port, Message message, OnError onError) {
-        try {
-            if (!exit.get())
-                service.execute(new SenderThread(remoteAddress, port, message, onError));
-        } catch (Exception e) {
-            System.err.println("Error creating sender thread");
-            e.printStackTrace();
-        }
+        send(remoteAddress, port, message).whenComplete((result, error) -> {
+            if (error != null && onError != null)
+                onError.errorOccurred();
+        });
     }
 
     /**
-     * Initiates the engine to run as a client using peer information, and allocates space for the
-     * buffers that will be used by the engine.
-     * @param remoteAddress The IP address of the peer.
-     * @param port The peer's port that will be used.
+     * Sends a message to a peer, without blocking the caller. If that peer already has too many messages being
+     * sent, the message waits in the queue of the peer (at most QUEUE_TIMEOUT), and fails right away if the queue
+     * is full; the producers see the backpressure in the returned futures.
+     * @param remoteAddress IP address to send the message
+     * @param port Port to send the message
+     * @param message Message to send
+     * @return Future completed when the message is written to the peer, or completed exceptionally when it
+     * cannot be sent; once it fails, the message is no longer going to be sent
      */
-    private SenderThread(String remoteAddress, int port, Message message, OnError onError) throws Exception {
-        this.remoteAddress = remoteAddress;
-        this.port = port;
-        this.message = message;
-        this.onError = onError;
-        SSLContext context = SSLContext.getInstance(protocol);
-        context.init(createKeyManagers(clientKeys, password, password), createTrustManagers(trustStore, password), new SecureRandom());
-        this.engine = context.createSSLEngine(remoteAddress, port);
-        this.engine.setUseClientMode(true);
+    public static CompletableFuture<Void> send(String remoteAddress, int port, Message message) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (message == null) {
+            future.complete(null);
+            return future;
+        }
+        if (exit.get()) {
+            future.completeExceptionally(new IllegalStateException("Sender is shutting down"));
+            return future;
+        }
+
+        // the message is sent later, so it cannot depend on the buffer where it was received
+        message.detachBody();
+
+        String key = remoteAddress + ":" + port;
+        PeerQueue queue = queues.computeIfAbsent(key, k -> new PeerQueue());
+        Queued queued = new Queued(remoteAddress, port, message, future);
+        synchronized (queue) {
+            if (queue.inFlight >= MAX_IN_FLIGHT_PER_PEER) {
+                if (queue.waiting.size() >= MAX_QUEUED_PER_PEER) {
+                    System.err.println("Too many messages waiting to be sent to " + key + "; dropping " + message.getHeader());
+                    future.completeExceptionally(new RejectedExecutionException("Too many messages waiting to be sent to " + key));
+                    return future;
+                }
+                queue.waiting.add(queued);
+                return future;
+            }
+            queue.inFlight++;
+        }
+        start(queue, queued);
+        return future;
     }
 
     /**
-     * Sets the sender id for all the sender threads
-     * @param senderId the id of the sender
+     * Starts sending a message that has a place among the ones in flight to its peer; when it finishes, the
+     * next message waiting for that peer takes its place.
+     * @param queue Queue of the peer
+     * @param queued The message
      */
-    public static void setSenderId(int senderId) {
-        SenderThread.senderId = senderId;
-    }
+    private static void start(PeerQueue queue, Queued queued) {
+        queued.future.whenComplete((result, error) -> finished(queue));
 
+        if (BATCHED_TYPES.contains(queued.message.getHeader().getMessageType())) {
+            batcher.add(queued.remoteAddress, queued.port, queued.message, queued.future);
+        } else {
+            dispatch(new SenderThread(queued.remoteAddress, queued.port, Collections.singletonList(queued.message), Collections.singletonList(queued.future)));
+        }
+    }
 
     /**
-     * Sets the protocol to be used to create the SLLContext
-     * @param protocol The SSL/TLS protocol to be used. Java 1.6 will only run with up to TLSv1 protocol. Java 1.7 or higher also supports TLSv1.1 and TLSv1.2 protocols.
+     * Called when a message to a peer finishes: starts the next one waiting, failing the ones that waited
+     * more than QUEUE_TIMEOUT.
+     * @param queue Queue of the peer
      */
-    public static void setProtocol(String protocol) {
-        SenderThread.protocol = protocol;
+    private static void finished(PeerQueue queue) {
+        List<Queued> expired = new ArrayList<>();
+        Queued next;
+        synchronized (queue) {
+            long now = System.nanoTime();
+            while ((next = queue.waiting.poll()) != null && isExpired(next, now))
+                expired.add(next);
+            if (next == null)
+                queue.inFlight--;
+        }
+
+        failExpired(expired);
+        if (next != null)
+            start(queue, next);
     }
 
     /**
-     * Setter for the client keys.
-     * @param clientKeys the keys of the client path
+     * Removes the messages that waited more than QUEUE_TIMEOUT from the queues of the peers, and fails them.
+     * Called periodically by the expiry timer, so that they fail even when no message to their peer finishes.
      */
-    public static void setClientKeys(String clientKeys) {
-        SenderThread.clientKeys = clientKeys;
+    private static void expireWaiting() {
+        long now = System.nanoTime();
+        for (PeerQueue queue : queues.values()) {
+            List<Queued> expired = new ArrayList<>();
+            synchronized (queue) {
+                // the queue is in the order the messages arrived, so the oldest are at its head
+                while (!queue.waiting.isEmpty() && isExpired(queue.waiting.peek(), now))
+                    expired.add(queue.waiting.poll());
+            }
+            failExpired(expired);
+        }
+    }
+
+    private static boolean isExpired(Queued queued, long now) {
+        return now - queued.queuedAt > TimeUnit.MILLISECONDS.toNanos(QUEUE_TIMEOUT);
+    }
+
+    private static void failExpired(List<Queued> expired) {
+        for (Queued message : expired)
+            message.future.completeExceptionally(new TimeoutException("Message waited too long to be sent to " + message.remoteAddress + ":" + message.port));
     }
 
     /**
-     * Setter for the trust store.
-     * @param trustStore the trust store path
+     * Runs a sender thread in the executor service.
+     * @param senderThread Sender thread with the messages to send
      */
-    public static void setTrustStore(String trustStore) {
-        SenderThread.trustStore = trustStore;
+    private static void dispatch(SenderThread senderThread) {
+        try {
+            service.execute(senderThread);
+        } catch (Exception e) {
+            System.err.println("Error creating sender thread");
+            e.printStackTrace();
+            senderThread.completeAll(e);
+        }
     }
 
     /**
-     * Setter for the client keys password.
-     * @param password the password for the client keys and trust store
+     * Constructor of the sender thread.
+     * @param remoteAddress The IP address of the peer.
+     * @param port The peer's port that will be used.
+     * @param messages Messages to send
+     * @param futures Futures of the messages, one for each message
      */
-    public static void setPassword(String password) {
-        SenderThread.password = password;
+    private SenderThread(String remoteAddress, int port, List<Message> messages, List<CompletableFuture<Void>> futures) {
+        this.remoteAddress = remoteAddress;
+        this.port = port;
+        this.messages = messages;
+        this.futures = futures;
     }
 
     /**
-     * Opens a socket channel to communicate with the configured server and tries to complete the handshake protocol.
-     * @return True if client established a connection with the server, false otherwise.
-     * @throws Exception when the connection fails
+     * Opens a new connection to a peer, performing the SSL/TLS handshake. Used by the connection pool
+     * when there are no idle connections to that peer.
+     * @param remoteAddress The IP address of the peer.
+     * @param port The peer's port that will be used.
+     * @return The new connection
+     * @throws Exception when the connection or the handshake fails, or takes too long
      */
-    protected boolean connect() throws Exception {
-        socketChannel = SocketChannel.open();
-        socketChannel.configureBlocking(false);
-        socketChannel.connect(new InetSocketAddress(remoteAddress, port));
-        while(!socketChannel.finishConnect());
-        engine.beginHandshake();
-        return performHandshake(socketChannel, engine);
+    private static SSLConnection openConnection(String remoteAddress, int port) throws Exception {
+        SSLConnection connection = new SSLConnection(remoteAddress, port, contextHolder.getContext());
+        try {
+            connection.connect(getConnector()).get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
     }
 
     /**
-     * Method that performs a write operation, using SSL and secure mechanisms, and sends the message to the other peer.
-     * @param socketChannel Socket channel used for writing
-     * @param engine Engine used for encryption/decryption of the data
-     * @throws IOException when the the sending of the message fails
-     */
-    protected void writeToPeer(SocketChannel socketChannel, SSLEngine engine) throws IOException {
-        SSLSession session = engine.getSession();
-        byte[] msg = message.convertToBytes();
-
-        // create byte buffers for communication
-        ByteBuffer appData = ByteBuffer.allocate(Math.max(session.getApplicationBufferSize(), msg.length));
-        ByteBuffer netData = ByteBuffer.allocate(session.getPacketBufferSize());
-        ByteBuffer msgBuf = ByteBuffer.allocate(msg.length + 500);
-
-        // insert message bytes to byte buffer and flip it
-        appData.put(msg);
-        appData.flip();
-
-        // while there is still data to be sent
-        while (appData.hasRemaining()) {
-            // use SSL Engine to wrap the data
-            netData.clear();
-            SSLEngineResult result = engine.wrap(appData, netData);
-
-            // get result status
-            switch (result.getStatus()) {
-                // everything went OK
-                case OK:
-                    // flip buffer and write to socket channel
-                    netData.flip();
-                    msgBuf.put(netData);
-                    break;
-
-                // in case of buffer underflow
-                case BUFFER_UNDERFLOW:
-                    throw new SSLException("Error: underflow after wrap");
-
-                // in case of buffer overflow
-                case BUFFER_OVERFLOW:
-                    netData = overflowPacketBufferCall(engine, netData);
-                    break;
-
-                // when the connection was closed
-                case CLOSED:
-                    closeConnection(socketChannel, engine);
-                    return;
-                default:
-                    throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
-            }
-        }
+     * Retrieves the connector, creating it if needed.
+     * @return The connector used to open connections
+     * @throws IOException when the connector cannot be created
+     */
+    private static synchronized Connector getConnector() throws IOException {
+        if (connector == null)
+            connector = new Connector();
+        return connector;
+    }
 
-        msgBuf.flip();
-        socketChannel.write(msgBuf);
+    /**
+     * Sets the sender id for all the sender threads
+     * @param senderId the id of the sender
+     */
+    public static void setSenderId(ChordId senderId) {
+        SenderThread.senderId = senderId;
     }
 
+
     /**
-     * Method that explicitly closes the connection.
-     * @throws IOException when the connection can't be successfully closed
+     * Sets the holder of the SSL context used to create the connections.
+     * @param contextHolder Holder of the SSL context, with the client keys and trust store
      */
-    protected void shutdown() throws IOException {
-        closeConnection(socketChannel, engine);
-        executor.shutdown();
+    public static void setContextHolder(SSLContextHolder contextHolder) {
+        SenderThread.contextHolder = contextHolder;
     }
 
     public static void exit() {
         exit.set(true);
+        expiryTimer.shutdownNow();
+        batcher.shutdown();
         service.shutdown();
         try {
             if (!service.awaitTermination(60, TimeUnit.SECONDS)) {
@@ -259,39 +392,65 @@ public class SenderThread extends SSLThread implements Runnable {
         } catch (InterruptedException ex) {
             service.shutdownNow();
         }
+        pool.shutdown();
+        synchronized (SenderThread.class) {
+            if (connector != null)
+                connector.stop();
+        }
     }
 
     /**
      * Method to be called to run a separate thread that performs all the needed operations
-     * to perform the sending of the encrypted message to the other peer. Performs connection,
-     * encryption using SSLEngine, writing of the message and shutdown of the connection.
-     * In case of any error, runs the error method of the onError class.
+     * to perform the sending of the encrypted messages to the other peer. Gets a connection from the pool
+     * (connecting to the peer if needed), encrypts and writes the messages (in a batch frame, if there is
+     * more than one) and gives the connection back.
+     * The futures of the messages are completed at the end (exceptionally, in case of any error).
      */
     @Override
     public void run() {
-        if (message == null)
-            return;
-
-        message.setSenderId(senderId);
+        for (Message message : messages)
+            message.setSenderId(senderId);
 
+        SSLConnection connection;
         try {
-            if(!connect()){
+            connection = pool.acquire(remoteAddress, port);
+        } catch (Exception e) {
+            for (Message message : messages)
                 System.err.println("Error (connection) when sending message: " + message.getHeader());
-                if (onError != null)
-                    onError.errorOccurred();
-                return;
-            }
-
-
-            writeToPeer(socketChannel, engine);
+            this.completeAll(e);
+            return;
+        }
 
-            shutdown();
-            System.out.println(formatter.format(Instant.now()) + " - Sent message: " + message.getHeader());
+        SharedBuffer frame = null;
+        try {
+            frame = Frame.encode(messages);
+            connection.write(frame.getBuffer());
+            pool.release(connection);
+            for (Message message : messages)
+                System.out.println(formatter.format(Instant.now()) + " - Sent message: " + message.getHeader());
+            this.completeAll(null);
         } catch (Exception e) {
-            System.err.println(formatter.format(Instant.now()) + " - Error (exception) when sending message: " + message.getHeader());
+            pool.invalidate(connection);
+            for (Message message : messages)
+                System.err.println(formatter.format(Instant.now()) + " - Error (exception) when sending message: " + message.getHeader());
             e.printStackTrace();
-            if (onError != null)
-                onError.errorOccurred();
+            this.completeAll(e);
+        } finally {
+            if (frame != null)
+                frame.release();
+        }
+    }
+
+    /**
+     * Completes the futures of the messages.
+     * @param error Cause of the failure, or null if the messages were sent
+     */
+    private void completeAll(Exception error) {
+        for (CompletableFuture<Void> future : futures) {
+            if (error == null)
+                future.complete(null);
+            else
+                future.completeExceptionally(error);
         }
     }
-}
\ No newline at end of file
+}
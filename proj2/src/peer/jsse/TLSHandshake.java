@@ -0,0 +1,279 @@
+package peer.jsse;
+
+import peer.buffers.BufferPool;
+import peer.buffers.SharedBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+
+/**
+ * Non-blocking implementation of the handshake protocol between two peers, required for the establishment of the
+ * SSL/TLS connection. Instead of waiting for the network, each step does as much work as it can and returns the
+ * event it needs to continue (the channel being readable or writable), so that it can be driven by a selector.
+ * The delegated tasks of the engine are run in a bounded thread pool, shared by all handshakes.
+ */
+public class TLSHandshake {
+    /**
+     * State of the handshake after a step.
+     */
+    public enum State {
+        NEED_READ,      // waiting for data from the other peer (OP_READ)
+        NEED_WRITE,     // waiting for the channel to accept more data (OP_WRITE)
+        RUNNING_TASKS,  // waiting for the delegated tasks; the resume callback will be called when they are done
+        FINISHED        // handshake completed
+    }
+
+    /**
+     * Thread pool where the delegated tasks of the engines are run. When it is full, the tasks are run
+     * by the thread that is driving the handshake.
+     */
+    private static final ThreadPoolExecutor taskExecutor = new ThreadPoolExecutor(
+            Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors(),
+            30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(1024),
+            runnable -> {
+                Thread thread = new Thread(runnable, "handshake-tasks");
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        taskExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The socket channel that connects the two peers.
+     */
+    private final SocketChannel socketChannel;
+
+    /**
+     * The engine that will be used for encryption/decryption of the data exchanged with the other peer.
+     */
+    private final SSLEngine engine;
+
+    /**
+     * Callback to be called when the delegated tasks are done, to continue the handshake.
+     */
+    private final Runnable resume;
+
+    /**
+     * Data received from the other peer that was not unwrapped yet.
+     */
+    private ByteBuffer peerNetData;
+
+    /**
+     * Data unwrapped from the other peer (not used during the handshake).
+     */
+    private ByteBuffer peerAppData;
+
+    /**
+     * Data to be sent to the other peer; flipped, with the data still not written.
+     */
+    private ByteBuffer netData;
+
+    /**
+     * Pooled buffers used during the handshake, released when it finishes or fails.
+     */
+    private final SharedBuffer peerAppBuffer;
+    private final SharedBuffer netBuffer;
+    private boolean released = false;
+
+    /**
+     * Empty buffer with the application data to be wrapped during the handshake.
+     */
+    private final ByteBuffer appData = ByteBuffer.allocate(0);
+
+    /**
+     * Completed when the handshake finishes, or completed exceptionally if it fails.
+     */
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    /**
+     * Constructor of the handshake. The engine must have already begun the handshake.
+     * @param socketChannel The socket channel that connects the two peers (non-blocking)
+     * @param engine The engine used in the connection
+     * @param peerNetData Buffer for the data received from the other peer; any application data that arrives
+     *                    right after the end of the handshake (which happens when a session is resumed) is left there
+     * @param resume Callback to be called (from another thread) when the delegated tasks are done
+     */
+    public TLSHandshake(SocketChannel socketChannel, SSLEngine engine, ByteBuffer peerNetData, Runnable resume) {
+        this.socketChannel = socketChannel;
+        this.engine = engine;
+        this.peerNetData = peerNetData;
+        this.resume = resume;
+        this.peerAppBuffer = BufferPool.getShared().acquire(engine.getSession().getApplicationBufferSize());
+        this.netBuffer = BufferPool.getShared().acquire(engine.getSession().getPacketBufferSize());
+        this.peerAppData = peerAppBuffer.getBuffer();
+        this.netData = netBuffer.getBuffer();
+        this.netData.flip();
+    }
+
+    /**
+     * Advances the handshake as much as possible without blocking.
+     * @return The state of the handshake, with the event needed to continue it
+     * @throws IOException when the handshake fails; the future of the handshake is also completed exceptionally
+     */
+    public State step() throws IOException {
+        try {
+            State state = this.advance();
+            if (state == State.FINISHED)
+                this.release();
+            return state;
+        } catch (IOException | RuntimeException e) {
+            this.release();
+            completion.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Gives the buffers of the handshake back to the pool.
+     */
+    private void release() {
+        if (released)
+            return;
+        released = true;
+        peerAppBuffer.release();
+        netBuffer.release();
+    }
+
+    /**
+     * Implementation of a step of the handshake.
+     * @return The state of the handshake
+     * @throws IOException when the handshake fails
+     */
+    private State advance() throws IOException {
+        while (true) {
+            // first, write the data that is pending
+            if (netData.hasRemaining()) {
+                socketChannel.write(netData);
+                if (netData.hasRemaining())
+                    return State.NEED_WRITE;
+            }
+
+            SSLEngineResult result;
+            switch (engine.getHandshakeStatus()) {
+                // ----- Status: Need wrap -----
+                case NEED_WRAP:
+                    netData.clear();
+                    result = engine.wrap(appData, netData);
+                    netData.flip();
+
+                    switch (result.getStatus()) {
+                        case OK:
+                            break;
+                        case BUFFER_OVERFLOW:
+                            netData = ByteBuffer.allocate(netData.capacity() * 2);
+                            netData.flip();
+                            break;
+                        case CLOSED:
+                            // write the closing message before failing
+                            if (netData.hasRemaining())
+                                socketChannel.write(netData);
+                            throw new SSLException("Connection closed during handshake");
+                        default:
+                            throw new SSLException("Invalid SSL status after wrap: " + result.getStatus());
+                    }
+                    break;
+
+                // ----- Status: Need unwrap -----
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    peerNetData.flip();
+                    try {
+                        result = engine.unwrap(peerNetData, peerAppData);
+                    } finally {
+                        peerNetData.compact();
+                    }
+
+                    switch (result.getStatus()) {
+                        case OK:
+                            break;
+                        case BUFFER_UNDERFLOW:
+                            // not enough data from the other peer; read more
+                            if (peerNetData.capacity() < engine.getSession().getPacketBufferSize()) {
+                                ByteBuffer replaceBuffer = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                                peerNetData.flip();
+                                replaceBuffer.put(peerNetData);
+                                peerNetData = replaceBuffer;
+                            }
+
+                            int read = socketChannel.read(peerNetData);
+                            if (read < 0)
+                                throw new SSLException("End of stream during handshake");
+                            if (read == 0)
+                                return State.NEED_READ;
+                            break;
+                        case BUFFER_OVERFLOW:
+                            peerAppData = ByteBuffer.allocate(peerAppData.capacity() * 2);
+                            break;
+                        case CLOSED:
+                            throw new SSLException("Connection closed during handshake");
+                        default:
+                            throw new SSLException("Invalid SSL status after unwrap: " + result.getStatus());
+                    }
+                    break;
+
+                // ----- Status: Need task -----
+                case NEED_TASK:
+                    taskExecutor.execute(() -> {
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        resume.run();
+                    });
+                    return State.RUNNING_TASKS;
+
+                // ----- Status: Finished -----
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    completion.complete(null);
+                    return State.FINISHED;
+
+                default:
+                    throw new IllegalStateException("Invalid state in SSL : " + engine.getHandshakeStatus());
+            }
+        }
+    }
+
+    /**
+     * Retrieves the buffer with the data received from the other peer and not used by the handshake.
+     * @return Buffer with the data received (not flipped)
+     */
+    public ByteBuffer getPeerNetData() {
+        return peerNetData;
+    }
+
+    /**
+     * Retrieves the future of the handshake, completed when it finishes.
+     * @return Future of the handshake
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Converts the state of the handshake to the interest set of the selection key of its channel.
+     * @param state State of the handshake
+     * @return The operations to listen to in the channel
+     */
+    public static int interestOps(State state) {
+        switch (state) {
+            case NEED_READ:
+                return SelectionKey.OP_READ;
+            case NEED_WRITE:
+                return SelectionKey.OP_WRITE;
+            default:
+                return 0;
+        }
+    }
+}
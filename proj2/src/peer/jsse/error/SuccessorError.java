@@ -0,0 +1,21 @@
+package peer.jsse.error;
+
+import peer.chord.ChordNode;
+import peer.chord.ChordRingInfo;
+
+public class SuccessorError implements OnError {
+
+    private ChordRingInfo ringInfo;
+
+    private ChordNode successor;
+
+    public SuccessorError(ChordRingInfo ringInfo, ChordNode successor) {
+        this.ringInfo = ringInfo;
+        this.successor = successor;
+    }
+
+    @Override
+    public void errorOccurred() {
+        ringInfo.handleSuccessorError(successor);
+    }
+}
@@ -1,28 +1,68 @@
 package peer.messages;
 
+import peer.chord.ChordId;
 import peer.chord.ChordNode;
 
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Class responsible for handling the header of a message either when receiving or when sending
  */
 public class Header implements Serializable {
+    /**
+     * Version of the binary header format.
+     */
+    public static final int BINARY_VERSION = 4;
+
+    /**
+     * First byte of a binary header: the highest bit set (text headers start with an ASCII letter) and the version.
+     */
+    public static final byte BINARY_MARKER = (byte) (0x80 | BINARY_VERSION);
+
+    /**
+     * Tags for the encoding of a file id in a binary header: its 32 raw bytes, or its characters.
+     */
+    private static final byte FILE_ID_RAW = 0;
+    private static final byte FILE_ID_TEXT = 1;
+
+    /**
+     * Size (in bytes) of a SHA-256 file id.
+     */
+    private static final int FILE_ID_SIZE = 32;
+
+    /**
+     * Hexadecimal digits, for decoding raw file ids.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private int replication;                    // Replication of the message
     private final MessageType messageType;      // Type of the message
-    private int senderId;                       // ID of the sender peer
+    private ChordId senderId;                   // ID of the sender peer
+    private ChordId receiverId;                 // ID of the (virtual) node the message is for; null if any node of the peer
     private String fileId;                      // ID of the file
     private int chunkNo;                        // Number of the chunk
-    private int key;                            // Chord key sent/received
+    private ChordId key;                        // Chord key sent/received
+    private int requestId;                      // id of the lookup (FIND_SUCC/RTRN_SUCC), chosen by the node that started it
     private ChordNode node;                     // Node to be sent
+    private List<ChordNode> successors = Collections.emptyList(); // successor list of the sender (RTRN_PRED)
+    private boolean lookupDone;                 // true if the nodes of a RTRN_NEXT are the answer, false if they are the next hops
+    private List<ChordNode> nextNodes = Collections.emptyList(); // nodes returned by a RTRN_NEXT
+    private Map<Integer, ChordId> lookups = Collections.emptyMap(); // lookups of a FIND_SUCC_BATCH/RTRN_SUCC_BATCH (request id -> key)
     private String ipAddress;                   // IP address of the node to contact
     private int port;                           // port number of the node to contact
-    private int barrierId;                      // node ID after which the message should not be propagated
+    private ChordId barrierId;                  // node ID after which the message should not be propagated
+    private int bodyLength;                     // length of the body, when received with a binary header
 
     /**
      * Fills the Header class based on the elements of the header list, for message receiving
@@ -43,7 +83,7 @@ public class Header implements Serializable {
         }
 
         this.messageType = MessageType.valueOf(headerMain.remove(0).trim());
-        this.senderId = Integer.parseInt(headerMain.remove(0).trim());
+        this.senderId = ChordId.fromHex(headerMain.remove(0).trim());
 
         switch (this.messageType) {
             case PUTCHUNK:
@@ -58,7 +98,7 @@ public class Header implements Serializable {
                 this.chunkNo = Integer.parseInt(headerMain.remove(0).trim());
                 this.ipAddress = headerMain.remove(0).trim();
                 this.port = Integer.parseInt(headerMain.remove(0).trim());
-                this.barrierId = Integer.parseInt(headerMain.remove(0).trim());
+                this.barrierId = ChordId.fromHex(headerMain.remove(0).trim());
                 break;
             case GETCHUNK:
                 this.fileId = headerMain.remove(0).trim();
@@ -81,28 +121,103 @@ public class Header implements Serializable {
                 this.fileId = headerMain.remove(0).trim();
                 break;
             case FIND_SUCC:
-                this.key = Integer.parseInt(headerMain.remove(0).trim());
+            case FIND_NEXT:
+                this.key = ChordId.fromHex(headerMain.remove(0).trim());
+                this.requestId = Integer.parseInt(headerMain.remove(0).trim());
                 this.ipAddress = headerMain.remove(0).trim();
                 this.port = Integer.parseInt(headerMain.remove(0).trim());
                 break;
+            case RTRN_NEXT:
+                this.key = ChordId.fromHex(headerMain.remove(0).trim());
+                this.requestId = Integer.parseInt(headerMain.remove(0).trim());
+                this.lookupDone = Integer.parseInt(headerMain.remove(0).trim()) != 0;
+                int numNodes = Integer.parseInt(headerMain.remove(0).trim());
+                this.nextNodes = new ArrayList<>(numNodes);
+                for (int i = 0; i < numNodes; i++) {
+                    this.nextNodes.add(parseNode(headerMain));
+                }
+                break;
+            case FIND_SUCC_BATCH:
+                this.ipAddress = headerMain.remove(0).trim();
+                this.port = Integer.parseInt(headerMain.remove(0).trim());
+                this.lookups = parseLookups(headerMain);
+                break;
+            case RTRN_SUCC_BATCH:
+                this.node = parseNode(headerMain);
+                this.lookups = parseLookups(headerMain);
+                break;
+            case RTRN_PRED:
+                this.node = parseNode(headerMain);
+                int numSuccessors = Integer.parseInt(headerMain.remove(0).trim());
+                this.successors = new ArrayList<>(numSuccessors);
+                for (int i = 0; i < numSuccessors; i++) {
+                    this.successors.add(parseNode(headerMain));
+                }
+                break;
+            case GET_RANGE:
+                this.key = ChordId.fromHex(headerMain.remove(0).trim());
+                this.node = parseNode(headerMain);
+                break;
             case RTRN_SUCC:
-                this.key = Integer.parseInt(headerMain.remove(0).trim());
+                this.key = ChordId.fromHex(headerMain.remove(0).trim());
+                this.requestId = Integer.parseInt(headerMain.remove(0).trim());
+                this.node = parseNode(headerMain);
+                break;
             case SET_SUCC:
             case SET_PRED:
             case GET_PRED:
-            case RTRN_PRED:
             case NOTIFY:
-                int id = Integer.parseInt(headerMain.remove(0).trim());
-                String ipAddress = headerMain.remove(0).trim();
-                int portMC = Integer.parseInt(headerMain.remove(0).trim());
-                int portMDB = Integer.parseInt(headerMain.remove(0).trim());
-                int portMDR = Integer.parseInt(headerMain.remove(0).trim());
-                int portChord = Integer.parseInt(headerMain.remove(0).trim());
-                this.node = new ChordNode(ipAddress, portMC, portMDB, portMDR, portChord, id);
+            case PING:
+            case PONG:
+                this.node = parseNode(headerMain);
                 break;
             default:
                 break;
         }
+
+        // the id of the receiver is the last field, when there is one
+        if (!headerMain.isEmpty())
+            this.receiverId = ChordId.fromHex(headerMain.remove(0).trim());
+    }
+
+    /**
+     * Reads a Chord node from the fields of a text header.
+     * @param headerMain fields of the header not read yet
+     * @return the node read
+     */
+    private static ChordNode parseNode(ArrayList<String> headerMain) {
+        ChordId id = ChordId.fromHex(headerMain.remove(0).trim());
+        String ipAddress = headerMain.remove(0).trim();
+        int portMC = Integer.parseInt(headerMain.remove(0).trim());
+        int portMDB = Integer.parseInt(headerMain.remove(0).trim());
+        int portMDR = Integer.parseInt(headerMain.remove(0).trim());
+        int portChord = Integer.parseInt(headerMain.remove(0).trim());
+        return new ChordNode(ipAddress, portMC, portMDB, portMDR, portChord, id);
+    }
+
+    /**
+     * Reads the lookups of a batch (their number, then the request id and key of each) from the fields of a text header.
+     * @param headerMain fields of the header not read yet
+     * @return the lookups read (request id -> key)
+     */
+    private static Map<Integer, ChordId> parseLookups(ArrayList<String> headerMain) {
+        int numLookups = Integer.parseInt(headerMain.remove(0).trim());
+        Map<Integer, ChordId> lookups = new LinkedHashMap<>();
+        for (int i = 0; i < numLookups; i++) {
+            int requestId = Integer.parseInt(headerMain.remove(0).trim());
+            lookups.put(requestId, ChordId.fromHex(headerMain.remove(0).trim()));
+        }
+        return lookups;
+    }
+
+    /**
+     * Creates a header with only the type and the sender, to be filled when decoding a binary header.
+     * @param messageType the type of the message received
+     * @param senderId ID of the sender peer
+     */
+    private Header(MessageType messageType, ChordId senderId) {
+        this.messageType = messageType;
+        this.senderId = senderId;
     }
 
     /**
@@ -134,7 +249,7 @@ public class Header implements Serializable {
      * @param port Port number of the sending peer
      * @param barrierId Barrier ID
      */
-    public Header(MessageType msgType, String fileId, int chunkNo, String ipAddress, int port, int barrierId) throws IllegalArgumentException {
+    public Header(MessageType msgType, String fileId, int chunkNo, String ipAddress, int port, ChordId barrierId) throws IllegalArgumentException {
         if(msgType != MessageType.GIVECHUNK) {
             throw new IllegalArgumentException("Invalid message header");
         }
@@ -211,15 +326,53 @@ public class Header implements Serializable {
      * Fills the Header class for Chord message sending
      * @param msgType the type of message to be sent
      * @param key Chord key
+     * @param requestId Id of the lookup
      * @param ipAddress IP address of the node to be contacted after its successor is found
      * @param port Port number of the node to be contacted after its successor is found
      */
-    public Header(MessageType msgType, int key, String ipAddress, int port) throws IllegalArgumentException {
-        if(msgType != MessageType.FIND_SUCC) {
+    public Header(MessageType msgType, ChordId key, int requestId, String ipAddress, int port) throws IllegalArgumentException {
+        if(msgType != MessageType.FIND_SUCC && msgType != MessageType.FIND_NEXT) {
             throw new IllegalArgumentException("Invalid message header");
         }
         this.messageType = msgType;
         this.key = key;
+        this.requestId = requestId;
+        this.ipAddress = ipAddress;
+        this.port = port;
+    }
+
+    /**
+     * Fills the Header class for message sending (RTRN_NEXT)
+     * @param msgType the type of message to be sent
+     * @param key Chord key
+     * @param requestId Id of the lookup
+     * @param lookupDone True if the node sent is the successor of the key, false if the nodes are the ones to ask next
+     * @param nextNodes The successor of the key, or the nodes to ask next (closest to the key first)
+     */
+    public Header(MessageType msgType, ChordId key, int requestId, boolean lookupDone, List<ChordNode> nextNodes) throws IllegalArgumentException {
+        if(msgType != MessageType.RTRN_NEXT) {
+            throw new IllegalArgumentException("Invalid message header");
+        }
+        this.messageType = msgType;
+        this.key = key;
+        this.requestId = requestId;
+        this.lookupDone = lookupDone;
+        this.nextNodes = nextNodes;
+    }
+
+    /**
+     * Fills the Header class for message sending (FIND_SUCC_BATCH)
+     * @param msgType the type of message to be sent
+     * @param lookups Lookups to be done (request id -> key)
+     * @param ipAddress IP address of the node to be contacted after the successors are found
+     * @param port Port number of the node to be contacted after the successors are found
+     */
+    public Header(MessageType msgType, Map<Integer, ChordId> lookups, String ipAddress, int port) throws IllegalArgumentException {
+        if(msgType != MessageType.FIND_SUCC_BATCH) {
+            throw new IllegalArgumentException("Invalid message header");
+        }
+        this.messageType = msgType;
+        this.lookups = lookups;
         this.ipAddress = ipAddress;
         this.port = port;
     }
@@ -245,25 +398,73 @@ public class Header implements Serializable {
                 && msgType != MessageType.NOTIFY
                 && msgType != MessageType.GET_PRED
                 && msgType != MessageType.SET_PRED
-                && msgType != MessageType.SET_SUCC) {
+                && msgType != MessageType.SET_SUCC
+                && msgType != MessageType.PING
+                && msgType != MessageType.PONG) {
             throw new IllegalArgumentException("Invalid message header");
         }
         this.messageType = msgType;
         this.node = node;
     }
 
+    /**
+     * Fills the Header class for message sending (RTRN_PRED), with the successor list of the sender
+     * @param msgType the type of message to be sent
+     * @param node Chord node to send (the predecessor of the sender)
+     * @param successors successor list of the sender, starting with the sender itself
+     */
+    public Header(MessageType msgType, ChordNode node, List<ChordNode> successors) {
+        this(msgType, node);
+        if(msgType != MessageType.RTRN_PRED) {
+            throw new IllegalArgumentException("Invalid message header");
+        }
+        this.successors = successors;
+    }
+
+    /**
+     * Fills the Header class for message sending (RTRN_SUCC_BATCH)
+     * @param msgType the type of message to be sent
+     * @param node Chord node that is the successor of the keys
+     * @param lookups Lookups answered (request id -> key)
+     */
+    public Header(MessageType msgType, ChordNode node, Map<Integer, ChordId> lookups) {
+        if(msgType != MessageType.RTRN_SUCC_BATCH) {
+            throw new IllegalArgumentException("Invalid message header");
+        }
+        this.messageType = msgType;
+        this.node = node;
+        this.lookups = lookups;
+    }
+
+    /**
+     * Fills the Header class for message sending (GET_RANGE)
+     * @param msgType the type of message to be sent
+     * @param node Chord node that asks for the chunks (the end of the range)
+     * @param low start of the range (not included)
+     */
+    public Header(MessageType msgType, ChordNode node, ChordId low) {
+        if(msgType != MessageType.GET_RANGE) {
+            throw new IllegalArgumentException("Invalid message header");
+        }
+        this.messageType = msgType;
+        this.node = node;
+        this.key = low;
+    }
+
     /**
      * Fills the Header class for message sending with a Chord node
      * @param msgType the type of message to be sent
      * @param node Chord node to send
      * @param keyHash key that we wanted
+     * @param requestId Id of the lookup
      */
-    public Header(MessageType msgType, ChordNode node, int keyHash) {
+    public Header(MessageType msgType, ChordNode node, ChordId keyHash, int requestId) {
         if(msgType != MessageType.RTRN_SUCC) {
             throw new IllegalArgumentException("Invalid message header");
         }
         this.messageType = msgType;
         this.key = keyHash;
+        this.requestId = requestId;
         this.node = node;
     }
 
@@ -278,11 +479,19 @@ public class Header implements Serializable {
     /**
      * Retrieves the ID of the sender peer.
      */
-    public int getSenderId() {
+    public ChordId getSenderId() {
         return senderId;
     }
 
 
+    /**
+     * Retrieves the ID of the (virtual) node the message is for; null if it is for any node of the peer.
+     */
+    public ChordId getReceiverId() {
+        return receiverId;
+    }
+
+
     /**
      * Retrieves the ID of the file.
      */
@@ -302,10 +511,17 @@ public class Header implements Serializable {
     /**
      * Retrieves the Chord key received
      */
-    public int getKey() {
+    public ChordId getKey() {
         return key;
     }
 
+    /**
+     * Retrieves the id of the lookup (FIND_SUCC and RTRN_SUCC)
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
     /**
      * Retrieves the Chord node
      */
@@ -313,6 +529,34 @@ public class Header implements Serializable {
         return node;
     }
 
+    /**
+     * Retrieves the successor list sent with a RTRN_PRED message (empty for other messages)
+     */
+    public List<ChordNode> getSuccessors() {
+        return successors;
+    }
+
+    /**
+     * Retrieves if a RTRN_NEXT has the answer of the lookup (true) or the nodes to ask next (false)
+     */
+    public boolean isLookupDone() {
+        return lookupDone;
+    }
+
+    /**
+     * Retrieves the nodes of a RTRN_NEXT (empty for other messages)
+     */
+    public List<ChordNode> getNextNodes() {
+        return nextNodes;
+    }
+
+    /**
+     * Retrieves the lookups of a FIND_SUCC_BATCH or RTRN_SUCC_BATCH (request id -> key; empty for other messages)
+     */
+    public Map<Integer, ChordId> getLookups() {
+        return lookups;
+    }
+
     /**
      * Retrieves the IP address of the node that should be contacted
      */
@@ -343,7 +587,7 @@ public class Header implements Serializable {
     }
 
 
-    public int getBarrierId() {
+    public ChordId getBarrierId() {
         return barrierId;
     }
 
@@ -378,25 +622,626 @@ public class Header implements Serializable {
                 header +=  " " + fileId;
                 break;
             case FIND_SUCC:
-                header += " " + key + " " + ipAddress + " " + port;
+            case FIND_NEXT:
+                header += " " + key + " " + requestId + " " + ipAddress + " " + port;
+                break;
+            case RTRN_NEXT:
+                header += " " + key + " " + requestId + " " + (lookupDone ? 1 : 0) + " " + nextNodes.size();
+                for (ChordNode nextNode : nextNodes)
+                    header += nodeToString(nextNode);
+                break;
+            case FIND_SUCC_BATCH:
+                header += " " + ipAddress + " " + port + lookupsToString(lookups);
+                break;
+            case RTRN_SUCC_BATCH:
+                header += nodeToString(node) + lookupsToString(lookups);
+                break;
+            case RTRN_PRED:
+                header += nodeToString(node) + " " + successors.size();
+                for (ChordNode successor : successors)
+                    header += nodeToString(successor);
+                break;
+            case GET_RANGE:
+                header += " " + key + nodeToString(node);
                 break;
             case RTRN_SUCC:
-                header += " " + key;
+                header += " " + key + " " + requestId + nodeToString(node);
+                break;
             case SET_SUCC:
             case SET_PRED:
             case GET_PRED:
-            case RTRN_PRED:
             case NOTIFY:
-                header += " " + node.getId() + " " + node.getIpAddress() + " " + node.getPortMC() + " " + node.getPortMDB() + " " + node.getPortMDR() + " " + node.getPortChord();
+            case PING:
+            case PONG:
+                header += nodeToString(node);
                 break;
         }
 
+        if (receiverId != null)
+            header += " " + receiverId;
+
         header += " \r\n";
 
         return header;
     }
 
 
+    /**
+     * Fields of a Chord node in a text header, each preceded by a space.
+     */
+    private static String nodeToString(ChordNode node) {
+        return " " + node.getId() + " " + node.getIpAddress() + " " + node.getPortMC() + " " + node.getPortMDB() + " " + node.getPortMDR() + " " + node.getPortChord();
+    }
+
+    /**
+     * Fields of the lookups of a batch in a text header: their number, then the request id and key of each.
+     */
+    private static String lookupsToString(Map<Integer, ChordId> lookups) {
+        StringBuilder str = new StringBuilder(" " + lookups.size());
+        for (Map.Entry<Integer, ChordId> lookup : lookups.entrySet())
+            str.append(" ").append(lookup.getKey()).append(" ").append(lookup.getValue());
+        return str.toString();
+    }
+
+    /**
+     * Checks if a received message starts with a binary header.
+     * @param data buffer with the message, starting at its position
+     * @return true if the header is binary, false if it is text
+     */
+    public static boolean isBinary(ByteBuffer data) {
+        return data.hasRemaining() && (data.get(data.position()) & 0x80) != 0;
+    }
+
+    /**
+     * Computes the size of the binary form of this header.
+     * @param bodyLength length of the body of the message
+     * @return the number of bytes needed to encode the header
+     */
+    public int binarySize(int bodyLength) {
+        int size = 2 + idSize(senderId) + idSize(receiverId);
+
+        switch(messageType) {
+            case PUTCHUNK:
+                size += fileIdSize() + varIntSize(chunkNo) + varIntSize(replication) + stringSize(ipAddress) + varIntSize(port);
+                break;
+            case GIVECHUNK:
+                size += fileIdSize() + varIntSize(chunkNo) + stringSize(ipAddress) + varIntSize(port) + idSize(barrierId);
+                break;
+            case GETCHUNK:
+                size += fileIdSize() + varIntSize(chunkNo) + stringSize(ipAddress) + varIntSize(port);
+                break;
+            case CHUNK:
+            case STORED:
+            case REMOVED:
+                size += fileIdSize() + varIntSize(chunkNo);
+                break;
+            case DELETE:
+                size += fileIdSize() + stringSize(ipAddress) + varIntSize(port);
+                break;
+            case DELETED:
+                size += fileIdSize();
+                break;
+            case FIND_SUCC:
+            case FIND_NEXT:
+                size += idSize(key) + varIntSize(requestId) + stringSize(ipAddress) + varIntSize(port);
+                break;
+            case RTRN_NEXT:
+                size += idSize(key) + varIntSize(requestId) + 1 + varIntSize(nextNodes.size());
+                for (ChordNode nextNode : nextNodes)
+                    size += nodeSize(nextNode);
+                break;
+            case FIND_SUCC_BATCH:
+                size += stringSize(ipAddress) + varIntSize(port) + lookupsSize(lookups);
+                break;
+            case RTRN_SUCC_BATCH:
+                size += nodeSize(node) + lookupsSize(lookups);
+                break;
+            case RTRN_PRED:
+                size += nodeSize(node) + varIntSize(successors.size());
+                for (ChordNode successor : successors)
+                    size += nodeSize(successor);
+                break;
+            case GET_RANGE:
+                size += idSize(key) + nodeSize(node);
+                break;
+            case RTRN_SUCC:
+                size += idSize(key) + varIntSize(requestId) + nodeSize(node);
+                break;
+            case SET_SUCC:
+            case SET_PRED:
+            case GET_PRED:
+            case NOTIFY:
+            case PING:
+            case PONG:
+                size += nodeSize(node);
+                break;
+        }
+
+        return size + varIntSize(bodyLength);
+    }
+
+    /**
+     * Writes the binary form of this header:
+     *   - marker with the version of the format (1 byte)
+     *   - type of the message (1 byte)
+     *   - sender id, receiver id and the fields of the message type, with integers as varints and Chord ids as
+     *     their bytes (without leading zeros) preceded by their length
+     *   - length of the body (varint)
+     * @param buffer buffer where the header is written; must have binarySize() bytes remaining
+     * @param bodyLength length of the body of the message
+     */
+    public void encode(ByteBuffer buffer, int bodyLength) {
+        buffer.put(BINARY_MARKER);
+        buffer.put((byte) messageType.ordinal());
+        putId(buffer, senderId);
+        putId(buffer, receiverId);
+
+        switch(messageType) {
+            case PUTCHUNK:
+                putFileId(buffer, fileId);
+                putVarInt(buffer, chunkNo);
+                putVarInt(buffer, replication);
+                putString(buffer, ipAddress);
+                putVarInt(buffer, port);
+                break;
+            case GIVECHUNK:
+                putFileId(buffer, fileId);
+                putVarInt(buffer, chunkNo);
+                putString(buffer, ipAddress);
+                putVarInt(buffer, port);
+                putId(buffer, barrierId);
+                break;
+            case GETCHUNK:
+                putFileId(buffer, fileId);
+                putVarInt(buffer, chunkNo);
+                putString(buffer, ipAddress);
+                putVarInt(buffer, port);
+                break;
+            case CHUNK:
+            case STORED:
+            case REMOVED:
+                putFileId(buffer, fileId);
+                putVarInt(buffer, chunkNo);
+                break;
+            case DELETE:
+                putFileId(buffer, fileId);
+                putString(buffer, ipAddress);
+                putVarInt(buffer, port);
+                break;
+            case DELETED:
+                putFileId(buffer, fileId);
+                break;
+            case FIND_SUCC:
+            case FIND_NEXT:
+                putId(buffer, key);
+                putVarInt(buffer, requestId);
+                putString(buffer, ipAddress);
+                putVarInt(buffer, port);
+                break;
+            case RTRN_NEXT:
+                putId(buffer, key);
+                putVarInt(buffer, requestId);
+                buffer.put((byte) (lookupDone ? 1 : 0));
+                putVarInt(buffer, nextNodes.size());
+                for (ChordNode nextNode : nextNodes)
+                    putNode(buffer, nextNode);
+                break;
+            case FIND_SUCC_BATCH:
+                putString(buffer, ipAddress);
+                putVarInt(buffer, port);
+                putLookups(buffer, lookups);
+                break;
+            case RTRN_SUCC_BATCH:
+                putNode(buffer, node);
+                putLookups(buffer, lookups);
+                break;
+            case RTRN_PRED:
+                putNode(buffer, node);
+                putVarInt(buffer, successors.size());
+                for (ChordNode successor : successors)
+                    putNode(buffer, successor);
+                break;
+            case GET_RANGE:
+                putId(buffer, key);
+                putNode(buffer, node);
+                break;
+            case RTRN_SUCC:
+                putId(buffer, key);
+                putVarInt(buffer, requestId);
+                putNode(buffer, node);
+                break;
+            case SET_SUCC:
+            case SET_PRED:
+            case GET_PRED:
+            case NOTIFY:
+            case PING:
+            case PONG:
+                putNode(buffer, node);
+                break;
+        }
+
+        putVarInt(buffer, bodyLength);
+    }
+
+    /**
+     * Reads a binary header. The buffer is left at the start of the body of the message.
+     * @param buffer buffer with the message, starting at its position
+     * @return the header read; its body length can be retrieved with getBodyLength()
+     * @throws IllegalArgumentException when the header is not valid
+     */
+    public static Header decode(ByteBuffer buffer) throws IllegalArgumentException {
+        try {
+            byte marker = buffer.get();
+            if (marker != BINARY_MARKER) {
+                throw new IllegalArgumentException("Unsupported binary header version: " + (marker & 0x7f));
+            }
+
+            int type = buffer.get() & 0xff;
+            if (type >= MessageType.values().length) {
+                throw new IllegalArgumentException("Invalid message type: " + type);
+            }
+
+            Header header = new Header(MessageType.values()[type], getId(buffer));
+            header.receiverId = getId(buffer);
+
+            switch (header.messageType) {
+                case PUTCHUNK:
+                    header.fileId = getFileId(buffer);
+                    header.chunkNo = getVarInt(buffer);
+                    header.replication = getVarInt(buffer);
+                    header.ipAddress = getString(buffer);
+                    header.port = getVarInt(buffer);
+                    break;
+                case GIVECHUNK:
+                    header.fileId = getFileId(buffer);
+                    header.chunkNo = getVarInt(buffer);
+                    header.ipAddress = getString(buffer);
+                    header.port = getVarInt(buffer);
+                    header.barrierId = getId(buffer);
+                    break;
+                case GETCHUNK:
+                    header.fileId = getFileId(buffer);
+                    header.chunkNo = getVarInt(buffer);
+                    header.ipAddress = getString(buffer);
+                    header.port = getVarInt(buffer);
+                    break;
+                case CHUNK:
+                case STORED:
+                case REMOVED:
+                    header.fileId = getFileId(buffer);
+                    header.chunkNo = getVarInt(buffer);
+                    break;
+                case DELETE:
+                    header.fileId = getFileId(buffer);
+                    header.ipAddress = getString(buffer);
+                    header.port = getVarInt(buffer);
+                    break;
+                case DELETED:
+                    header.fileId = getFileId(buffer);
+                    break;
+                case FIND_SUCC:
+                case FIND_NEXT:
+                    header.key = getId(buffer);
+                    header.requestId = getVarInt(buffer);
+                    header.ipAddress = getString(buffer);
+                    header.port = getVarInt(buffer);
+                    break;
+                case RTRN_NEXT:
+                    header.key = getId(buffer);
+                    header.requestId = getVarInt(buffer);
+                    header.lookupDone = buffer.get() != 0;
+                    int numNodes = getVarInt(buffer);
+                    if (numNodes < 0 || numNodes > buffer.remaining()) {
+                        throw new IllegalArgumentException("Invalid node list length: " + numNodes);
+                    }
+                    header.nextNodes = new ArrayList<>(numNodes);
+                    for (int i = 0; i < numNodes; i++) {
+                        header.nextNodes.add(getNode(buffer));
+                    }
+                    break;
+                case FIND_SUCC_BATCH:
+                    header.ipAddress = getString(buffer);
+                    header.port = getVarInt(buffer);
+                    header.lookups = getLookups(buffer);
+                    break;
+                case RTRN_SUCC_BATCH:
+                    header.node = getNode(buffer);
+                    header.lookups = getLookups(buffer);
+                    break;
+                case RTRN_PRED:
+                    header.node = getNode(buffer);
+                    int numSuccessors = getVarInt(buffer);
+                    if (numSuccessors < 0 || numSuccessors > buffer.remaining()) {
+                        throw new IllegalArgumentException("Invalid successor list length: " + numSuccessors);
+                    }
+                    header.successors = new ArrayList<>(numSuccessors);
+                    for (int i = 0; i < numSuccessors; i++) {
+                        header.successors.add(getNode(buffer));
+                    }
+                    break;
+                case GET_RANGE:
+                    header.key = getId(buffer);
+                    header.node = getNode(buffer);
+                    break;
+                case RTRN_SUCC:
+                    header.key = getId(buffer);
+                    header.requestId = getVarInt(buffer);
+                    header.node = getNode(buffer);
+                    break;
+                case SET_SUCC:
+                case SET_PRED:
+                case GET_PRED:
+                case NOTIFY:
+                case PING:
+                case PONG:
+                    header.node = getNode(buffer);
+                    break;
+                default:
+                    break;
+            }
+
+            header.bodyLength = getVarInt(buffer);
+            if (header.bodyLength < 0 || header.bodyLength > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid body length: " + header.bodyLength);
+            }
+            return header;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary header");
+        }
+    }
+
+    /**
+     * Retrieves the length of the body, as announced in a binary header that was received.
+     */
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Size of an integer encoded as a varint (zigzag, so that negative values are also small).
+     */
+    private static int varIntSize(int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        int size = 1;
+        while ((zigzag & ~0x7f) != 0) {
+            zigzag >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes an integer as a varint (zigzag): 7 bits per byte, with the highest bit set when more bytes follow.
+     */
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7f) != 0) {
+            buffer.put((byte) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    /**
+     * Reads an integer written with putVarInt().
+     */
+    private static int getVarInt(ByteBuffer buffer) {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            zigzag |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IllegalArgumentException("Invalid varint in header");
+    }
+
+    /**
+     * Size of a Chord id, preceded by its length (0 when there is no id).
+     */
+    private static int idSize(ChordId id) {
+        return id == null ? 1 : 1 + id.toByteArray().length;
+    }
+
+    /**
+     * Writes a Chord id, preceded by its length.
+     */
+    private static void putId(ByteBuffer buffer, ChordId id) {
+        if (id == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        byte[] bytes = id.toByteArray();
+        buffer.put((byte) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads a Chord id written with putId().
+     */
+    private static ChordId getId(ByteBuffer buffer) {
+        int length = buffer.get() & 0xff;
+        if (length == 0) {
+            return null;
+        }
+        if (length > ChordId.BYTES) {
+            throw new IllegalArgumentException("Invalid Chord id length in header: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return ChordId.fromBytes(bytes);
+    }
+
+    /**
+     * Size of a Chord node: its id, address and ports.
+     */
+    private static int nodeSize(ChordNode node) {
+        return idSize(node.getId()) + stringSize(node.getIpAddress()) + varIntSize(node.getPortMC())
+                + varIntSize(node.getPortMDB()) + varIntSize(node.getPortMDR()) + varIntSize(node.getPortChord());
+    }
+
+    /**
+     * Writes a Chord node: its id, address and ports.
+     */
+    private static void putNode(ByteBuffer buffer, ChordNode node) {
+        putId(buffer, node.getId());
+        putString(buffer, node.getIpAddress());
+        putVarInt(buffer, node.getPortMC());
+        putVarInt(buffer, node.getPortMDB());
+        putVarInt(buffer, node.getPortMDR());
+        putVarInt(buffer, node.getPortChord());
+    }
+
+    /**
+     * Reads a Chord node written with putNode().
+     */
+    private static ChordNode getNode(ByteBuffer buffer) {
+        ChordId id = getId(buffer);
+        String ipAddress = getString(buffer);
+        int portMC = getVarInt(buffer);
+        int portMDB = getVarInt(buffer);
+        int portMDR = getVarInt(buffer);
+        int portChord = getVarInt(buffer);
+        return new ChordNode(ipAddress, portMC, portMDB, portMDR, portChord, id);
+    }
+
+    /**
+     * Size of the lookups of a batch: their number, then the request id and key of each.
+     */
+    private static int lookupsSize(Map<Integer, ChordId> lookups) {
+        int size = varIntSize(lookups.size());
+        for (Map.Entry<Integer, ChordId> lookup : lookups.entrySet())
+            size += varIntSize(lookup.getKey()) + idSize(lookup.getValue());
+        return size;
+    }
+
+    /**
+     * Writes the lookups of a batch: their number, then the request id and key of each.
+     */
+    private static void putLookups(ByteBuffer buffer, Map<Integer, ChordId> lookups) {
+        putVarInt(buffer, lookups.size());
+        for (Map.Entry<Integer, ChordId> lookup : lookups.entrySet()) {
+            putVarInt(buffer, lookup.getKey());
+            putId(buffer, lookup.getValue());
+        }
+    }
+
+    /**
+     * Reads the lookups of a batch written with putLookups().
+     */
+    private static Map<Integer, ChordId> getLookups(ByteBuffer buffer) {
+        int numLookups = getVarInt(buffer);
+        if (numLookups < 0 || numLookups > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid lookup list length: " + numLookups);
+        }
+        Map<Integer, ChordId> lookups = new LinkedHashMap<>();
+        for (int i = 0; i < numLookups; i++) {
+            int requestId = getVarInt(buffer);
+            lookups.put(requestId, getId(buffer));
+        }
+        return lookups;
+    }
+
+    /**
+     * Size of an ASCII string, preceded by its length.
+     */
+    private static int stringSize(String str) {
+        return varIntSize(str.length()) + str.length();
+    }
+
+    /**
+     * Writes an ASCII string, preceded by its length.
+     */
+    private static void putString(ByteBuffer buffer, String str) {
+        putVarInt(buffer, str.length());
+        for (int i = 0; i < str.length(); i++) {
+            buffer.put((byte) str.charAt(i));
+        }
+    }
+
+    /**
+     * Reads a string written with putString().
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = getVarInt(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length in header: " + length);
+        }
+
+        String str;
+        if (buffer.hasArray()) {
+            str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.ISO_8859_1);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            str = new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        return str;
+    }
+
+    /**
+     * Size of the file id of this header.
+     */
+    private int fileIdSize() {
+        return isFullHexId(fileId) ? 1 + FILE_ID_SIZE : 1 + stringSize(fileId);
+    }
+
+    /**
+     * Checks if a file id is a full SHA-256 in lowercase hex, which can be written as raw bytes.
+     */
+    private static boolean isFullHexId(String fileId) {
+        if (fileId.length() != 2 * FILE_ID_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < fileId.length(); i++) {
+            char c = fileId.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a file id. A full SHA-256 hex string is written as its 32 raw bytes; other ids (since
+     * encodeFileId() does not pad the hex digits) are written as strings.
+     */
+    private static void putFileId(ByteBuffer buffer, String fileId) {
+        if (!isFullHexId(fileId)) {
+            buffer.put(FILE_ID_TEXT);
+            putString(buffer, fileId);
+            return;
+        }
+
+        buffer.put(FILE_ID_RAW);
+        for (int i = 0; i < fileId.length(); i += 2) {
+            buffer.put((byte) ((Character.digit(fileId.charAt(i), 16) << 4) | Character.digit(fileId.charAt(i + 1), 16)));
+        }
+    }
+
+    /**
+     * Reads a file id written with putFileId().
+     */
+    private static String getFileId(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        if (tag == FILE_ID_TEXT) {
+            return getString(buffer);
+        }
+        if (tag != FILE_ID_RAW) {
+            throw new IllegalArgumentException("Invalid file id in header");
+        }
+
+        char[] hex = new char[2 * FILE_ID_SIZE];
+        for (int i = 0; i < FILE_ID_SIZE; i++) {
+            int b = buffer.get() & 0xff;
+            hex[2 * i] = HEX_DIGITS[b >>> 4];
+            hex[2 * i + 1] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(hex);
+    }
+
     /**
      * Hashes a string using the SHA-256 cryptographic function
      * @param str the string to be hashed
@@ -426,7 +1271,11 @@ public class Header implements Serializable {
         return digest.digest(str.getBytes(StandardCharsets.UTF_8));
     }
 
-    public void setSenderId(int senderId) {
+    public void setSenderId(ChordId senderId) {
         this.senderId = senderId;
     }
+
+    public void setReceiverId(ChordId receiverId) {
+        this.receiverId = receiverId;
+    }
 }
@@ -1,13 +1,16 @@
 package peer.messages;
 
+import peer.chord.ChordId;
 import peer.chord.ChordNode;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Class that represents a message that will be sent between peers to communicate
@@ -29,25 +32,82 @@ public class Message implements Serializable {
     private final Header header;
 
     /**
-     * Body of the message
+     * Body of the message, read-only; serialized as a byte array (see writeObject and readObject)
      */
-    private byte[] body = new byte[0];
+    private transient ByteBuffer body = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    /**
+     * Flag to know if the body is a part of the buffer where the message was received (which is reused
+     * after the message is processed), instead of belonging to the message.
+     */
+    private boolean bodyInReceiveBuffer = false;
+
+    /**
+     * Flag to know if the messages are sent with binary headers (true) or with text headers (false).
+     * Messages are received in both formats.
+     */
+    private static volatile boolean binaryHeaders = true;
 
     /**
      * Constructor for message receiving.
      * @param data byte array with received data
      */
     public Message(byte[] data) {
-        String message = new String(data, StandardCharsets.ISO_8859_1);
-        ArrayList<String> split = new ArrayList<>(Arrays.asList(message.split(this.lastCRLF, 2)));
+        this(ByteBuffer.wrap(data));
+    }
 
-        this.header = new Header(split.remove(0));
+    /**
+     * Constructor for message receiving. The format of the header (binary or text) is found by its first byte.
+     * The body is not copied: it is a read-only slice of the buffer, so it is only valid while that buffer is.
+     * @param data buffer with received data, between its position and its limit
+     */
+    public Message(ByteBuffer data) {
+        if (Header.isBinary(data)) {
+            this.header = Header.decode(data);
+            ByteBuffer slice = data.slice();
+            slice.limit(this.header.getBodyLength());
+            this.setReceivedBody(slice);
+            return;
+        }
+
+        // text header: look for the double CRLF, without converting the body
+        int start = data.position();
+        int end = indexOfLastCRLF(data);
+        int headerEnd = end < 0 ? data.limit() : end;
+
+        byte[] headerBytes = new byte[headerEnd - start];
+        data.get(headerBytes);
+        this.header = new Header(new String(headerBytes, StandardCharsets.ISO_8859_1));
 
-        if (split.size() != 0) {
-            this.body = split.get(0).getBytes(StandardCharsets.ISO_8859_1);
+        if (end >= 0) {
+            data.position(end + this.lastCRLF.length());
+            this.setReceivedBody(data.slice());
         }
     }
 
+    /**
+     * Sets the body of a received message, as a part of the buffer where it was received.
+     * @param slice the part of the buffer with the body
+     */
+    private void setReceivedBody(ByteBuffer slice) {
+        this.body = slice.asReadOnlyBuffer();
+        this.bodyInReceiveBuffer = true;
+    }
+
+    /**
+     * Finds the double CRLF that ends a text header.
+     * @param data buffer with received data
+     * @return the index of the double CRLF in the buffer, or -1 if there is none
+     */
+    private static int indexOfLastCRLF(ByteBuffer data) {
+        for (int i = data.position(); i + 3 < data.limit(); i++) {
+            if (data.get(i) == '\r' && data.get(i + 1) == '\n' && data.get(i + 2) == '\r' && data.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
 
     /**
      * Fills the Message class for sending PUTCHUNK messages.
@@ -57,8 +117,20 @@ public class Message implements Serializable {
      * @param chunkNo  the chunk number of the specified file
      */
     public Message(MessageType msgType, String fileId, int chunkNo, int replication, String ipAddress, int port, byte[] body) {
+        this(msgType, fileId, chunkNo, replication, ipAddress, port, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Fills the Message class for sending PUTCHUNK messages, with the body in a buffer (not copied).
+     *
+     * @param msgType  the type of message to be sent
+     * @param fileId   the file identifier in the backup service, as the result of SHA256
+     * @param chunkNo  the chunk number of the specified file
+     * @param body     buffer with the body, between its position and its limit
+     */
+    public Message(MessageType msgType, String fileId, int chunkNo, int replication, String ipAddress, int port, ByteBuffer body) {
         this.header = new Header(msgType, fileId, chunkNo, replication, ipAddress, port);
-        this.body = body;
+        this.body = body.asReadOnlyBuffer();
     }
 
     /**
@@ -68,9 +140,21 @@ public class Message implements Serializable {
      * @param fileId   the file identifier in the backup service, as the result of SHA256
      * @param chunkNo  the chunk number of the specified file
      */
-    public Message(MessageType msgType, String fileId, int chunkNo, String ipAddress, int port, int barrierId, byte[] body) {
+    public Message(MessageType msgType, String fileId, int chunkNo, String ipAddress, int port, ChordId barrierId, byte[] body) {
+        this(msgType, fileId, chunkNo, ipAddress, port, barrierId, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Fills the Message class for sending GIVECHUNK messages, with the body in a buffer (not copied).
+     *
+     * @param msgType  the type of message to be sent
+     * @param fileId   the file identifier in the backup service, as the result of SHA256
+     * @param chunkNo  the chunk number of the specified file
+     * @param body     buffer with the body, between its position and its limit
+     */
+    public Message(MessageType msgType, String fileId, int chunkNo, String ipAddress, int port, ChordId barrierId, ByteBuffer body) {
         this.header = new Header(msgType, fileId, chunkNo, ipAddress, port, barrierId);
-        this.body = body;
+        this.body = body.asReadOnlyBuffer();
     }
 
     /**
@@ -92,8 +176,20 @@ public class Message implements Serializable {
      * @param chunkNo  the chunk number of the specified file
      */
     public Message(MessageType msgType, String fileId, int chunkNo, byte[] body) {
+        this(msgType, fileId, chunkNo, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Fills the Message class for sending CHUNK messages, with the body in a buffer (not copied).
+     *
+     * @param msgType  the type of message to be sent
+     * @param fileId   the file identifier in the backup service, as the result of SHA256
+     * @param chunkNo  the chunk number of the specified file
+     * @param body     buffer with the body, between its position and its limit
+     */
+    public Message(MessageType msgType, String fileId, int chunkNo, ByteBuffer body) {
         this.header = new Header(msgType, fileId, chunkNo);
-        this.body = body;
+        this.body = body.asReadOnlyBuffer();
     }
 
     /**
@@ -137,19 +233,20 @@ public class Message implements Serializable {
     }
 
     /**
-     * Fills the Message class for message sending FIND_SUCC messages.
+     * Fills the Message class for message sending FIND_SUCC and FIND_NEXT messages.
      *
      * @param msgType  the type of message to be sent
      * @param key Chord key
+     * @param requestId Id of the lookup
      * @param ipAddress IP address
      * @param port Port number
      */
-    public Message(MessageType msgType, int key, String ipAddress, int port) {
-        this.header = new Header(msgType, key, ipAddress, port);
+    public Message(MessageType msgType, ChordId key, int requestId, String ipAddress, int port) {
+        this.header = new Header(msgType, key, requestId, ipAddress, port);
     }
 
     /**
-     *  Fills the Message class for message sending RTRN_PRED, GET_PRED, SET_SUCC, SET_PRED and NOTIFY messages.
+     *  Fills the Message class for message sending RTRN_PRED, GET_PRED, SET_SUCC, SET_PRED, NOTIFY, PING and PONG messages.
      *
      * @param msgType  the type of message to be sent
      * @param node Chord node to send
@@ -158,15 +255,74 @@ public class Message implements Serializable {
         this.header = new Header(msgType, node);
     }
 
+    /**
+     *  Fills the Message class for message sending RTRN_NEXT messages.
+     *
+     * @param msgType  the type of message to be sent
+     * @param key Chord key
+     * @param requestId Id of the lookup
+     * @param lookupDone True if the node sent is the successor of the key, false if the nodes are the ones to ask next
+     * @param nextNodes The successor of the key, or the nodes to ask next
+     */
+    public Message(MessageType msgType, ChordId key, int requestId, boolean lookupDone, List<ChordNode> nextNodes) {
+        this.header = new Header(msgType, key, requestId, lookupDone, nextNodes);
+    }
+
+    /**
+     *  Fills the Message class for message sending GET_RANGE messages.
+     *
+     * @param msgType  the type of message to be sent
+     * @param node Chord node that asks for the chunks (the end of the range)
+     * @param low start of the range (not included)
+     */
+    public Message(MessageType msgType, ChordNode node, ChordId low) {
+        this.header = new Header(msgType, node, low);
+    }
+
+    /**
+     *  Fills the Message class for message sending FIND_SUCC_BATCH messages.
+     *
+     * @param msgType  the type of message to be sent
+     * @param lookups Lookups to be done (request id -> key)
+     * @param ipAddress IP address of the node to be contacted after the successors are found
+     * @param port Port number of the node to be contacted after the successors are found
+     */
+    public Message(MessageType msgType, Map<Integer, ChordId> lookups, String ipAddress, int port) {
+        this.header = new Header(msgType, lookups, ipAddress, port);
+    }
+
+    /**
+     *  Fills the Message class for message sending RTRN_SUCC_BATCH messages.
+     *
+     * @param msgType  the type of message to be sent
+     * @param node Chord node that is the successor of the keys
+     * @param lookups Lookups answered (request id -> key)
+     */
+    public Message(MessageType msgType, ChordNode node, Map<Integer, ChordId> lookups) {
+        this.header = new Header(msgType, node, lookups);
+    }
+
+    /**
+     *  Fills the Message class for message sending RTRN_PRED messages, with the successor list of the sender.
+     *
+     * @param msgType  the type of message to be sent
+     * @param node Chord node to send
+     * @param successors successor list of the sender, starting with the sender itself
+     */
+    public Message(MessageType msgType, ChordNode node, List<ChordNode> successors) {
+        this.header = new Header(msgType, node, successors);
+    }
+
     /**
      *  Fills the Message class for message sending RTRN_SUCC messages.
      *
      * @param msgType  the type of message to be sent
      * @param node Chord node to send
      * @param keyHash key that we wanted
+     * @param requestId Id of the lookup
      */
-    public Message(MessageType msgType, ChordNode node, int keyHash) {
-        this.header = new Header(msgType, node, keyHash);
+    public Message(MessageType msgType, ChordNode node, ChordId keyHash, int requestId) {
+        this.header = new Header(msgType, node, keyHash, requestId);
     }
 
     /**
@@ -175,11 +331,39 @@ public class Message implements Serializable {
      * @return byte array of the converted message
      */
     public byte[] convertToBytes() throws IOException {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        stream.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
-        stream.write(crlf.getBytes(StandardCharsets.ISO_8859_1));
-        stream.write(body);
-        return stream.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(this.encodedSize());
+        this.writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Retrieves the number of bytes of the full message, as written by writeTo().
+     *
+     * @return size of the message, in bytes
+     */
+    public int encodedSize() {
+        int bodyLength = body.remaining();
+        if (binaryHeaders)
+            return header.binarySize(bodyLength) + bodyLength;
+        return this.textHeader().length + bodyLength;
+    }
+
+    /**
+     * Writes the full message to a buffer (for example, the frame being sent), without copying the body anywhere else.
+     *
+     * @param buffer buffer where the message is written; must have encodedSize() bytes remaining
+     */
+    public void writeTo(ByteBuffer buffer) {
+        int bodyLength = body.remaining();
+        if (binaryHeaders)
+            header.encode(buffer, bodyLength);
+        else
+            buffer.put(this.textHeader());
+        buffer.put(body.duplicate());
+    }
+
+    private byte[] textHeader() {
+        return (header.toString() + crlf).getBytes(StandardCharsets.ISO_8859_1);
     }
 
     /**
@@ -193,16 +377,77 @@ public class Message implements Serializable {
 
 
     /**
-     * Retrieves the body of the message (if any).
+     * Retrieves a copy of the body of the message (if any), that can be kept after the message is processed.
      *
      * @return body of the message
      */
     public byte[] getBody() {
-        return body;
+        byte[] bytes = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Retrieves the body of the message (if any), without copying it. For a received message, it is only
+     * valid while the message is being processed.
+     *
+     * @return read-only buffer with the body of the message
+     */
+    public ByteBuffer getBodyBuffer() {
+        return body.duplicate();
+    }
+
+    /**
+     * Makes the message own its body, copying it if it is still in the buffer where the message was received.
+     * Must be called before keeping a received message after it is processed (for example, to forward it).
+     */
+    public void detachBody() {
+        if (!bodyInReceiveBuffer)
+            return;
+
+        ByteBuffer copy = ByteBuffer.allocate(body.remaining());
+        copy.put(body.duplicate());
+        copy.flip();
+        this.body = copy.asReadOnlyBuffer();
+        this.bodyInReceiveBuffer = false;
     }
 
+    /**
+     * Writes the message (when a table that keeps messages is saved), with the body as a byte array.
+     * @param out stream to write to
+     * @throws IOException when the message cannot be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(this.getBody());
+    }
+
+    /**
+     * Reads a message written by writeObject; the body belongs to the message.
+     * @param in stream to read from
+     * @throws IOException when the message cannot be read
+     * @throws ClassNotFoundException when a class of the message is not found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.body = ByteBuffer.wrap((byte[]) in.readObject()).asReadOnlyBuffer();
+        this.bodyInReceiveBuffer = false;
+    }
 
-    public void setSenderId(int senderId) {
+
+    public void setSenderId(ChordId senderId) {
         this.header.setSenderId(senderId);
     }
+
+    public void setReceiverId(ChordId receiverId) {
+        this.header.setReceiverId(receiverId);
+    }
+
+    /**
+     * Sets the format of the headers of the messages sent.
+     * @param binaryHeaders true to send binary headers, false to send text headers
+     */
+    public static void setBinaryHeaders(boolean binaryHeaders) {
+        Message.binaryHeaders = binaryHeaders;
+    }
 }
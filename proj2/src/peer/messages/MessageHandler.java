@@ -1,5 +1,6 @@
 package peer.messages;
 
+import peer.chord.ChordRingInfo;
 import peer.protocols.Protocol;
 
 import java.nio.ByteBuffer;
@@ -7,7 +8,6 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
-import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -27,14 +27,12 @@ public class MessageHandler {
 
     /**
      * Method that processes a given received message, calling the correct protocol method based on the type of the message.
-     * @param buffer containing the message received
+     * @param buffer containing the message received, between its position and its limit
      */
     public void process(ByteBuffer buffer) {
-        byte[] data = Arrays.copyOfRange(buffer.array(), 0, buffer.position());
-
         Message message;
         try {
-            message = new Message(data);
+            message = new Message(buffer);
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Message not recognized: ignoring...");
@@ -45,6 +43,9 @@ public class MessageHandler {
 
         Header header = message.getHeader();
 
+        // Chord messages are handled by the virtual node they are for
+        ChordRingInfo chord = this.protocol.getChord(header.getReceiverId());
+
         // Dispatch message to the protocol's method
         switch (header.getMessageType()) {
             case PUTCHUNK:
@@ -69,28 +70,49 @@ public class MessageHandler {
             case DELETED:
                 this.protocol.receiveDeleted(message);
                 break;
+            case GET_RANGE:
+                this.protocol.sendRange(message);
+                break;
 
                 // --- Chord messages ---
             case FIND_SUCC:
-                this.protocol.getChord().handleFindSuccessor(header.getKey(), header.getIpAddress(), header.getPort());
+                chord.handleFindSuccessor(header.getKey(), header.getRequestId(), header.getIpAddress(), header.getPort());
+                break;
+            case FIND_NEXT:
+                chord.handleFindNext(header.getKey(), header.getRequestId(), header.getIpAddress(), header.getPort());
+                break;
+            case RTRN_NEXT:
+                this.protocol.getChordForLookup(header.getRequestId()).handleReturnNext(header.getSenderId(), header.getKey(), header.getRequestId(), header.isLookupDone(), header.getNextNodes());
                 break;
             case RTRN_SUCC:
-                this.protocol.getTaskManager().completeTasks(header.getKey(), header.getNode());
+                this.protocol.getTaskManager().completeTask(header.getRequestId(), header.getKey(), header.getNode());
+                break;
+            case FIND_SUCC_BATCH:
+                chord.handleFindSuccessorBatch(header.getLookups(), header.getIpAddress(), header.getPort());
+                break;
+            case RTRN_SUCC_BATCH:
+                chord.handleReturnSuccessorBatch(header.getNode(), header.getLookups());
                 break;
             case GET_PRED:
-                this.protocol.getChord().handleGetPred(header.getNode());
+                chord.handleGetPred(header.getNode());
                 break;
             case RTRN_PRED:
-                this.protocol.getChord().handleSetSuccessor(header.getNode());
+                chord.handleReturnPredecessor(header.getNode(), header.getSuccessors());
                 break;
             case NOTIFY:
-                this.protocol.getChord().handleNotify(header.getNode());
+                chord.handleNotify(header.getNode());
                 break;
             case SET_PRED:
-                this.protocol.getChord().setPredecessor(header.getNode());
+                chord.setPredecessor(header.getNode());
                 break;
             case SET_SUCC:
-                this.protocol.getChord().setSuccessor(header.getNode());
+                chord.setSuccessor(header.getNode());
+                break;
+            case PING:
+                chord.handlePing(header.getNode());
+                break;
+            case PONG:
+                chord.handlePong(header.getNode());
                 break;
             default:
                 break;
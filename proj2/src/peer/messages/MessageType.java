@@ -19,5 +19,12 @@ public enum MessageType {
     RTRN_PRED, // Returns its predecessor to the node that asked for it (used in stabilize)
     NOTIFY, // Notify our successor that we might be their predecessor (used in stabilize/notify),
     SET_PRED, // Demands the successor to set a new predecessor
-    SET_SUCC // Demands the predecessor to set a new successor
+    SET_SUCC, // Demands the predecessor to set a new successor
+    FIND_NEXT, // Asks a node for the successor of a key, or the nodes to ask next (iterative lookups)
+    RTRN_NEXT, // Returns the successor of a key, or the nodes to ask next (iterative lookups)
+    FIND_SUCC_BATCH, // Find the successors of many keys at once (each with its own request id)
+    RTRN_SUCC_BATCH, // Returns the keys of a FIND_SUCC_BATCH that a node is in charge of
+    GET_RANGE, // Asks a node for the chunks of a range of keys (sent by a node that joined the ring)
+    PING, // Asks a node to answer right away, to measure the round-trip time to it
+    PONG // Answer to a PING
 }
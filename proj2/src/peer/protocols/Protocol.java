@@ -1,14 +1,17 @@
 package peer.protocols;
 
 import peer.*;
+import peer.chord.ChordId;
 import peer.chord.ChordNode;
 import peer.chord.ChordRingInfo;
 import peer.chord.ChordUtils;
 import peer.jsse.ReceiverThread;
 import peer.jsse.SenderThread;
+import peer.jsse.error.OnError;
 import peer.messages.Header;
 import peer.messages.Message;
 import peer.messages.MessageType;
+import peer.task.Task;
 import peer.task.TaskManager;
 
 import java.io.IOException;
@@ -16,10 +19,12 @@ import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
@@ -32,27 +37,48 @@ public class Protocol {
     protected final int CHUNK_SIZE = 64000;             /** chunk size constant */
     protected ChunkManager chunkManager;                /** chunk manager instance */
     protected FileManager fileManager;                  /** file manager instance */
-    protected int peerID;                               /** the peer identifier */
-    protected ChordRingInfo chordRingInfo;              /** Chord information about other nodes */
+    protected ChordId peerID;                           /** the peer identifier */
+    protected ChordRingInfo chordRingInfo;              /** Chord information about other nodes (of the virtual node with the peer identifier) */
+    protected List<ChordRingInfo> virtualNodes;         /** Chord information of each virtual node of the peer, starting with chordRingInfo */
     protected TaskManager taskManager;                  /** task manager responsible for delayed operations */
+    protected static final int VIRTUAL_NODES = Math.max(1, Integer.getInteger("peer.chord.vnodes", 1));  /** virtual nodes of a peer with the default storage (-Dpeer.chord.vnodes) */
+    protected static final int MAX_VIRTUAL_NODES = 64;  /** maximum number of virtual nodes of a peer */
+    protected static final long HANDOFF_TIMEOUT = 120000;  /** time (in milliseconds) a leaving peer waits for its chunks to be handed off */
 
 
     public Protocol(String ipAddress, int portMC, int portMDB, int portMDR, int portChord) {
-        this.peerID = ChordRingInfo.generateHash(ipAddress + "_" + portMC + "_" + portMDB + "_" + portMDR + "_" + portChord);
+        String address = ipAddress + "_" + portMC + "_" + portMDB + "_" + portMDR + "_" + portChord;
+        this.peerID = ChordRingInfo.generateHash(address);
         System.out.println("Generated peer ID -> " + peerID);
 
         this.taskManager = new TaskManager();
-        this.chordRingInfo = new ChordRingInfo(ipAddress, portMC, portMDB, portMDR, portChord, peerID, taskManager);
         this.fileManager = new FileManager(this.peerID);
         this.chunkManager = new ChunkManager(this.peerID);
         this.executor = new ScheduledThreadPoolExecutor(numberOfThreads);
+
+        // the peer owns several ranges of keys, as many as its storage is worth, so that the chunks are spread
+        // according to the storage of each peer; the first virtual node has the peer identifier
+        this.chordRingInfo = new ChordRingInfo(ipAddress, portMC, portMDB, portMDR, portChord, peerID, taskManager);
+        this.virtualNodes = new ArrayList<>();
+        this.virtualNodes.add(this.chordRingInfo);
+
+        int numVirtualNodes = Math.max(1, Math.min(MAX_VIRTUAL_NODES,
+                Math.round((float) VIRTUAL_NODES * this.fileManager.getMaximumStorageSpace() / FileManager.DEFAULT_STORAGE_SPACE)));
+        for (int i = 1; i < numVirtualNodes; i++) {
+            ChordId virtualId = ChordRingInfo.generateHash(address + "#" + i);
+            System.out.println("Generated virtual node ID -> " + virtualId);
+            this.virtualNodes.add(new ChordRingInfo(ipAddress, portMC, portMDB, portMDR, portChord, virtualId, taskManager));
+        }
+
+        for (ChordRingInfo ring : this.virtualNodes)
+            ring.setRangeListener(this::pullRange);
     }
 
     /**
      * Get method for the peer identifier.
      * @return identifier of the peer
      */
-    public int getPeerID() {
+    public ChordId getPeerID() {
         return this.peerID;
     }
 
@@ -60,6 +86,96 @@ public class Protocol {
         return chordRingInfo;
     }
 
+    /**
+     * Retrieves the virtual node a message is for.
+     * @param receiverId id of the virtual node (may be null)
+     * @return the virtual node with that id, or the first one if the id is null or not of this peer
+     */
+    public ChordRingInfo getChord(ChordId receiverId) {
+        ChordRingInfo ring = receiverId == null ? null : this.getVirtualNode(receiverId);
+        return ring == null ? this.chordRingInfo : ring;
+    }
+
+    /**
+     * Retrieves the virtual node that started an iterative lookup.
+     * @param requestId request id of the lookup
+     * @return the virtual node running the lookup, or the first one if none is
+     */
+    public ChordRingInfo getChordForLookup(int requestId) {
+        for (ChordRingInfo ring : this.virtualNodes) {
+            if (ring.hasIterativeLookup(requestId))
+                return ring;
+        }
+        return this.chordRingInfo;
+    }
+
+    /**
+     * Retrieves the virtual node of this peer with a certain id.
+     * @param id id of the node
+     * @return the virtual node, or null if the id is not of a node of this peer
+     */
+    private ChordRingInfo getVirtualNode(ChordId id) {
+        for (ChordRingInfo ring : this.virtualNodes) {
+            if (ring.getNodeInfo().getId().equals(id))
+                return ring;
+        }
+        return null;
+    }
+
+    public List<ChordRingInfo> getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * Makes the virtual nodes of the peer create or join the Chord ring. When a new ring is created by the first
+     * one, the others join it through the first one.
+     * @param initIpAddress IP address of the node to contact in order to join the Chord ring (null to create one)
+     * @param initPort Port number of the node to contact in order to join the Chord ring
+     */
+    public void joinRing(String initIpAddress, int initPort) {
+        this.chordRingInfo.createOrJoin(initIpAddress, initPort);
+
+        ChordNode nodeInfo = this.chordRingInfo.getNodeInfo();
+        for (ChordRingInfo ring : this.virtualNodes.subList(1, this.virtualNodes.size())) {
+            if (initIpAddress != null && initPort != -1)
+                ring.createOrJoin(initIpAddress, initPort);
+            else
+                ring.createOrJoin(nodeInfo.getIpAddress(), nodeInfo.getPortChord());
+        }
+    }
+
+    /**
+     * Skips the virtual nodes of this peer: if a node is one of them, its successors are followed until a node
+     * of another peer is found.
+     * @param node the node
+     * @return the first node of another peer, or null if there is none
+     */
+    private ChordNode remoteNode(ChordNode node) {
+        for (int i = 0; node != null && i <= this.virtualNodes.size(); i++) {
+            ChordRingInfo ring = this.getVirtualNode(node.getId());
+            if (ring == null)
+                return node;
+            node = ring.getSuccessor();
+        }
+        return null;
+    }
+
+    /**
+     * Skips the virtual nodes of this peer backwards: if a node is one of them, its predecessors are followed
+     * until a node of another peer is found.
+     * @param node the node
+     * @return the first node of another peer, or null if there is none (or a predecessor is not known)
+     */
+    private ChordNode remotePredecessor(ChordNode node) {
+        for (int i = 0; node != null && i <= this.virtualNodes.size(); i++) {
+            ChordRingInfo ring = this.getVirtualNode(node.getId());
+            if (ring == null)
+                return node;
+            node = ring.getPredecessor();
+        }
+        return null;
+    }
+
     public TaskManager getTaskManager() {
         return taskManager;
     }
@@ -84,14 +200,60 @@ public class Protocol {
     }
 
 
+    /**
+     * Looks up the nodes responsible for all the chunks of a file in batches, before the chunks are sent, so that
+     * initiateBackup() finds them in the location cache instead of doing one lookup per chunk.
+     * @param encodedFileId encoded ID of the file
+     * @param numChunks number of chunks of the file
+     * @return future completed when the lookup of every chunk is answered or dropped
+     */
+    public CompletableFuture<Void> findChunkLocations(String encodedFileId, int numChunks) {
+        CompletableFuture<Void> found = new CompletableFuture<>();
+        Map<ChordId, Task> lookups = new HashMap<>();
+        AtomicInteger missing = new AtomicInteger();
+
+        // a dropped lookup also counts, so that the future always completes (that chunk is looked up again on its own)
+        Runnable lookupDone = () -> {
+            if (missing.decrementAndGet() == 0)
+                found.complete(null);
+        };
+        Task countDown = new Task() {
+            @Override
+            public void complete(ChordNode chordNode) {
+                lookupDone.run();
+            }
+
+            @Override
+            public void dropped() {
+                lookupDone.run();
+            }
+        };
+
+        for (int chunkNo = 0; chunkNo < numChunks; chunkNo++) {
+            ChordId nodeId = ChordRingInfo.generateHash(encodedFileId + chunkNo);
+            if (lookups.putIfAbsent(nodeId, countDown) == null)
+                missing.incrementAndGet();
+        }
+
+        if (lookups.isEmpty())
+            found.complete(null);
+        else
+            this.chordRingInfo.startFindSuccessors(lookups);
+        return found;
+    }
+
     /**
      * Method to be called by the initiator peer when a backup operation is to be done.
      * @param encodedFileId encoded ID of the file
      * @param chunkNo chunk number
-     * @param fileContent content of the file/chunk to be backed up
+     * @param fileContent content of the file/chunk to be backed up (not copied; it must not change until the
+     *                    returned future is completed)
      * @param replicationDeg desired replication degree for the chunk
+     * @return future completed when the chunk is sent to the peer that will store it (or no peer needs it), or
+     * completed exceptionally when it is not going to be sent
      */
-    public void initiateBackup(String encodedFileId, int chunkNo, byte[] fileContent, int replicationDeg) {
+    public CompletableFuture<Void> initiateBackup(String encodedFileId, int chunkNo, ByteBuffer fileContent, int replicationDeg) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
         this.fileManager.setMaxChunkNo(encodedFileId, chunkNo);
 
         int replication = replicationDeg - this.chunkManager.getPerceivedReplication(encodedFileId, chunkNo);
@@ -100,34 +262,48 @@ public class Protocol {
 
 
         if(replication <= 0){
-            return;
+            sent.complete(null);
+            return sent;
         }
 
-        int nodeId = ChordRingInfo.generateHash(encodedFileId + chunkNo);
+        ChordId nodeId = ChordRingInfo.generateHash(encodedFileId + chunkNo);
         System.out.println("ID for chunk " + encodedFileId + "_" + chunkNo + " -> " + nodeId);
 
-        this.chordRingInfo.startFindSuccessor(nodeId,
-                (chordNode) -> {
-
-                    if (chordNode.getId() == this.peerID) {
-                        chordNode = this.chordRingInfo.getSuccessor();
+        this.chordRingInfo.startFindSuccessor(nodeId, new Task() {
+            @Override
+            public void complete(ChordNode chordNode) {
+                // the chunk is not stored by this peer, even if one of its virtual nodes is responsible for it
+                ChordNode target = remoteNode(chordNode);
+                if (target == null) {
+                    sent.complete(null);
+                    return;
+                }
 
-                        if (chordNode.getId() == this.peerID) {
-                            return;
-                        }
+                backupChunk(
+                        chordRingInfo.getNodeInfo().getIpAddress(),
+                        chordRingInfo.getNodeInfo().getPortMC(),
+                        target,
+                        encodedFileId,
+                        chunkNo,
+                        fileContent,
+                        replication
+                ).whenComplete((result, error) -> {
+                    if (error == null)
+                        sent.complete(null);
+                    else {
+                        chordRingInfo.invalidateLocation(target);
+                        sent.completeExceptionally(error);
                     }
+                });
+            }
 
-                    this.backupChunk(
-                            chordRingInfo.getNodeInfo().getIpAddress(),
-                            chordRingInfo.getNodeInfo().getPortMC(),
-                            chordNode,
-                            encodedFileId,
-                            chunkNo,
-                            fileContent,
-                            replication
-                    );
-                }
-        );
+            @Override
+            public void dropped() {
+                sent.completeExceptionally(new TimeoutException("Lookup of the node of chunk " + chunkNo + " was dropped"));
+            }
+        });
+
+        return sent;
     }
 
     /**
@@ -135,8 +311,9 @@ public class Protocol {
      * @param fileId identifier of the file
      * @param chunkNo chunk number
      * @param fileContent content of the file/chunk to be backed up
+     * @return future completed when the PUTCHUNK message is sent
      */
-    protected void backupChunk(String ipAddress, int port, ChordNode node, String fileId, int chunkNo, byte[] fileContent, int replicationDeg) {
+    protected CompletableFuture<Void> backupChunk(String ipAddress, int port, ChordNode node, String fileId, int chunkNo, ByteBuffer fileContent, int replicationDeg) {
         Message msg = new Message(
                 MessageType.PUTCHUNK,
                 fileId,
@@ -146,14 +323,13 @@ public class Protocol {
                 port,
                 fileContent
         );
+        msg.setReceiverId(node.getId());
 
-        SenderThread.sendMessage(
+        return SenderThread.send(
                 node.getIpAddress(),
                 node.getPortMDB(),
-                msg,
-                null
+                msg
         );
-
     }
 
     /**
@@ -189,11 +365,12 @@ public class Protocol {
         int chunkNo = header.getChunkNo();
         String ipAddress = header.getIpAddress();
         int port = header.getPort();
-        byte[] body = message.getBody();
+        ByteBuffer body = message.getBodyBuffer();
         int replication = header.getReplication();
+        ChordRingInfo ring = this.getChord(header.getReceiverId());
 
         if (this.fileManager.amFileOwner(fileId) || this.fileManager.isChunkStored(fileId, chunkNo)) {
-            this.redirectBackup(message, replication);
+            this.redirectBackup(ring, message, replication);
             return;
         }
 
@@ -217,7 +394,7 @@ public class Protocol {
                                 ),
                                 null
                         );
-                        this.redirectBackup(message, replication - 1);
+                        this.redirectBackup(ring, message, replication - 1);
                         return;
                     }
             }
@@ -243,7 +420,7 @@ public class Protocol {
         }
 
         // Couldn't backup the chunk
-        this.redirectBackup(message, replication);
+        this.redirectBackup(ring, message, replication);
     }
 
     /**
@@ -298,7 +475,7 @@ public class Protocol {
         if (this.fileManager.isChunkStored(fileId, chunkNo)) {
 
             try {
-                byte[] chunkContent = this.retrieveChunk(fileId, chunkNo);
+                ByteBuffer chunkContent = this.retrieveChunk(fileId, chunkNo);
 
                 // send message with chunk
                 SenderThread.sendMessage(
@@ -315,51 +492,60 @@ public class Protocol {
             } catch (IOException e) {
                 System.err.println("Error getting the chunk");
                 e.printStackTrace();
-            } catch (InterruptedException | ExecutionException e) {
-                System.err.println("Error retrieving chunk from files");
-                e.printStackTrace();
             }
 
 
         } else {
-            this.redirectRestore(message);
+            this.redirectRestore(this.getChord(header.getReceiverId()), message);
         }
     }
 
     /**
      * Redirects the message given to the successor in the chord ring
+     * @param ring the virtual node that received the message
      * @param message the message to be redirected
      */
-    private void redirectRestore(Message message){
+    private void redirectRestore(ChordRingInfo ring, Message message){
         String fileId = message.getHeader().getFileId();
         int chunkNo = message.getHeader().getChunkNo();
-        ChordNode node = this.chordRingInfo.getSuccessor();
-        if(this.canPropagate(node, fileId, chunkNo))
+        ChordNode node = ring.getSuccessor();
+        if(this.canPropagate(ring, node, fileId, chunkNo)) {
+            message.setReceiverId(node.getId());
             SenderThread.sendMessage(
                     node.getIpAddress(),
                     node.getPortMDR(),
                     message,
-                    null
+                    this.retryWithNextSuccessor(ring, node, () -> this.redirectRestore(ring, message))
             );
+        }
+    }
+
+    /**
+     * Creates the callback for a message that could not be sent to the successor: the successor is
+     * forgotten and, if there is another one in the successor list, the message is sent again.
+     * @param ring the virtual node whose successor failed
+     * @param failed the successor the message was sent to
+     * @param retry sends the message again, to the new successor
+     * @return the callback
+     */
+    private OnError retryWithNextSuccessor(ChordRingInfo ring, ChordNode failed, Runnable retry) {
+        return () -> {
+            ring.handleNodeFailure(failed);
+            ChordNode successor = ring.getSuccessor();
+            if (successor != null && !successor.equals(failed) && !successor.equals(ring.getNodeInfo()))
+                retry.run();
+        };
     }
 
     /**
      * Method to retrieve a chunk from storage
      * @param fileId id of the file
      * @param chunkNo chunk number of the file to retrieve
-     * @return the chunk content
-     * @throws IOException when
+     * @return the chunk content, as a read-only part of the mapped file it is in
+     * @throws IOException when the chunk cannot be read
      */
-    private byte[] retrieveChunk(String fileId, int chunkNo) throws IOException, InterruptedException, ExecutionException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(CHUNK_SIZE);
-        Future<Integer> future;
-
-        future = this.fileManager.getChunk(byteBuffer, fileId, chunkNo);
-
-        int chunkSize = future.get();
-        byteBuffer.flip();
-
-        return Arrays.copyOfRange(byteBuffer.array(), 0, chunkSize);
+    private ByteBuffer retrieveChunk(String fileId, int chunkNo) throws IOException {
+        return this.fileManager.getChunk(fileId, chunkNo);
     }
 
     /**
@@ -387,7 +573,8 @@ public class Protocol {
         // create new file restorer
         this.chunkManager.createFileRestorer(filename, fileId, maxNumChunks);
 
-        // send a GETCHUNK for each chunk of the file
+        // send a GETCHUNK for each chunk of the file, looking up the nodes that stored them in batches
+        Map<ChordId, Task> lookups = new HashMap<>();
         for (int chunkNo = 0; chunkNo <= maxNumChunks; chunkNo++) {
             Message message = new Message(
                     MessageType.GETCHUNK,
@@ -397,8 +584,25 @@ public class Protocol {
                     this.chordRingInfo.getNodeInfo().getPortMDR()
             );
 
-            sendRestore(message, 0);
+            // the storers are tried from the one with the lowest round-trip time
+            ChordId id = this.chunkManager.getFileStorer(fileId, chunkNo, 0, ChordRingInfo.getLatencies().byLatency());
+            if (id != null)
+                lookups.merge(id, (chordNode) -> sendRestore(chordNode, message, 1), Protocol::bothTasks);
         }
+        this.chordRingInfo.startFindSuccessors(lookups);
+    }
+
+    /**
+     * Combines the tasks of two lookups for the same key.
+     * @param first task of one lookup
+     * @param second task of the other lookup
+     * @return task that completes both
+     */
+    private static Task bothTasks(Task first, Task second) {
+        return (chordNode) -> {
+            first.complete(chordNode);
+            second.complete(chordNode);
+        };
     }
 
     /**
@@ -407,8 +611,8 @@ public class Protocol {
      * @param storedIndex the index of the node that stored the chunk in the replication table
      */
     private void sendRestore(Message message, int storedIndex){
-        int id = this.chunkManager.getFileStorer(message.getHeader().getFileId(), message.getHeader().getChunkNo(), storedIndex);
-        if(id == -1) {
+        ChordId id = this.chunkManager.getFileStorer(message.getHeader().getFileId(), message.getHeader().getChunkNo(), storedIndex, ChordRingInfo.getLatencies().byLatency());
+        if(id == null) {
             return;
         }
 
@@ -416,12 +620,27 @@ public class Protocol {
 
         this.chordRingInfo.startFindSuccessor(
             id,
-            (chordNode) -> SenderThread.sendMessage(
-                    chordNode.getIpAddress(),
-                    chordNode.getPortMC(),
-                    message,
-                    () -> sendRestore(message, nextIndex)
-            ));
+            (chordNode) -> sendRestore(chordNode, message, nextIndex));
+    }
+
+    /**
+     * Sends the restore message to the node responsible for one of the peers that stored the chunk; if it fails,
+     * the next peer that stored the chunk is tried.
+     * @param chordNode the node to send the message to
+     * @param message the message to be sent
+     * @param nextIndex the index of the next node that stored the chunk in the replication table
+     */
+    private void sendRestore(ChordNode chordNode, Message message, int nextIndex) {
+        message.setReceiverId(chordNode.getId());
+        SenderThread.sendMessage(
+                chordNode.getIpAddress(),
+                chordNode.getPortMC(),
+                message,
+                () -> {
+                    this.chordRingInfo.invalidateLocation(chordNode);
+                    sendRestore(message, nextIndex);
+                }
+        );
     }
 
     /**
@@ -443,23 +662,28 @@ public class Protocol {
                 chordRingInfo.getNodeInfo().getPortMC()
         );
 
-        ArrayList<Integer> storers = this.chunkManager.getFileStorers(fileId, this.fileManager.getMaxChunkNo(fileId), this.peerID);
+        ArrayList<ChordId> storers = this.chunkManager.getFileStorers(fileId, this.fileManager.getMaxChunkNo(fileId), this.peerID);
 
-        for(Integer storer : storers){
-            int localStorer = storer;
-            this.chordRingInfo.startFindSuccessor(
+        Map<ChordId, Task> lookups = new HashMap<>();
+        for(ChordId storer : storers){
+            ChordId localStorer = storer;
+            lookups.put(
                     localStorer,
                     (chordNode) -> {
-                        if(chordNode.getId() == localStorer)
+                        if(chordNode.getId().equals(localStorer))
                             SenderThread.sendMessage(
                                     chordNode.getIpAddress(),
                                     chordNode.getPortMC(),
                                     msg,
-                                    () -> this.chunkManager.addToFileDeleter(localStorer, msg)
+                                    () -> {
+                                        this.chordRingInfo.invalidateLocation(chordNode);
+                                        this.chunkManager.addToFileDeleter(localStorer, msg);
+                                    }
                             );
                     }
             );
         }
+        this.chordRingInfo.startFindSuccessors(lookups);
 
         for (int i = 0; i <= this.fileManager.getMaxChunkNo(fileId); i++) {
             this.chunkManager.deletePerceivedReplication(fileId, i);
@@ -554,16 +778,18 @@ public class Protocol {
                 if (parentRecord == null)
                     continue;
 
-                byte[] chunkContent = this.retrieveChunk(fileId, chunkNo);
+                ByteBuffer chunkContent = this.retrieveChunk(fileId, chunkNo);
 
+                Message giveChunk = new Message(MessageType.GIVECHUNK, fileId, chunkNo, parentRecord.getIpAddress(), parentRecord.getPort(), this.peerID, chunkContent);
+                giveChunk.setReceiverId(successor.getId());
                 SenderThread.sendMessage(
                         successor.getIpAddress(),
                         successor.getPortMDB(),
-                        new Message(MessageType.GIVECHUNK, fileId, chunkNo, parentRecord.getIpAddress(), parentRecord.getPort(), this.peerID, chunkContent),
+                        giveChunk,
                         null
                 );
                 this.removeChunk(fileId, chunkNo);
-            } catch (IOException | InterruptedException | ExecutionException e) {
+            } catch (IOException e) {
                 System.err.println("Failed to remove chunk ");
                 e.printStackTrace();
             }
@@ -571,6 +797,130 @@ public class Protocol {
         }
     }
 
+    /**
+     * Method called when a virtual node of this peer joined the ring and learned its predecessor: asks the
+     * successor for the chunks of the keys the node took over (GET_RANGE).
+     * @param ring the virtual node that joined
+     * @param low id of its predecessor (start of the range, not included)
+     * @param holder successor of the node, which holds the chunks
+     */
+    private void pullRange(ChordRingInfo ring, ChordId low, ChordNode holder) {
+        // the chunks stored by this peer are already here
+        if (this.getVirtualNode(holder.getId()) != null)
+            return;
+
+        ChordNode nodeInfo = ring.getNodeInfo();
+        System.out.println("Asking " + holder.getId() + " for the chunks of the keys (" + low + ", " + nodeInfo.getId() + "]");
+        Message message = new Message(MessageType.GET_RANGE, nodeInfo, low);
+        message.setReceiverId(holder.getId());
+        SenderThread.sendMessage(holder.getIpAddress(), holder.getPortMC(), message, null);
+    }
+
+    /**
+     * Method to be called when a GET_RANGE message is received: sends the chunks stored by this peer whose keys
+     * were taken over by the node that asked for them. This peer keeps its copies, as one more replica.
+     * @param message message received (GET_RANGE)
+     */
+    public void sendRange(Message message) {
+        Header header = message.getHeader();
+        ChordNode node = header.getNode();
+        ChordId low = header.getKey();
+        // if the node cannot store a chunk, it passes it on until it comes back to the node that sent it
+        ChordId barrierId = this.getChord(header.getReceiverId()).getNodeInfo().getId();
+
+        List<String> chunks = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentSkipListSet<Integer>> entry : this.fileManager.getFileToChunksEntries()) {
+            for (int chunkNo : entry.getValue()) {
+                ChordId key = ChordRingInfo.generateHash(entry.getKey() + chunkNo);
+                if (ChordUtils.isBetweenInc(low, node.getId(), key))
+                    chunks.add(entry.getKey() + "_" + chunkNo);
+            }
+        }
+
+        if (chunks.isEmpty())
+            return;
+
+        executor.execute(new RangeTransfer("to joining node " + node.getId(), chunks,
+                (fileId, chunkNo) -> this.giveChunk(node, fileId, chunkNo, barrierId), null));
+    }
+
+    /**
+     * Hands off every chunk stored by this peer before it leaves the ring. Each chunk goes to the first node of
+     * another peer after the virtual node the chunk was stored through, and is removed once it is sent.
+     * Waits up to HANDOFF_TIMEOUT for the transfers to finish.
+     */
+    private void handOffChunks() {
+        Map<ChordNode, List<String>> chunksByNode = new HashMap<>();
+        for (Map.Entry<String, ConcurrentSkipListSet<Integer>> entry : this.fileManager.getFileToChunksEntries()) {
+            for (int chunkNo : entry.getValue()) {
+                ChordId key = ChordRingInfo.generateHash(entry.getKey() + chunkNo);
+                ChordNode node = this.remoteNode(this.virtualNodeFor(key).getSuccessor());
+                if (node != null)
+                    chunksByNode.computeIfAbsent(node, n -> new ArrayList<>()).add(entry.getKey() + "_" + chunkNo);
+            }
+        }
+
+        List<CompletableFuture<Void>> transfers = new ArrayList<>();
+        for (Map.Entry<ChordNode, List<String>> entry : chunksByNode.entrySet()) {
+            ChordNode node = entry.getKey();
+            RangeTransfer transfer = new RangeTransfer("to successor " + node.getId(), entry.getValue(),
+                    (fileId, chunkNo) -> this.giveChunk(node, fileId, chunkNo, this.peerID),
+                    (fileId, chunkNo) -> {
+                        try {
+                            this.removeChunk(fileId, chunkNo);
+                        } catch (IOException e) {
+                            System.err.println("Failed to remove chunk " + chunkNo + " of " + fileId);
+                            e.printStackTrace();
+                        }
+                    });
+            transfers.add(transfer.getDone());
+            executor.execute(transfer);
+        }
+
+        try {
+            CompletableFuture.allOf(transfers.toArray(new CompletableFuture<?>[0])).get(HANDOFF_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            System.err.println("Not every chunk could be handed off");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a stored chunk to a node (GIVECHUNK), which stores it or passes it on to its successors.
+     * @param node the node
+     * @param fileId id of the file
+     * @param chunkNo chunk number
+     * @param barrierId id of the node at which the chunk stops being passed on
+     * @return future completed with the size of the chunk once it is sent
+     * @throws IOException when the chunk cannot be read or the owner of the file is unknown
+     */
+    private CompletableFuture<Integer> giveChunk(ChordNode node, String fileId, int chunkNo, ChordId barrierId) throws IOException {
+        AddressRecord parentRecord = this.fileManager.getFileOwner(fileId);
+        if (parentRecord == null)
+            throw new IOException("Unknown owner of " + fileId);
+
+        ByteBuffer chunkContent = this.retrieveChunk(fileId, chunkNo);
+        Message giveChunk = new Message(MessageType.GIVECHUNK, fileId, chunkNo, parentRecord.getIpAddress(), parentRecord.getPort(), barrierId, chunkContent);
+        giveChunk.setReceiverId(node.getId());
+        return SenderThread.send(node.getIpAddress(), node.getPortMDB(), giveChunk).thenApply(v -> chunkContent.remaining());
+    }
+
+    /**
+     * Retrieves the virtual node of this peer that a key is closest to: the first one at or after the key.
+     * @param key the key
+     * @return the virtual node
+     */
+    private ChordRingInfo virtualNodeFor(ChordId key) {
+        ChordRingInfo closest = this.chordRingInfo;
+        for (ChordRingInfo ring : this.virtualNodes) {
+            ChordId id = ring.getNodeInfo().getId();
+            ChordId closestId = closest.getNodeInfo().getId();
+            if (id.equals(key) || (!closestId.equals(key) && ChordUtils.isBetween(key, closestId, id)))
+                closest = ring;
+        }
+        return closest;
+    }
+
     /**
      * Method to remove a chunk and send REMOVED message to owner
      * @param fileId ID of the file to remove
@@ -601,7 +951,7 @@ public class Protocol {
     public void removed(Message message) {
         String fileId = message.getHeader().getFileId();
         int chunkNo = message.getHeader().getChunkNo();
-        int senderId = message.getHeader().getSenderId();
+        ChordId senderId = message.getHeader().getSenderId();
 
         if(!this.fileManager.amFileOwner(fileId)){
             return;
@@ -612,12 +962,13 @@ public class Protocol {
 
     /**
      * Method to be called when receiving a PUTCHUNK or GIVECHUNK message to propagate the backup with given replication
+     * @param ring the virtual node that received the message
      * @param message the PUTCHUNK/GIVECHUNK message received
      * @param replication the new replication of the message
      */
-    private void redirectBackup(Message message, int replication) {
+    private void redirectBackup(ChordRingInfo ring, Message message, int replication) {
         MessageType msgType = message.getHeader().getMessageType();
-        ChordNode node = this.chordRingInfo.getSuccessor();
+        ChordNode node = ring.getSuccessor();
 
         boolean canPropagate = false;
         if (msgType == MessageType.PUTCHUNK) {
@@ -626,10 +977,10 @@ public class Protocol {
 
             String fileId = message.getHeader().getFileId();
             int chunkNo = message.getHeader().getChunkNo();
-            canPropagate = this.canPropagate(node, fileId, chunkNo);
+            canPropagate = this.canPropagate(ring, node, fileId, chunkNo);
         }
         else if (msgType == MessageType.GIVECHUNK) {
-            int barrierId = message.getHeader().getBarrierId();
+            ChordId barrierId = message.getHeader().getBarrierId();
             canPropagate = this.canPropagate(node, barrierId);
         }
 
@@ -638,25 +989,28 @@ public class Protocol {
             if (msgType == MessageType.PUTCHUNK)
                 message.getHeader().setReplication(replication);
 
+            message.setReceiverId(node.getId());
             SenderThread.sendMessage(
                     node.getIpAddress(),
                     node.getPortMDB(),
                     message,
-                    null
+                    this.retryWithNextSuccessor(ring, node, () -> this.redirectBackup(ring, message, replication))
             );
         }
     }
 
     /**
      * Checks to see if the message can still be propagated
-     * @param node the successor of the peer
+     * @param ring the virtual node that received the message
+     * @param node the successor of the virtual node
      * @param fileId id of the message's file
      * @param chunkNo number of the chunk related to the message's file
      * @return Returns true when the message can be propagated. False when not.
      */
-    private boolean canPropagate(ChordNode node, String fileId, int chunkNo) {
-        int key = ChordRingInfo.generateHash(fileId + chunkNo);
-        return node != null && node.getId() != this.peerID && !ChordUtils.isBetweenInc(this.peerID, node.getId(), key);
+    private boolean canPropagate(ChordRingInfo ring, ChordNode node, String fileId, int chunkNo) {
+        ChordId key = ChordRingInfo.generateHash(fileId + chunkNo);
+        ChordId nodeId = ring.getNodeInfo().getId();
+        return node != null && !node.getId().equals(nodeId) && !ChordUtils.isBetweenInc(nodeId, node.getId(), key);
     }
 
     /**
@@ -665,8 +1019,8 @@ public class Protocol {
      * @param barrierId
      * @return
      */
-    private boolean canPropagate(ChordNode node, int barrierId) {
-        return node.getId() != barrierId;
+    private boolean canPropagate(ChordNode node, ChordId barrierId) {
+        return !node.getId().equals(barrierId);
     }
 
 
@@ -681,7 +1035,7 @@ public class Protocol {
             this.chordRingInfo.startFindSuccessor(
                     header.getSenderId(),
                     (chordNode) -> {
-                        if (header.getSenderId() == chordNode.getId()) {
+                        if (header.getSenderId().equals(chordNode.getId())) {
                             for (Map.Entry<String, Message> entry : filesToDelete)
                                 SenderThread.sendMessage(
                                         chordNode.getIpAddress(),
@@ -704,13 +1058,28 @@ public class Protocol {
      */
     public void exit() {
         System.out.println("Ending Chord tasks...");
-        this.chordRingInfo.endTasks();
+        for (ChordRingInfo ring : this.virtualNodes)
+            ring.endTasks();
+        this.taskManager.stop();
 
         System.out.println("Passing data to nodes...");
-        this.reclaim(0);
+        this.handOffChunks();
+        this.fileManager.getChunkStore().close();
+        FileChannels.getShared().closeAll();
 
+        // only the neighbours of other peers are told, and they are given nodes of other peers, since every
+        // virtual node of this peer is leaving
         System.out.println("Updating predecessor and successor...");
-        this.chordRingInfo.exit();
+        for (ChordRingInfo ring : this.virtualNodes) {
+            ChordNode predecessor = ring.getPredecessor();
+            ChordNode successor = ring.getSuccessor();
+            boolean remotePredecessor = predecessor != null && this.getVirtualNode(predecessor.getId()) == null;
+            boolean remoteSuccessor = successor != null && this.getVirtualNode(successor.getId()) == null;
+            ring.exit(
+                    remotePredecessor ? this.remoteNode(successor) : null,
+                    remoteSuccessor ? this.remotePredecessor(predecessor) : null
+            );
+        }
 
         System.out.println("Terminating the receiver thread");
         ReceiverThread.exit();
@@ -738,10 +1107,10 @@ public class Protocol {
             for (int i = 0; i <= maxChunk; i++) {
                 stateInformation.append("\t\t" + "Chunk ID: ").append(i).append("\n"); // chunk ID
 
-                ConcurrentSkipListSet<Integer> storerIdsList = this.chunkManager.getPerceivedReplicationForChunk(entry.getValue(), i);
+                ConcurrentSkipListSet<ChordId> storerIdsList = this.chunkManager.getPerceivedReplicationForChunk(entry.getValue(), i);
                 String storerIdsString = "-";
                 StringBuilder storerIds = new StringBuilder();
-                for (Integer storerId : storerIdsList) {
+                for (ChordId storerId : storerIdsList) {
                     storerIds.append(storerId).append(" ");
                 }
                 if (!storerIds.toString().isBlank())
@@ -771,10 +1140,20 @@ public class Protocol {
         stateInformation.append("\n");
         stateInformation.append("Maximum storage capacity: ").append(this.fileManager.getMaximumStorageSpace()).append(" KB\n");
         stateInformation.append("Available storage capacity: ").append(this.fileManager.getAvailableStorageSpace()).append(" KB\n");
+        stateInformation.append(this.fileManager.getMetadataLog().state());
+        stateInformation.append(this.chunkManager.getMetadataLog().state());
+        stateInformation.append(this.fileManager.getChunkStore().state());
 
         stateInformation.append("-------\nChord Information:\n");
         stateInformation.append("\tPeer/Node ID: ").append(peerID).append("\n");
 
+        if (this.virtualNodes.size() > 1) {
+            StringBuilder virtualNodeIds = new StringBuilder();
+            for (ChordRingInfo ring : this.virtualNodes.subList(1, this.virtualNodes.size()))
+                virtualNodeIds.append(ring.getNodeInfo().getId()).append(" ");
+            stateInformation.append("\tVirtual node IDs: ").append(virtualNodeIds).append("\n");
+        }
+
         String predecessorID = "-";
         if (chordRingInfo.getPredecessor() != null)
             predecessorID = String.valueOf(chordRingInfo.getPredecessor().getId());
@@ -788,6 +1167,11 @@ public class Protocol {
 
         stateInformation.append("\tSuccessor ID: ").append(chordSuccessorsString).append("\n");
 
+        StringBuilder successorList = new StringBuilder();
+        for (ChordNode node : chordRingInfo.getSuccessors())
+            successorList.append(node.getId()).append(" ");
+        stateInformation.append("\tSuccessor list: ").append(successorList.toString().isBlank() ? "-" : successorList.toString()).append("\n");
+
         String chordFingersString = "-";
         StringBuilder chordFingers = new StringBuilder();
         AtomicReferenceArray<ChordNode> fingers = chordRingInfo.getFingers();
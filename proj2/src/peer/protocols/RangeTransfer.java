@@ -0,0 +1,163 @@
+package peer.protocols;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfer of a set of stored chunks to another node: to a node that joined the ring and took over their keys,
+ * or to the successor of a peer that is leaving. Up to WINDOW chunks are on their way at the same time, and all
+ * the transfers of the peer share a rate limit (-Dpeer.transfer.rate, in KB/s), so that they do not take all the
+ * bandwidth from the other messages. The progress is printed every PROGRESS_INTERVAL chunks.
+ */
+class RangeTransfer implements Runnable {
+    /**
+     * Sends a chunk to the destination of the transfer.
+     */
+    interface ChunkSender {
+        /**
+         * @param fileId id of the file
+         * @param chunkNo chunk number
+         * @return future completed with the number of bytes sent, once the chunk is sent
+         * @throws Exception when the chunk cannot be read
+         */
+        CompletableFuture<Integer> send(String fileId, int chunkNo) throws Exception;
+    }
+
+    /**
+     * Called for each chunk after it is sent.
+     */
+    interface OnSent {
+        void sent(String fileId, int chunkNo);
+    }
+
+    private static final int WINDOW = Math.max(1, Integer.getInteger("peer.transfer.window", 8));  /** chunks being sent at the same time */
+    private static final long RATE = Math.max(1, Long.getLong("peer.transfer.rate", 4096)) * 1024;  /** bytes per second of all the transfers */
+    private static final int PROGRESS_INTERVAL = 50;                /** chunks between progress reports */
+
+    private static final Object rateLock = new Object();            /** lock of the rate limit */
+    private static long nextSendTime = System.nanoTime();           /** time at which the rate limit lets the next chunk be sent */
+
+    private final String destination;                               /** description of the destination, for the reports */
+    private final List<String> chunks;                              /** chunks to send (fileId + _ + chunkNo) */
+    private final ChunkSender sender;                               /** sends each chunk */
+    private final OnSent onSent;                                    /** called after each chunk is sent (may be null) */
+    private final CompletableFuture<Void> done = new CompletableFuture<>();  /** completed when every chunk was sent or failed */
+
+    private final AtomicInteger sent = new AtomicInteger();         /** chunks sent */
+    private final AtomicInteger failed = new AtomicInteger();       /** chunks that could not be sent */
+    private final AtomicLong bytes = new AtomicLong();              /** bytes sent */
+    private long startTime;                                         /** time at which the transfer started */
+
+    /**
+     * Constructor of the transfer.
+     * @param destination description of the destination, for the reports
+     * @param chunks chunks to send (fileId + _ + chunkNo)
+     * @param sender sends each chunk
+     * @param onSent called after each chunk is sent (may be null)
+     */
+    RangeTransfer(String destination, List<String> chunks, ChunkSender sender, OnSent onSent) {
+        this.destination = destination;
+        this.chunks = chunks;
+        this.sender = sender;
+        this.onSent = onSent;
+    }
+
+    /**
+     * Get method for the future completed at the end of the transfer.
+     * @return the future
+     */
+    CompletableFuture<Void> getDone() {
+        return done;
+    }
+
+    /**
+     * Sends the chunks, waiting while the window is full or the rate limit is exceeded.
+     */
+    @Override
+    public void run() {
+        startTime = System.nanoTime();
+        System.out.println("Transferring " + chunks.size() + " chunks " + destination);
+
+        Semaphore window = new Semaphore(WINDOW);
+        try {
+            for (String fileAndChunk : chunks) {
+                window.acquire();
+                waitForRate();
+
+                String fileId = fileAndChunk.substring(0, fileAndChunk.indexOf('_'));
+                int chunkNo = Integer.parseInt(fileAndChunk.substring(fileAndChunk.indexOf('_') + 1));
+
+                CompletableFuture<Integer> future;
+                try {
+                    future = sender.send(fileId, chunkNo);
+                } catch (Exception e) {
+                    System.err.println("Failed to read chunk " + chunkNo + " of " + fileId + " for the transfer");
+                    e.printStackTrace();
+                    failed.incrementAndGet();
+                    window.release();
+                    continue;
+                }
+
+                future.whenComplete((size, error) -> {
+                    if (error == null) {
+                        bytes.addAndGet(size);
+                        consumeRate(size);
+                        if (onSent != null)
+                            onSent.sent(fileId, chunkNo);
+                        if (sent.incrementAndGet() % PROGRESS_INTERVAL == 0)
+                            System.out.println(this.progress());
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                    window.release();
+                });
+            }
+
+            // wait for the chunks still on their way
+            window.acquire(WINDOW);
+        } catch (InterruptedException e) {
+            System.err.println("Transfer " + destination + " interrupted");
+            Thread.currentThread().interrupt();
+        }
+
+        System.out.println(this.progress() + " (finished)");
+        done.complete(null);
+    }
+
+    /**
+     * Retrieves the progress of the transfer.
+     * @return line with the progress
+     */
+    private String progress() {
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        return "Transfer " + destination + ": " + sent.get() + "/" + chunks.size() + " chunks sent, " + failed.get()
+                + " failed, " + bytes.get() / 1024 + " KB in " + elapsed + " ms";
+    }
+
+    /**
+     * Waits until the rate limit lets another chunk be sent.
+     * @throws InterruptedException when the thread is interrupted
+     */
+    private static void waitForRate() throws InterruptedException {
+        long wait;
+        synchronized (rateLock) {
+            wait = nextSendTime - System.nanoTime();
+        }
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Counts the bytes of a chunk that was sent against the rate limit.
+     * @param size number of bytes sent
+     */
+    private static void consumeRate(long size) {
+        synchronized (rateLock) {
+            nextSendTime = Math.max(nextSendTime, System.nanoTime()) + size * TimeUnit.SECONDS.toNanos(1) / RATE;
+        }
+    }
+}
@@ -4,5 +4,10 @@ import peer.chord.ChordNode;
 
 public interface Task {
     void complete(ChordNode successor);
+
+    /**
+     * Called instead of complete() when the lookup is dropped without an answer.
+     */
+    default void dropped() { }
 }
 
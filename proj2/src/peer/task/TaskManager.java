@@ -1,30 +1,287 @@
 package peer.task;
 
+import peer.chord.ChordId;
 import peer.chord.ChordNode;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-
+/**
+ * Keeps the lookups (FIND_SUCC, or FIND_NEXT when they are iterative) started by this peer that are waiting for
+ * their answer. Each lookup has its own request id, sent with the lookup and returned in the answer, so an answer
+ * completes only the lookup that asked for it. The deadlines of the lookups are kept in a timer wheel: a lookup that is not answered in time
+ * is sent again through another node, and dropped after MAX_ATTEMPTS.
+ */
 public class TaskManager {
+    /**
+     * Sends a lookup again, when its answer did not arrive in time.
+     */
+    public interface Resend {
+        /**
+         * Sends a lookup again, through a node that was not tried yet.
+         * @param requestId Id of the lookup
+         * @param tried Nodes the lookup was already sent to; the node used now must be added to it
+         * @return True if the lookup was sent again, false if there is no other node to try
+         */
+        boolean resend(int requestId, Set<ChordNode> tried);
+
+        /**
+         * Called when the lookup is dropped (timed out or cancelled) without an answer.
+         * @param requestId Id of the lookup
+         */
+        default void dropped(int requestId) { }
+    }
+
+    /**
+     * Lookup waiting for its answer.
+     */
+    private static class PendingLookup {
+        final int requestId;
+        final ChordId key;
+        final Task task;
+        final Resend resend;
+        final Set<ChordNode> tried = new HashSet<>();
+        final long startTime = System.nanoTime();
+        int attempts = 1;
+        long deadlineTick;
+
+        PendingLookup(int requestId, ChordId key, Task task, Resend resend) {
+            this.requestId = requestId;
+            this.key = key;
+            this.task = task;
+            this.resend = resend;
+        }
+    }
+
+    /**
+     * Entry of the timer wheel. A lookup whose deadline was changed leaves its old entry behind, which is ignored.
+     */
+    private static class Timeout {
+        final PendingLookup lookup;
+        final long deadlineTick;
+
+        Timeout(PendingLookup lookup, long deadlineTick) {
+            this.lookup = lookup;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    /**
+     * Time (in milliseconds) an attempt of a lookup waits for its answer.
+     */
+    private static final long LOOKUP_TIMEOUT = 3000;
+
+    /**
+     * Number of times a lookup is sent before it is dropped.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Duration (in milliseconds) of a tick of the timer wheel.
+     */
+    private static final long TICK = 100;
+
+    /**
+     * Number of slots of the timer wheel; deadlines further away than a full turn wait for more turns in their slot.
+     */
+    private static final int WHEEL_SIZE = 256;
+
+    /**
+     * Lookups waiting for their answer.
+     * key = request id
+     */
+    private final ConcurrentHashMap<Integer, PendingLookup> pendingLookups = new ConcurrentHashMap<>();
+
+    /**
+     * Slots of the timer wheel, with the lookups whose deadline falls in each of them.
+     */
+    private final List<ConcurrentLinkedQueue<Timeout>> wheel = new ArrayList<>(WHEEL_SIZE);
+
+    /**
+     * Current tick of the timer wheel.
+     */
+    private volatile long currentTick = 0;
+
+    /**
+     * Generator of the request ids.
+     */
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    /**
+     * Thread that advances the timer wheel.
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lookup-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Metrics of the lookups.
+     */
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    public TaskManager() {
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel.add(new ConcurrentLinkedQueue<>());
+        timer.scheduleAtFixedRate(this::advance, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
 
-    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Task>> pendingTasks = new ConcurrentHashMap<>();
+    /**
+     * Registers a lookup that is going to be sent.
+     * @param key Key being looked up
+     * @param task Task to be completed with the successor of the key
+     * @param node Node the lookup is going to be sent to (null if it is not a node of the ring)
+     * @param resend Sends the lookup again, when its answer does not arrive in time
+     * @return Request id of the lookup, to be sent with it
+     */
+    public int addTask(ChordId key, Task task, ChordNode node, Resend resend) {
+        int requestId = nextRequestId.incrementAndGet();
+        PendingLookup lookup = new PendingLookup(requestId, key, task, resend);
+        if (node != null)
+            lookup.tried.add(node);
 
-    public void addTask(int key, Task task) {
-        ConcurrentLinkedQueue<Task> tasks = pendingTasks.computeIfAbsent(key, value -> new ConcurrentLinkedQueue<>());
-        tasks.add(task);
+        pendingLookups.put(requestId, lookup);
+        this.schedule(lookup);
+        return requestId;
     }
-    
-    public void completeTasks(int key, ChordNode chordNode) {
-        ConcurrentLinkedQueue<Task> tasks = pendingTasks.get(key);
 
-        if(tasks != null) {
-            synchronized (tasks) {
-                Task task;
+    /**
+     * Completes the lookup an answer is for. Answers for lookups that are no longer waiting (already answered,
+     * dropped or cancelled) or for a different key are ignored.
+     * @param requestId Request id of the answer
+     * @param key Key of the answer
+     * @param chordNode Successor of the key
+     */
+    public void completeTask(int requestId, ChordId key, ChordNode chordNode) {
+        PendingLookup lookup = pendingLookups.get(requestId);
+        if (lookup == null || !lookup.key.equals(key) || !pendingLookups.remove(requestId, lookup)) {
+            stale.incrementAndGet();
+            return;
+        }
+
+        long latency = System.nanoTime() - lookup.startTime;
+        completed.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        maxLatency.accumulateAndGet(latency, Math::max);
+
+        lookup.task.complete(chordNode);
+    }
+
+    /**
+     * Cancels a lookup; its answer, if it arrives, is ignored.
+     * @param requestId Request id of the lookup
+     */
+    public void cancel(int requestId) {
+        PendingLookup lookup = pendingLookups.remove(requestId);
+        if (lookup != null)
+            lookup.resend.dropped(requestId);
+    }
+
+    /**
+     * Moves the deadline of a lookup that is making progress (used by iterative lookups, which receive
+     * several answers) to LOOKUP_TIMEOUT from now.
+     * @param requestId Request id of the lookup
+     */
+    public void extend(int requestId) {
+        PendingLookup lookup = pendingLookups.get(requestId);
+        if (lookup != null)
+            this.schedule(lookup);
+    }
+
+    /**
+     * Puts a lookup in the slot of the timer wheel of its next deadline.
+     * @param lookup The lookup
+     */
+    private void schedule(PendingLookup lookup) {
+        long ticks = (LOOKUP_TIMEOUT + TICK - 1) / TICK;
+        long deadlineTick = currentTick + ticks;
+        lookup.deadlineTick = deadlineTick;
+        wheel.get((int) (deadlineTick % WHEEL_SIZE)).add(new Timeout(lookup, deadlineTick));
+    }
+
+    /**
+     * Advances the timer wheel one tick, handling the lookups whose deadline passed.
+     */
+    private void advance() {
+        long tick = ++currentTick;
+        ConcurrentLinkedQueue<Timeout> slot = wheel.get((int) (tick % WHEEL_SIZE));
+
+        List<Timeout> later = new ArrayList<>();
+        Timeout timeout;
+        while ((timeout = slot.poll()) != null) {
+            PendingLookup lookup = timeout.lookup;
 
-                while ((task = tasks.poll()) != null) {
-                    task.complete(chordNode);
-                }
+            // answered, cancelled, or its deadline was moved
+            if (pendingLookups.get(lookup.requestId) != lookup || lookup.deadlineTick != timeout.deadlineTick)
+                continue;
+
+            if (timeout.deadlineTick > tick) {
+                later.add(timeout);
+                continue;
+            }
+
+            try {
+                this.expire(lookup);
+            } catch (RuntimeException e) {
+                System.err.println("Error retrying lookup " + lookup.requestId);
+                e.printStackTrace();
             }
         }
+        slot.addAll(later);
+    }
+
+    /**
+     * Sends a lookup whose deadline passed again, or drops it when it was already sent MAX_ATTEMPTS times
+     * or there is no other node to try.
+     * @param lookup The lookup
+     */
+    private void expire(PendingLookup lookup) {
+        if (lookup.attempts < MAX_ATTEMPTS && lookup.resend.resend(lookup.requestId, lookup.tried)) {
+            lookup.attempts++;
+            retried.incrementAndGet();
+            this.schedule(lookup);
+            return;
+        }
+
+        if (pendingLookups.remove(lookup.requestId, lookup)) {
+            timedOut.incrementAndGet();
+            System.err.println("Lookup " + lookup.requestId + " for key " + lookup.key + " timed out after " + lookup.attempts + " attempts");
+            lookup.resend.dropped(lookup.requestId);
+        }
+    }
+
+    /**
+     * Stops the timer of the lookups.
+     */
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Retrieves the metrics of the lookups.
+     * @return line with the metrics
+     */
+    public String state() {
+        long done = completed.get();
+        long averageLatency = done == 0 ? 0 : totalLatency.get() / done;
+        return "Lookups: " + done + " completed, " + retried.get() + " retried, " + timedOut.get() + " timed out, "
+                + stale.get() + " stale answers, " + pendingLookups.size() + " pending, average latency "
+                + TimeUnit.NANOSECONDS.toMillis(averageLatency) + " ms, max latency "
+                + TimeUnit.NANOSECONDS.toMillis(maxLatency.get()) + " ms\n";
     }
 }